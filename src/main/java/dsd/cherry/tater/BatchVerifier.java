@@ -0,0 +1,318 @@
+package dsd.cherry.tater;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dsd.cherry.tater.tracing.Trace;
+import dsd.cherry.tater.tracing.Tracer;
+import dsd.cherry.tater.types.jax_pojos.AuthRequestVerify;
+import dsd.cherry.tater.types.jax_pojos.AuthResponseVerify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the replies to a /verify/batch request. The request body is read one line at a time on the container
+ * thread and each line is handed to a worker; workers write their reply to the response as soon as it is ready, so
+ * one slow verification never holds back the others. Every reply carries the number of the line it answers.
+ *
+ * The workers are shared by every batch: there are <code>tater.batchThreads</code> of them (default 32), however many
+ * batches are running, and each batch has at most its own concurrency of lines waiting for or holding one.
+ *
+ * A line is admitted into the image budget block by block as it is read, and lines longer than the
+ * <code>tater.batchMaxLineBytes</code> system property (default 16MB) are skipped with an error rather than buffered.
+ */
+class BatchVerifier implements StreamingOutput {
+    static final String NDJSON = "application/x-ndjson";
+
+    private static final int MAX_LINE_BYTES = Integer.getInteger("tater.batchMaxLineBytes", 16 * 1024 * 1024);
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    private static ExecutorService workers;
+
+    private final FacilitatorService facilitator;
+    private final ObjectMapper mapIn, mapOut;
+    private final ImageByteBudget budget;
+    private final InputStream body;
+    private final int concurrency;
+
+    private OutputStream out;
+    private IOException writeFailure;
+
+    // the part of the body read but not yet taken into a line
+    private final byte[] block = new byte[BLOCK_BYTES];
+    private int blockStart, blockEnd;
+
+    /**
+     * <b>Constructor.</b>
+     * @param facilitator The service whose ServiceManager performs each verification.
+     * @param mapIn A mapper configured to read AuthRequestVerify objects.
+     * @param mapOut A mapper configured to write AuthResponseVerify objects.
+     * @param budget The image budget each line must be admitted against.
+     * @param body The newline-delimited request body.
+     * @param concurrency The maximum number of verifications in flight at once.
+     */
+    BatchVerifier(FacilitatorService facilitator,
+                  ObjectMapper mapIn,
+                  ObjectMapper mapOut,
+                  ImageByteBudget budget,
+                  InputStream body,
+                  int concurrency) {
+        this.facilitator = facilitator;
+        this.mapIn = mapIn;
+        this.mapOut = mapOut;
+        this.budget = budget;
+        this.body = body;
+        this.concurrency = concurrency;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        this.out = output;
+        ExecutorService pool = getWorkers();
+        Semaphore slots = new Semaphore(concurrency);
+
+        try {
+            long lineNumber = 0;
+            while (failure() == null) {
+                slots.acquire();
+                Line line = readLine();
+                if (line == null) {
+                    slots.release();
+                    break;
+                }
+                ++lineNumber;
+                if (line.error != null || line.isBlank()) {
+                    line.release();
+                    slots.release();
+                    if (line.error != null) writeError(lineNumber, line.error);
+                    continue;
+                }
+                pool.execute(new VerifyLine(lineNumber, line, slots));
+            }
+            slots.acquire(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // lines still queued for the workers are dropped rather than answered into a finished response
+            abandon(new InterruptedIOException("Batch was interrupted."));
+        }
+
+        if (failure() != null) throw failure();
+    }
+
+    private synchronized IOException failure() { return writeFailure; }
+
+    private synchronized void abandon(IOException cause) {
+        if (writeFailure == null) writeFailure = cause;
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            int threads = Math.max(1, Integer.getInteger("tater.batchThreads", 32));
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "tater-batch-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            workers = pool;
+        }
+        return workers;
+    }
+
+    /**
+     * Reads the next line of the body, without its terminator.
+     * @return The line, or null at the end of the body.
+     */
+    private Line readLine() throws IOException {
+        Line line = new Line();
+        boolean read = false;
+        try {
+            while (true) {
+                if (blockStart == blockEnd) {
+                    blockStart = 0;
+                    blockEnd = Math.max(0, body.read(block, 0, block.length));
+                    if (blockEnd == 0) return read ? line : null;
+                }
+                read = true;
+                int end = blockStart;
+                while (end < blockEnd && block[end] != '\n') ++end;
+                line.append(block, blockStart, end - blockStart);
+                if (end < blockEnd) {
+                    blockStart = end + 1;
+                    return line;
+                }
+                blockStart = end;
+            }
+        } catch (IOException e) {
+            line.release();
+            throw e;
+        }
+    }
+
+    /**
+     * One line of the body. Room for it is reserved in the image budget before each block is copied in; a line that
+     * is too long or cannot be admitted stops being buffered and carries the error to report instead.
+     */
+    private class Line {
+        byte[] bytes = new byte[0];
+        int length;
+        ImageByteBudget.Lease lease;
+        String error;
+
+        void append(byte[] source, int offset, int count) {
+            if (error != null || count == 0) return;
+            if (length + count > MAX_LINE_BYTES) {
+                fail("Line is longer than " + MAX_LINE_BYTES + " bytes.");
+                return;
+            }
+            if (length + count > bytes.length) {
+                int capacity = (int) Math.min(MAX_LINE_BYTES, Math.max(length + count, 2L * bytes.length));
+                boolean admitted = lease == null ? (lease = budget.acquire(capacity)) != null
+                                                 : lease.grow(capacity - bytes.length);
+                if (!admitted) {
+                    fail("Facilitator is at its image memory budget, try again later.");
+                    return;
+                }
+                bytes = Arrays.copyOf(bytes, capacity);
+            }
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+
+        boolean isBlank() {
+            for (int i = 0; i < length; ++i) {
+                if (!Character.isWhitespace(bytes[i])) return false;
+            }
+            return true;
+        }
+
+        void release() {
+            bytes = null;
+            if (lease != null) lease.release();
+        }
+
+        private void fail(String message) {
+            error = message;
+            release();
+        }
+    }
+
+    /**
+     * Writes one reply line and pushes it to the client immediately. Replies from concurrent workers are serialized
+     * here so lines are never interleaved.
+     */
+    private synchronized void writeLine(byte[] JSON) {
+        if (writeFailure != null) return;
+        try {
+            out.write(JSON);
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("/verify/batch: Error writing reply, client went away? " + e.getMessage());
+            writeFailure = e;
+        }
+    }
+
+    /**
+     * Serializes a verification reply with the number of the line it answers, so that replies arriving out of order
+     * can be matched to their requests.
+     */
+    private byte[] toReplyLine(long lineNumber, AuthResponseVerify reply) throws IOException {
+        ObjectNode JSON = mapOut.createObjectNode();
+        JSON.put("Line", lineNumber);
+        JSON.setAll((ObjectNode) mapOut.valueToTree(reply));
+        return mapOut.writeValueAsBytes(JSON);
+    }
+
+    private void writeError(long lineNumber, String message) {
+        Map<String,Object> error = new LinkedHashMap<String, Object>();
+        error.put("Line", lineNumber);
+        error.put("Error", message);
+        try {
+            writeLine(mapOut.writeValueAsBytes(error));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Verifies a single line of the batch and writes its reply.
+     */
+    private class VerifyLine implements Runnable {
+        private final long lineNumber;
+        private final Line line;
+        private final Semaphore slots;
+
+        VerifyLine(long lineNumber, Line line, Semaphore slots) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.slots = slots;
+        }
+
+        @Override
+        public void run() {
+            if (failure() != null) {
+                line.release();
+                slots.release();
+                return;
+            }
+            Trace trace = Tracer.begin("/verify/batch");
+            try {
+                AuthRequestVerify req;
+                int span = Tracer.start("parse");
+                try {
+                    req = mapIn.readValue(line.bytes, 0, line.length, AuthRequestVerify.class);
+                } catch (IOException e) {
+                    System.out.println("Error reading JSON Verify Request on line " + lineNumber + ": " + e.getMessage());
+                    writeError(lineNumber, "Error reading JSON request.");
+                    return;
+                } finally {
+                    Tracer.end(span);
+                }
+                line.bytes = null;
+                line.lease.resize(FacilitatorService.heldBytes(req.getImage()));
+                if (trace != null) trace.setUserID(req.getInternalID());
+
+                AuthResponseVerify reply = facilitator.verifyRequest(req, facilitator.deadline(-1));
+                span = Tracer.start("serialize");
+                byte[] JSON;
+                try {
+                    JSON = toReplyLine(lineNumber, reply);
+                } finally {
+                    Tracer.end(span);
+                }
+                writeLine(JSON);
+            } catch (Exception e) {
+                System.out.println("/verify/batch: Error verifying line " + lineNumber + ": " + e.getMessage());
+                e.printStackTrace();
+                writeError(lineNumber, "Error verifying request.");
+            } finally {
+                line.release();
+                slots.release();
+                Tracer.finish(trace);
+            }
+        }
+    }
+}
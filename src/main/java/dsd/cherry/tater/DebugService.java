@@ -0,0 +1,42 @@
+package dsd.cherry.tater;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import dsd.cherry.tater.tracing.Trace;
+import dsd.cherry.tater.tracing.TraceBuffer;
+import dsd.cherry.tater.tracing.Tracer;
+
+/**
+ * Exposes diagnostics meant for people rather than for the Authentication Server.
+ */
+@Path("/debug")
+public class DebugService {
+
+    /**
+     * Dumps the slowest of the recently traced requests, each broken down into the time spent parsing, in each
+     * service handler, in each remote call the handler made, and serializing the reply. Only the fraction of requests
+     * set by <code>tater.trace.sampleRate</code> are traced.
+     * @param limit The maximum number of requests to show.
+     * @return A plain text breakdown of the slowest requests, slowest first.
+     */
+    @GET
+    @Path("/traces")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response traces(@QueryParam("limit") @DefaultValue("20") int limit) {
+        TraceBuffer buffer = Tracer.getBuffer();
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Sampling %.2f%% of requests; %d traced since startup, last %d kept.%n%n",
+                Tracer.getSampleRate() * 100, buffer.getRecorded(), buffer.getCapacity()));
+        for (Trace trace : buffer.getSlowest(Math.max(0, limit))) {
+            trace.describe(out);
+            out.append('\n');
+        }
+        return Response.ok(out.toString()).build();
+    }
+}
@@ -3,42 +3,84 @@ package dsd.cherry.tater;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.MediaType;
-import javax.xml.bind.DatatypeConverter;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import dsd.cherry.tater.capture.CapturedRequest;
+import dsd.cherry.tater.cluster.Cluster;
+import dsd.cherry.tater.frservices.FRServiceHandlerTrainResponse;
+import dsd.cherry.tater.tracing.Trace;
+import dsd.cherry.tater.tracing.Tracer;
 import dsd.cherry.tater.types.*;
 import dsd.cherry.tater.types.jax_mixins.MxImageDataAuthRequest;
 import dsd.cherry.tater.types.jax_mixins.MxImageDataAuthResponse;
+import dsd.cherry.tater.types.jax_pojos.AuthRequestIdentify;
 import dsd.cherry.tater.types.jax_pojos.AuthRequestTrain;
 import dsd.cherry.tater.types.jax_pojos.AuthRequestVerify;
+import dsd.cherry.tater.types.jax_pojos.AuthResponseIdentify;
 import dsd.cherry.tater.types.jax_pojos.AuthResponseTrain;
 import dsd.cherry.tater.types.jax_pojos.AuthResponseVerify;
+import dsd.cherry.tater.util.Deadline;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * The FacilitatorService exposes the Facilitator API as a RESTful web service for use by the Authentication Server.
  *
+ * Two parts of /train and /verify go beyond the Facilitator Interface Specification, and the Authentication Server
+ * has to be changed to use them:
+ * <ul>
+ *     <li>The <code>FacilitatorId</code> list of a /train reply is filled in, with one entry for each service that
+ *         responded, naming the service and the ID it knows the person by. It used to be always empty.</li>
+ *     <li>A /verify request may carry a <code>FacilitatorIds</code> list in the same form, as returned by /train.
+ *         Only the services it names are asked. A request without it is read as before, and since no service is then
+ *         asked, its reply is never a match.</li>
+ * </ul>
+ * Both are additions: an Authentication Server written to the specification sends and reads nothing new.
+ *
  * @author Andrew James Beach
  * @version 0.1
  * Created by James Beach on 4/27/2016.
  */
 @Path("")
 public class FacilitatorService {
+    /**
+     * The header through which the Authentication Server tells us how many milliseconds it will wait for the reply.
+     * It carries a duration rather than a time so that the two servers' clocks need not agree.
+     */
+    public static final String DEADLINE_HEADER = "X-Deadline-Ms";
+
+    // /identify asks every group of every service, so it gets a budget of its own rather than the whole timeout
+    private static final long IDENTIFY_BUDGET_MS = Long.getLong("tater.identify.budgetMs", 2000);
+    private static final int MAX_IDENTIFY_LIMIT = 100;
+
+    // Jersey creates a FacilitatorService per request; the services are shared between them
+    private static final ServiceManager sharedServices = ServiceManager.fromSystemProperties();
+
     private ObjectMapper mapper;
     private ServiceManager services;
+    private ImageByteBudget budget;
+    private Cluster cluster;
 
     public FacilitatorService() {
         mapper = new ObjectMapper();
-        services = new ServiceManager(10);
+        services = sharedServices;
+        budget = ImageByteBudget.getGlobal();
+        cluster = Cluster.getGlobal();
     }
 
     /**
      * Exposes a training function through which the Authentication Server can commence the training of facial
-     * recognition services and at the same time get the training status of those services.
+     * recognition services and at the same time get the training status of those services. In cluster mode requests
+     * for users that belong to another node are forwarded to it.
+     * @param deadlineMs How long the Authentication Server will wait for the reply, or -1 for the configured timeout.
+     * @param forwardedBy The node that forwarded the request to this one in cluster mode, or null; only trusted if it
+     *                    names another configured node.
      * @param JSON A JSON training request from the Authentication Server.
      * @return An HTTP response and a JSON data-bound object. See the Facilitator Interface Specification and the
      *            definition for the AuthResponseTrain object.
@@ -47,28 +89,171 @@ public class FacilitatorService {
     @Path("/train")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response train(String JSON) {
-        ObjectMapper mapIn = this.mapper.copy();
-        mapIn.addMixIn(ImageData.class, MxImageDataAuthRequest.class);
-        AuthRequestTrain req;
+    public Response train(@HeaderParam("Content-Length") @DefaultValue("-1") long contentLength,
+                          @HeaderParam(DEADLINE_HEADER) @DefaultValue("-1") long deadlineMs,
+                          @HeaderParam(Cluster.FORWARDED_HEADER) String forwardedBy,
+                          InputStream JSON) {
+        Deadline deadline = deadline(deadlineMs);
+        RequestRecord record = RequestRecord.begin(CapturedRequest.TRAIN, contentLength);
+        if (contentLength < 0) return finish(record, rejectUnknownLength());
+        ImageByteBudget.Lease lease = budget.acquire(contentLength);
+        if (lease == null) return finish(record, rejectOverBudget(contentLength));
+        Trace trace = Tracer.begin("/train");
         try {
-            req = mapIn.readValue(JSON, AuthRequestTrain.class);
-        } catch (IOException e) {
-            System.out.println("Error reading JSON Train Request: " + e.getMessage());
-            e.printStackTrace();
-            return Response.status(452).entity("Error reading JSON request.").build();
+            if (cluster != null && !cluster.isForwardedByPeer(forwardedBy)) {
+                int span = Tracer.start("route");
+                try {
+                    byte[] body = Cluster.readAll(JSON);
+                    Response owner = cluster.route("/train", body, deadline);
+                    if (owner != null) return finish(record, owner);
+                    JSON = new ByteArrayInputStream(body);
+                } catch (IOException e) {
+                    System.out.println("Error reading JSON Train Request: " + e.getMessage());
+                    e.printStackTrace();
+                    return finish(record, Response.status(452).entity("Error reading JSON request.").build());
+                } finally {
+                    Tracer.end(span);
+                }
+            }
+            ObjectMapper mapIn = this.mapper.copy();
+            mapIn.addMixIn(ImageData.class, MxImageDataAuthRequest.class);
+            AuthRequestTrain req;
+            int span = Tracer.start("parse");
+            try {
+                req = mapIn.readValue(JSON, AuthRequestTrain.class);
+            } catch (IOException e) {
+                System.out.println("Error reading JSON Train Request: " + e.getMessage());
+                e.printStackTrace();
+                return finish(record, Response.status(452).entity("Error reading JSON request.").build());
+            } finally {
+                Tracer.end(span);
+            }
+            lease.resize(heldBytes(req.getImages()));
+            if (trace != null) trace.setUserID(req.getInternalID());
+            if (record != null) record.setRequest(req.getInternalID(), sizeOf(req.getFACIDs()), req.getImages());
+            System.out.println("UserId: " + req.getInternalID());
+            System.out.println(req.getImages().toString());
+
+            ObjectMapper mapOut = this.mapper.copy();
+            mapOut.addMixIn(ImageData.class, MxImageDataAuthResponse.class);
+
+            SMTrainData result = services.train(req.getInternalID(), req.getFACIDs(), req.getImages(), null, deadline);
+            AuthResponseTrain reply = buildTrainReply(result);
+
+            span = Tracer.start("serialize");
+            try {
+                return finish(record, Response.status(reply.getHTTPCode()).entity(mapOut.writeValueAsString(reply)).build());
+            } catch (JsonProcessingException e) {
+                System.out.println("/train: Error producing JSON reply: " + e.getMessage());
+                e.printStackTrace();
+                return finish(record, Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("tater/train: Error producing JSON reply.").build());
+            } finally {
+                Tracer.end(span);
+            }
+        } finally {
+            lease.release();
+            Tracer.finish(trace);
         }
-        System.out.println("UserId: " + req.getInternalID());
-        System.out.println(req.getImages().toString());
+    }
+
+    /**
+     * Exposes a streaming variant of /train for enrollments that take long enough for the Authentication Server to
+     * want to see progress. The reply is a stream of server-sent events: an <code>image</code> event as each service
+     * accepts or rejects each image, a <code>service</code> event as each service finishes training, and finally a
+     * <code>result</code> event carrying the same AuthResponseTrain object that /train would have returned. It keeps
+     * to the same deadline as /train, and in cluster mode requests for users that belong to another node are forwarded
+     * to it, its events relayed as they arrive.
+     * @param deadlineMs How long the Authentication Server will wait for the reply, or -1 for the configured timeout.
+     * @param forwardedBy The node that forwarded the request to this one in cluster mode, or null; only trusted if it
+     *                    names another configured node.
+     * @param JSON A JSON training request from the Authentication Server.
+     * @return An HTTP response streaming training progress as server-sent events.
+     */
+    @POST
+    @Path("/train/stream")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(TrainEventStream.EVENT_STREAM)
+    public Response trainStream(@HeaderParam("Content-Length") @DefaultValue("-1") long contentLength,
+                                @HeaderParam(DEADLINE_HEADER) @DefaultValue("-1") long deadlineMs,
+                                @HeaderParam(Cluster.FORWARDED_HEADER) String forwardedBy,
+                                InputStream JSON) {
+        Deadline deadline = deadline(deadlineMs);
+        RequestRecord record = RequestRecord.begin(CapturedRequest.TRAIN, "/train/stream", contentLength);
+        if (contentLength < 0) return finish(record, rejectUnknownLength());
+        ImageByteBudget.Lease lease = budget.acquire(contentLength);
+        if (lease == null) return finish(record, rejectOverBudget(contentLength));
+        Trace trace = Tracer.begin("/train/stream");
+        boolean streaming = false;
+        try {
+            if (cluster != null && !cluster.isForwardedByPeer(forwardedBy)) {
+                int span = Tracer.start("route");
+                try {
+                    byte[] body = Cluster.readAll(JSON);
+                    Response owner = cluster.route("/train/stream", body, deadline);
+                    if (owner != null) return finish(record, owner);
+                    JSON = new ByteArrayInputStream(body);
+                } catch (IOException e) {
+                    System.out.println("Error reading JSON Train Request: " + e.getMessage());
+                    e.printStackTrace();
+                    return finish(record, Response.status(452).entity("Error reading JSON request.").build());
+                } finally {
+                    Tracer.end(span);
+                }
+            }
+            ObjectMapper mapIn = this.mapper.copy();
+            mapIn.addMixIn(ImageData.class, MxImageDataAuthRequest.class);
+            AuthRequestTrain req;
+            int span = Tracer.start("parse");
+            try {
+                req = mapIn.readValue(JSON, AuthRequestTrain.class);
+            } catch (IOException e) {
+                System.out.println("Error reading JSON Train Request: " + e.getMessage());
+                e.printStackTrace();
+                return finish(record, Response.status(452).entity("Error reading JSON request.").build());
+            } finally {
+                Tracer.end(span);
+            }
+            lease.resize(heldBytes(req.getImages()));
+            if (trace != null) trace.setUserID(req.getInternalID());
+            if (record != null) record.setRequest(req.getInternalID(), sizeOf(req.getFACIDs()), req.getImages());
+            System.out.println("UserId: " + req.getInternalID());
+
+            ObjectMapper mapOut = this.mapper.copy();
+            mapOut.addMixIn(ImageData.class, MxImageDataAuthResponse.class);
 
-        ObjectMapper mapOut = this.mapper.copy();
-        mapOut.addMixIn(ImageData.class, MxImageDataAuthResponse.class);
+            // the stream releases the lease and finishes the trace and record once the final event has been written
+            Response response = Response.ok(new TrainEventStream(services, req, mapOut, lease, deadline, trace, record))
+                    .header("Cache-Control", "no-cache")
+                    .build();
+            streaming = true;
+            return response;
+        } finally {
+            if (streaming) {
+                Tracer.detach(trace);
+            } else {
+                lease.release();
+                Tracer.finish(trace);
+            }
+        }
+    }
 
-        SMTrainData result = services.train(req.getInternalID(), req.getFACIDs(), req.getImages());
+    /**
+     * Aggregates the ServiceManager's training result into the reply expected by the Authentication Server.
+     * @param result The result of training every service.
+     * @return The reply, with its HTTP code taken from the first image that was not accepted.
+     */
+    static AuthResponseTrain buildTrainReply(SMTrainData result) {
         AuthResponseTrain reply = new AuthResponseTrain();
         reply.setInternalID(result.getInternalID());
         reply.setTrainingStatus(result.getTrainingStatus());
         reply.setImages(result.getImageData());
+        for (FRServiceHandlerTrainResponse response : result.getResponses()) {
+            if (!response.getServiceResponded()) continue;
+            FacilitatorID FACID = new FacilitatorID();
+            FACID.setFRService(response.getServiceName());
+            FACID.setFRPersonID(response.getFRPersonID());
+            reply.getFACIDs().add(FACID);
+        }
         reply.setHTTPCode(StatusCode.IMAGE_OK.getHTTPCode());
         for (ImageData img : result.getImageData()) {
             if (!img.getCode().equals(StatusCode.IMAGE_OK)) {
@@ -76,19 +261,17 @@ public class FacilitatorService {
                 break;
             }
         }
-
-        try {
-            return Response.status(reply.getHTTPCode()).entity(mapOut.writeValueAsString(reply)).build();
-        } catch (JsonProcessingException e) {
-            System.out.println("/train: Error producing JSON reply: " + e.getMessage());
-            e.printStackTrace();
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("tater/train: Error producing JSON reply.").build();
-        }
+        return reply;
     }
 
     /**
      * Exposes a verification function through which the Authentication Server can attempt to verify a photo of a face
-     * against a person's ID.
+     * against a person's ID, as known to each of the services named in the request's <code>FacilitatorIds</code>; see
+     * the class description. If the deadline passes before every service has answered, the reply is made from the
+     * services that did. In cluster mode requests for users that belong to another node are forwarded to it.
+     * @param deadlineMs How long the Authentication Server will wait for the reply, or -1 for the configured timeout.
+     * @param forwardedBy The node that forwarded the request to this one in cluster mode, or null; only trusted if it
+     *                    names another configured node.
      * @param JSON A JSON verification request from the Authentication Server.
      * @return An HTTP response and a JSON data-bound object. See the Facilitator Interface Specifcation and the
      *            definition for the AuthResponseVerify object.
@@ -97,31 +280,247 @@ public class FacilitatorService {
     @Path("/verify")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response verify(String JSON) {
-        ObjectMapper mapIn = this.mapper.copy();
-        mapIn.addMixIn(ImageData.class, MxImageDataAuthRequest.class);
-        AuthRequestVerify req;
+    public Response verify(@HeaderParam("Content-Length") @DefaultValue("-1") long contentLength,
+                           @HeaderParam(DEADLINE_HEADER) @DefaultValue("-1") long deadlineMs,
+                           @HeaderParam(Cluster.FORWARDED_HEADER) String forwardedBy,
+                           InputStream JSON) {
+        Deadline deadline = deadline(deadlineMs);
+        RequestRecord record = RequestRecord.begin(CapturedRequest.VERIFY, contentLength);
+        if (contentLength < 0) return finish(record, rejectUnknownLength());
+        ImageByteBudget.Lease lease = budget.acquire(contentLength);
+        if (lease == null) return finish(record, rejectOverBudget(contentLength));
+        Trace trace = Tracer.begin("/verify");
+        try {
+            if (cluster != null && !cluster.isForwardedByPeer(forwardedBy)) {
+                int span = Tracer.start("route");
+                try {
+                    byte[] body = Cluster.readAll(JSON);
+                    Response owner = cluster.route("/verify", body, deadline);
+                    if (owner != null) return finish(record, owner);
+                    JSON = new ByteArrayInputStream(body);
+                } catch (IOException e) {
+                    System.out.println("Error reading JSON Verify Request: " + e.getMessage());
+                    e.printStackTrace();
+                    return finish(record, Response.status(400).entity("Error reading JSON request.").build());
+                } finally {
+                    Tracer.end(span);
+                }
+            }
+            ObjectMapper mapIn = this.mapper.copy();
+            mapIn.addMixIn(ImageData.class, MxImageDataAuthRequest.class);
+            AuthRequestVerify req;
+            int span = Tracer.start("parse");
+            try {
+                req = mapIn.readValue(JSON, AuthRequestVerify.class);
+            } catch (IOException e) {
+                System.out.println("Error reading JSON Verify Request: " + e.getMessage());
+                e.printStackTrace();
+                return finish(record, Response.status(400).entity("Error reading JSON request.").build());
+            } finally {
+                Tracer.end(span);
+            }
+            lease.resize(heldBytes(req.getImage()));
+            if (trace != null) trace.setUserID(req.getInternalID());
+            if (record != null) {
+                record.setRequest(req.getInternalID(), sizeOf(req.getFACIDs()),
+                        req.getImage() == null ? null : Collections.singletonList(req.getImage()));
+            }
+            System.out.println("UserId: " + req.getInternalID());
+            if (req.getImage() != null) {
+                System.out.println("ImageId: " + req.getImage().getImageID());
+                System.out.println("Image bytes: " + req.getImage().getImageSize());
+            }
+
+            AuthResponseVerify reply = verifyRequest(req, deadline);
+
+            // serialized here rather than by the JSON provider so that it falls inside the trace
+            span = Tracer.start("serialize");
+            try {
+                return finish(record, Response.status(reply.getHTTPStatusCode()).entity(mapper.writeValueAsString(reply)).build());
+            } catch (JsonProcessingException e) {
+                System.out.println("/verify: Error producing JSON reply: " + e.getMessage());
+                e.printStackTrace();
+                return finish(record, Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("tater/verify: Error producing JSON reply.").build());
+            } finally {
+                Tracer.end(span);
+            }
+        } finally {
+            lease.release();
+            Tracer.finish(trace);
+        }
+    }
+
+    /**
+     * Exposes an identification function through which the Authentication Server can find the persons who most
+     * resemble a photo of a face, without knowing whose it is. Every service is asked at once, and each service
+     * searches all of its groups at once; whatever has not answered within the <code>tater.identify.budgetMs</code>
+     * budget (default 2000), or the deadline if sooner, is left out and the reply is marked partial.
+     * @param limit The most persons to return, at most 100.
+     * @param deadlineMs How long the Authentication Server will wait for the reply, or -1 for the budget.
+     * @param JSON A JSON identification request from the Authentication Server, carrying the image.
+     * @return An HTTP response and a JSON data-bound object. See the definition for the AuthResponseIdentify object.
+     */
+    @POST
+    @Path("/identify")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response identify(@QueryParam("limit") @DefaultValue("5") int limit,
+                             @HeaderParam("Content-Length") @DefaultValue("-1") long contentLength,
+                             @HeaderParam(DEADLINE_HEADER) @DefaultValue("-1") long deadlineMs,
+                             InputStream JSON) {
+        Deadline deadline = deadline(deadlineMs).min(Deadline.after(IDENTIFY_BUDGET_MS));
+        if (contentLength < 0) return rejectUnknownLength();
+        ImageByteBudget.Lease lease = budget.acquire(contentLength);
+        if (lease == null) return rejectOverBudget(contentLength);
+        Trace trace = Tracer.begin("/identify");
         try {
-            req = mapIn.readValue(JSON, AuthRequestVerify.class);
-        } catch (IOException e) {
-            System.out.println("Error reading JSON Verify Request: " + e.getMessage());
-            e.printStackTrace();
-            return Response.status(400).entity("Error reading JSON request.").build();
+            ObjectMapper mapIn = this.mapper.copy();
+            mapIn.addMixIn(ImageData.class, MxImageDataAuthRequest.class);
+            AuthRequestIdentify req;
+            int span = Tracer.start("parse");
+            try {
+                req = mapIn.readValue(JSON, AuthRequestIdentify.class);
+            } catch (IOException e) {
+                System.out.println("Error reading JSON Identify Request: " + e.getMessage());
+                e.printStackTrace();
+                return Response.status(400).entity("Error reading JSON request.").build();
+            } finally {
+                Tracer.end(span);
+            }
+            if (req.getImage() == null) return Response.status(400).entity("No image to identify.").build();
+            lease.resize(heldBytes(req.getImage()));
+
+            SMIdentifyData result =
+                    services.identify(req.getImage(), Math.max(1, Math.min(limit, MAX_IDENTIFY_LIMIT)), deadline);
+            AuthResponseIdentify reply = new AuthResponseIdentify();
+            for (SMIdentifyData.Match match : result.getMatches()) {
+                reply.addCandidate(new AuthResponseIdentify.Candidate(match.getInternalID(), match.getConfidence(),
+                                                                      match.getFACIDs()));
+            }
+            reply.setPartial(result.isPartial());
+            reply.setHTTPStatusCode(200);
+
+            span = Tracer.start("serialize");
+            try {
+                return Response.status(reply.getHTTPStatusCode()).entity(mapper.writeValueAsString(reply)).build();
+            } catch (JsonProcessingException e) {
+                System.out.println("/identify: Error producing JSON reply: " + e.getMessage());
+                e.printStackTrace();
+                return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("tater/identify: Error producing JSON reply.").build();
+            } finally {
+                Tracer.end(span);
+            }
+        } finally {
+            lease.release();
+            Tracer.finish(trace);
         }
-        System.out.println("UserId: " + req.getInternalID());
-        System.out.println("ImageId: " + req.getImage().getImageID());
-        System.out.println("ImageB64: " + DatatypeConverter.printBase64Binary(req.getImage().getImageBinary()));
+    }
 
-        // Dummy list until spec is fixed to include FacilitatorIDs
-        List<FacilitatorID> dummy = new ArrayList<FacilitatorID>();
+    /**
+     * Exposes a batch verification function through which the Authentication Server can verify many faces in a single
+     * round trip. The request body is a stream of verification requests, one JSON object per line, in the same format
+     * accepted by /verify. Requests are verified concurrently and each reply is written back as its own line as soon
+     * as it is ready, so replies do not necessarily arrive in request order; each one carries the number of the line
+     * it answers as <code>Line</code>, counting from 1. Lines that cannot be read or admitted are answered with an
+     * error object naming the offending line. Verifications run on workers shared by every batch; see BatchVerifier.
+     * @param concurrency The maximum number of requests to verify at once. Capped by the
+     *                    <code>tater.batchMaxConcurrency</code> system property.
+     * @param JSON A stream of newline-delimited JSON verification requests.
+     * @return An HTTP response streaming newline-delimited AuthResponseVerify objects.
+     */
+    @POST
+    @Path("/verify/batch")
+    @Consumes({BatchVerifier.NDJSON, MediaType.APPLICATION_JSON})
+    @Produces(BatchVerifier.NDJSON)
+    public Response verifyBatch(@QueryParam("concurrency") @DefaultValue("8") int concurrency, InputStream JSON) {
+        int limit = Math.max(1, Math.min(concurrency, Integer.getInteger("tater.batchMaxConcurrency", 32)));
+        ObjectMapper mapIn = this.mapper.copy();
+        mapIn.addMixIn(ImageData.class, MxImageDataAuthRequest.class);
+        return Response.ok(new BatchVerifier(this, mapIn, this.mapper, budget, JSON, limit)).build();
+    }
 
-        SMVerifyData result = services.verify(req.getInternalID(), dummy, req.getImage());
+    /**
+     * Runs a single parsed verification request through the ServiceManager.
+     * @param req A verification request from the Authentication Server.
+     * @param deadline When the reply is due.
+     * @return The reply to send back for this request.
+     */
+    AuthResponseVerify verifyRequest(AuthRequestVerify req, Deadline deadline) {
+        // requests written to the specification carry no FacilitatorIds; see the class description
+        List<FacilitatorID> FACIDs = req.getFACIDs();
+        if (FACIDs == null) FACIDs = new ArrayList<FacilitatorID>();
+
+        SMVerifyData result = services.verify(req.getInternalID(), FACIDs, req.getImage(), deadline);
         AuthResponseVerify reply = new AuthResponseVerify();
         reply.setInternalID(result.getInternalID());
         reply.setHTTPStatusCode(200);
         reply.setMatch(result.isMatch());
+        return reply;
+    }
+
+    /**
+     * Estimates the heap held on behalf of a request once its images have been decoded. Each image is counted twice:
+     * once for the byte array in ImageData and once for the copy the FR service SDKs make when posting it.
+     * @param images The decoded images carried by the request.
+     * @return The number of bytes the request should hold in the image budget.
+     */
+    static long heldBytes(List<ImageData> images) {
+        long total = 0;
+        if (images == null) return total;
+        for (ImageData img : images) {
+            total += heldBytes(img);
+        }
+        return total;
+    }
+
+    static long heldBytes(ImageData image) {
+        return image == null ? 0 : 2L * image.getImageSize();
+    }
 
-        return Response.status(reply.getHTTPStatusCode()).entity(reply).build();
+    /**
+     * Works out when a request's reply is due: the configured timeout from now, or sooner if the Authentication
+     * Server said it would not wait that long.
+     * @param deadlineMs The value of the deadline header, or a negative number if it was not sent.
+     */
+    Deadline deadline(long deadlineMs) {
+        Deadline configured = services.newDeadline();
+        return deadlineMs < 0 ? configured : configured.min(Deadline.after(deadlineMs));
+    }
+
+    /**
+     * Finishes recording a request, if anything is recording it, on the way out.
+     */
+    private static Response finish(RequestRecord record, Response response) {
+        if (record != null) record.finish(response.getStatus());
+        return response;
+    }
+
+    private static int sizeOf(List<FacilitatorID> FACIDs) {
+        return FACIDs == null ? 0 : FACIDs.size();
+    }
+
+    /**
+     * Builds the reply for a request that could not be admitted into the image budget.
+     * @param contentLength The declared size of the rejected request.
+     * @return 433 if the request could never fit in the budget, or 503 if the facilitator is just too busy right now.
+     */
+    private Response rejectOverBudget(long contentLength) {
+        if (contentLength > budget.getCapacity()) {
+            return Response.status(StatusCode.IMAGE_ERROR_FILE_TOO_LARGE.getHTTPCode())
+                    .entity("Request is larger than the image memory budget.").build();
+        }
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", 1)
+                .entity("Facilitator is at its image memory budget, try again later.").build();
+    }
+
+    /**
+     * Builds the reply for a request that did not declare its length, e.g. one sent with chunked encoding. Its body
+     * would be read into memory before its size was known, so it cannot be admitted into the image budget.
+     * @return 411 Length Required.
+     */
+    private static Response rejectUnknownLength() {
+        return Response.status(411).entity("Requests carrying images must declare their Content-Length.").build();
     }
 
     /**
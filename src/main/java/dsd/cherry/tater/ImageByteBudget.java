@@ -0,0 +1,127 @@
+package dsd.cherry.tater;
+
+/**
+ * Process-wide accounting of the image bytes held by requests that are currently being served. Every request that
+ * carries images must be admitted against the budget before its body is read, and must release its lease once the
+ * response has been produced. When the budget is exhausted new requests wait up to a configured time for room to free
+ * up and are rejected after that. Requests are admitted on their declared Content-Length, so those that do not declare
+ * one are refused before their body is read.
+ *
+ * The budget and the wait can be configured with the <code>tater.imageBudgetBytes</code> and
+ * <code>tater.imageBudgetWaitMs</code> system properties.
+ */
+public class ImageByteBudget {
+    private static final ImageByteBudget global =
+            new ImageByteBudget(Long.getLong("tater.imageBudgetBytes", 256L * 1024 * 1024),
+                                Long.getLong("tater.imageBudgetWaitMs", 2000));
+
+    private final long capacity;
+    private final long waitMillis;
+    private long inUse;
+
+    /**
+     * <b>Constructor.</b>
+     * @param capacity The maximum number of image bytes that may be held by in-flight requests at once.
+     * @param waitMillis How long a request may wait for room in the budget before it is rejected.
+     */
+    public ImageByteBudget(long capacity, long waitMillis) {
+        this.capacity = capacity;
+        this.waitMillis = waitMillis;
+        this.inUse = 0;
+    }
+
+    /**
+     * @return The budget shared by every FacilitatorService instance in this process.
+     */
+    public static ImageByteBudget getGlobal() { return global; }
+
+    public long getCapacity() { return capacity; }
+
+    public synchronized long getInUse() { return inUse; }
+
+    /**
+     * Reserves room in the budget, waiting for other requests to release theirs if necessary.
+     * @param bytes The number of bytes to reserve. Requests larger than the whole budget are never admitted.
+     * @return A lease that must be released when the request completes, or null if the bytes could not be reserved
+     *         within the configured wait.
+     */
+    public synchronized Lease acquire(long bytes) {
+        bytes = Math.max(0, bytes);
+        return reserve(bytes) ? new Lease(bytes) : null;
+    }
+
+    private synchronized boolean reserve(long bytes) {
+        if (bytes > capacity) return false;
+
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (inUse + bytes > capacity) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        inUse += bytes;
+        return true;
+    }
+
+    private synchronized void adjust(long delta) {
+        inUse += delta;
+        if (delta < 0) notifyAll();
+    }
+
+    /**
+     * A reservation held by a single request. Once a request has been admitted its lease can be resized to the actual
+     * number of bytes it holds without waiting, so a request is never stalled part way through.
+     */
+    public class Lease {
+        private long bytes;
+        private boolean released;
+
+        private Lease(long bytes) {
+            this.bytes = bytes;
+            this.released = false;
+        }
+
+        public synchronized long getBytes() { return bytes; }
+
+        /**
+         * Replaces the reserved amount with the number of bytes the request actually holds. Growing a lease may take
+         * the budget above its capacity; later requests are then held back until it drops again.
+         * @param newBytes The number of bytes now held by the request.
+         */
+        public synchronized void resize(long newBytes) {
+            if (released) return;
+            newBytes = Math.max(0, newBytes);
+            adjust(newBytes - bytes);
+            bytes = newBytes;
+        }
+
+        /**
+         * Reserves more room for a request whose size was not known when it was admitted, waiting for other requests
+         * to release theirs if necessary, as acquire() does.
+         * @param more The number of bytes to add to the lease.
+         * @return Whether the bytes could be reserved within the configured wait. If not the lease is left unchanged.
+         */
+        public synchronized boolean grow(long more) {
+            if (released) return false;
+            more = Math.max(0, more);
+            if (!reserve(more)) return false;
+            bytes += more;
+            return true;
+        }
+
+        /**
+         * Returns the reserved bytes to the budget. Releasing a lease more than once has no effect.
+         */
+        public synchronized void release() {
+            if (released) return;
+            released = true;
+            adjust(-bytes);
+            bytes = 0;
+        }
+    }
+}
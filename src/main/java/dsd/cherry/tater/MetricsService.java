@@ -0,0 +1,78 @@
+package dsd.cherry.tater;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import dsd.cherry.tater.frservices.GroupTrainingScheduler;
+import dsd.cherry.tater.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes the facilitator's metrics for scraping by Prometheus: the latency, errors, timeouts and calls in flight of
+ * every service operation, and its cache hits once it has had any, how much of the image memory budget is in use, and
+ * how fresh each group a service retrains in the background is.
+ */
+@Path("/metrics")
+public class MetricsService {
+    static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    @GET
+    @Produces(PROMETHEUS_TEXT)
+    public Response metrics() {
+        StreamingOutput body = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException, WebApplicationException {
+                Writer out = new OutputStreamWriter(output, "UTF-8");
+                MetricsRegistry.getGlobal().writePrometheus(out);
+
+                ImageByteBudget budget = ImageByteBudget.getGlobal();
+                out.write("# HELP tater_image_budget_bytes Bytes of decoded images the facilitator may hold.\n");
+                out.write("# TYPE tater_image_budget_bytes gauge\n");
+                out.write("tater_image_budget_bytes " + budget.getCapacity() + "\n");
+                out.write("# HELP tater_image_budget_in_use_bytes Bytes of decoded images currently held.\n");
+                out.write("# TYPE tater_image_budget_in_use_bytes gauge\n");
+                out.write("tater_image_budget_in_use_bytes " + budget.getInUse() + "\n");
+
+                writeGroupTraining(out);
+                out.flush();
+            }
+        };
+        return Response.ok(body).build();
+    }
+
+    private static void writeGroupTraining(Writer out) throws IOException {
+        List<GroupTrainingScheduler> schedulers = GroupTrainingScheduler.getSchedulers();
+        out.write("# HELP tater_group_last_refreshed_seconds When the group's model was last refreshed, as a Unix "
+                + "time; 0 if not since startup.\n");
+        out.write("# TYPE tater_group_last_refreshed_seconds gauge\n");
+        for (GroupTrainingScheduler scheduler : schedulers) {
+            for (Map.Entry<String,Long> group : scheduler.getLastRefreshed().entrySet()) {
+                out.write("tater_group_last_refreshed_seconds{" + labels(scheduler, group.getKey()) + "} "
+                        + group.getValue() / 1000.0 + "\n");
+            }
+        }
+        out.write("# HELP tater_group_stale Whether the group has changes its model does not have yet.\n");
+        out.write("# TYPE tater_group_stale gauge\n");
+        for (GroupTrainingScheduler scheduler : schedulers) {
+            for (String group : scheduler.getLastRefreshed().keySet()) {
+                out.write("tater_group_stale{" + labels(scheduler, group) + "} "
+                        + (scheduler.isStale(group) ? 1 : 0) + "\n");
+            }
+        }
+    }
+
+    private static String labels(GroupTrainingScheduler scheduler, String group) {
+        return "service=\"" + MetricsRegistry.escape(scheduler.getServiceName()) + "\",account=\""
+                + MetricsRegistry.escape(scheduler.getAccount()) + "\",group=\"" + MetricsRegistry.escape(group) + "\"";
+    }
+}
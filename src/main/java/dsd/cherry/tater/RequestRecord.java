@@ -0,0 +1,70 @@
+package dsd.cherry.tater;
+
+import dsd.cherry.tater.capture.CapturedRequest;
+import dsd.cherry.tater.capture.TrafficCapture;
+import dsd.cherry.tater.jfr.FacilitatorRequestEvent;
+import dsd.cherry.tater.types.ImageData;
+
+import java.util.List;
+
+/**
+ * What the facilitator records about a /train, /train/stream or /verify request besides its trace: the request's
+ * flight recorder event and its entry in the traffic capture. begin() returns null when neither is wanted, so that
+ * requests pay nothing for them in the usual case. A /train/stream request is captured as the /train request it
+ * carries, and so is replayed as one.
+ */
+final class RequestRecord {
+    private final FacilitatorRequestEvent event;
+    private final TrafficCapture capture;
+    private final CapturedRequest captured;
+
+    private RequestRecord(FacilitatorRequestEvent event, TrafficCapture capture, CapturedRequest captured) {
+        this.event = event;
+        this.capture = capture;
+        this.captured = captured;
+    }
+
+    /**
+     * Starts recording a request as it arrives.
+     * @param endpoint The path requested; one of CapturedRequest.TRAIN or VERIFY.
+     * @param payloadBytes The size of the request body, or -1 if unknown.
+     * @return The record, or null if nothing is recording requests.
+     */
+    static RequestRecord begin(byte endpoint, long payloadBytes) {
+        return begin(endpoint, endpoint == CapturedRequest.TRAIN ? "/train" : "/verify", payloadBytes);
+    }
+
+    /**
+     * Starts recording a request that arrived at a path other than its endpoint's own, such as /train/stream.
+     * @param endpoint The endpoint the request is captured as; one of CapturedRequest.TRAIN or VERIFY.
+     * @param path The path requested.
+     * @param payloadBytes The size of the request body, or -1 if unknown.
+     * @return The record, or null if nothing is recording requests.
+     */
+    static RequestRecord begin(byte endpoint, String path, long payloadBytes) {
+        FacilitatorRequestEvent event = FacilitatorRequestEvent.begin(path, payloadBytes);
+        TrafficCapture capture = TrafficCapture.getGlobal();
+        if (event == null && capture == null) return null;
+        return new RequestRecord(event, capture, capture == null ? null : capture.begin(endpoint));
+    }
+
+    /**
+     * Records what the request asked for once it has been parsed.
+     * @param userID The Authentication Server's ID for the person.
+     * @param FACIDCount The number of FacilitatorIDs the request carried.
+     * @param images The images the request carried; may be null.
+     */
+    void setRequest(String userID, int FACIDCount, List<ImageData> images) {
+        if (event != null) event.setRequest(userID, images == null ? 0 : images.size());
+        if (capture != null) capture.setRequest(captured, userID, FACIDCount, images);
+    }
+
+    /**
+     * Finishes recording a request on its way out.
+     * @param status The HTTP status of the reply.
+     */
+    void finish(int status) {
+        if (event != null) event.finish(status);
+        if (capture != null) capture.finish(captured, status);
+    }
+}
@@ -0,0 +1,202 @@
+package dsd.cherry.tater;
+
+import dsd.cherry.tater.frservices.FRServiceHandler;
+import dsd.cherry.tater.frservices.FacePPCommunicator;
+import dsd.cherry.tater.frservices.LocalEmbeddingHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps a ServiceManager's services in line with a configuration file, reloading it whenever it changes so that
+ * services can be added, removed or re-keyed without a redeploy. The file is a properties file listing the services
+ * to run and the settings of each, prefixed with its name:
+ *
+ * <pre>
+ *     services=facepp
+ *     facepp.apiKey=key1,key2
+ *     facepp.apiSecret=secret1,secret2
+ *     facepp.url=http://localhost:8090/
+ *     facepp.cost=1
+ * </pre>
+ *
+ * <code>url</code> and <code>cost</code> are optional. The on-CPU service is named <code>local</code> and takes the
+ * optional settings of LocalEmbeddingHandler.fromSettings(); without a templateDir, rebuilding it, like restarting the
+ * facilitator, loses the templates it was trained with. Only services whose settings changed are rebuilt; the others
+ * keep running untouched. A service whose new settings cannot be used, including an unreadable cost, keeps its old
+ * ones, and a reload that fails part way leaves the watcher watching for the next change.
+ */
+public class ServiceConfigWatcher implements Runnable {
+    private final ServiceManager manager;
+    private final File file;
+    // service name -> the settings it is running with
+    private Map<String,Properties> loaded = new HashMap<String, Properties>();
+
+    public ServiceConfigWatcher(ServiceManager manager, File file) {
+        this.manager = manager;
+        this.file = file.getAbsoluteFile();
+    }
+
+    /**
+     * Reads the file and applies whatever changed since it was last read.
+     * @throws IOException If the file cannot be read; the services are left as they were.
+     */
+    public synchronized void reload() throws IOException {
+        Properties all = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            all.load(in);
+        } finally {
+            in.close();
+        }
+
+        Map<String,Properties> next = new HashMap<String, Properties>();
+        List<FRServiceHandler> added = new ArrayList<FRServiceHandler>();
+        for (String name : all.getProperty("services", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+            Properties settings = settingsOf(all, name);
+            if (settings.equals(loaded.get(name))) {
+                next.put(name, settings);
+                continue;
+            }
+            FRServiceHandler handler = build(name, settings);
+            if (handler == null) {
+                if (loaded.containsKey(name)) next.put(name, loaded.get(name));
+                continue;
+            }
+            String cost = settings.getProperty("cost");
+            if (cost != null) manager.setServiceCost(name, Double.parseDouble(cost));
+            added.add(handler);
+            next.put(name, settings);
+        }
+
+        List<String> removed = new ArrayList<String>();
+        for (String name : loaded.keySet()) {
+            if (!next.containsKey(name)) removed.add(name);
+        }
+
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            System.out.println("Reloading services from " + file + ": " + added.size() + " added or changed, "
+                    + removed.size() + " removed.");
+            manager.updateServices(added, removed);
+        }
+        loaded = next;
+    }
+
+    /**
+     * Starts watching the file on a background thread.
+     */
+    public void start() {
+        Thread watcher = new Thread(this, "tater-config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            WatchService watch = FileSystems.getDefault().newWatchService();
+            // editors often save by writing a new file and renaming it over the old one, so watch the directory
+            Path directory = file.getParentFile().toPath();
+            directory.register(watch, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = watch.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object changedPath = event.context();
+                    if (changedPath != null && changedPath.toString().equals(file.getName())) changed = true;
+                }
+                key.reset();
+                if (!changed) continue;
+                try {
+                    reload();
+                } catch (IOException e) {
+                    System.out.println("Error reloading service configuration " + file + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // keep watching; the next save may fix whatever this one broke
+                    System.out.println("Error applying service configuration " + file + ": " + e);
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot watch service configuration " + file + ": " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Properties settingsOf(Properties all, String name) {
+        Properties settings = new Properties();
+        String prefix = name + ".";
+        for (String key : all.stringPropertyNames()) {
+            if (key.startsWith(prefix)) settings.setProperty(key.substring(prefix.length()), all.getProperty(key));
+        }
+        return settings;
+    }
+
+    /**
+     * Builds the handler for a service from its settings.
+     * @return The handler, or null if the service is unknown or its settings are incomplete or unreadable.
+     */
+    private static FRServiceHandler build(String name, Properties settings) {
+        String cost = settings.getProperty("cost");
+        if (cost != null) {
+            double value;
+            try {
+                value = Double.parseDouble(cost);
+            } catch (NumberFormatException e) {
+                value = Double.NaN;
+            }
+            if (!(value >= 0) || Double.isInfinite(value)) {
+                System.out.println("Service " + name + " has an unreadable cost \"" + cost + "\", skipping it.");
+                return null;
+            }
+        }
+        if (name.equals("facepp")) {
+            String apiKey = settings.getProperty("apiKey");
+            String apiSecret = settings.getProperty("apiSecret");
+            if (apiKey == null || apiSecret == null) {
+                System.out.println("Service facepp needs both an apiKey and an apiSecret, skipping it.");
+                return null;
+            }
+            try {
+                return new FacePPCommunicator(apiKey, apiSecret,
+                        settings.getProperty("url", System.getProperty("tater.facepp.url")));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Service facepp is misconfigured, skipping it: " + e.getMessage());
+                return null;
+            }
+        }
+        if (name.equals("local")) {
+            try {
+                return LocalEmbeddingHandler.fromSettings(settings);
+            } catch (NumberFormatException e) {
+                System.out.println("Service local has an unreadable setting, skipping it: " + e.getMessage());
+                return null;
+            } catch (IOException e) {
+                System.out.println("Service local cannot open its templates, skipping it: " + e.getMessage());
+                return null;
+            } catch (IllegalStateException e) {
+                System.out.println("Service local cannot run here, skipping it: " + e.getMessage());
+                return null;
+            }
+        }
+        System.out.println("No service named " + name + ", skipping it.");
+        return null;
+    }
+}
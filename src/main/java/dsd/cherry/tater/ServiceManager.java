@@ -1,37 +1,344 @@
 package dsd.cherry.tater;
 
+import dsd.cherry.tater.dedup.ImageFingerprint;
+import dsd.cherry.tater.dedup.NearDuplicateCache;
+import dsd.cherry.tater.frservices.FRServiceHandler;
+import dsd.cherry.tater.frservices.FacePPCommunicator;
+import dsd.cherry.tater.frservices.FRServiceHandlerIdentifyResponse;
+import dsd.cherry.tater.frservices.FRServiceHandlerTrainResponse;
+import dsd.cherry.tater.frservices.FRServiceHandlerVerifyResponse;
+import dsd.cherry.tater.frservices.LocalEmbeddingHandler;
+import dsd.cherry.tater.frservices.TrainProgressListener;
+import dsd.cherry.tater.jfr.FanOutEvent;
+import dsd.cherry.tater.jfr.HandlerCallEvent;
+import dsd.cherry.tater.metrics.OperationMetrics;
+import dsd.cherry.tater.tracing.Tracer;
 import dsd.cherry.tater.types.FacilitatorID;
 import dsd.cherry.tater.types.ImageData;
+import dsd.cherry.tater.types.SMIdentifyData;
 import dsd.cherry.tater.types.SMTrainData;
 import dsd.cherry.tater.types.SMVerifyData;
+import dsd.cherry.tater.util.Deadline;
+import dsd.cherry.tater.util.HedgeBudget;
+import dsd.cherry.tater.util.TopK;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by James Beach on 4/30/2016.
  */
 public class ServiceManager {
     private int timeoutSec;
-    private Map<String,FRServiceHandler> services;
+    // replaced whole on every change, so requests read it without locking and see one consistent set of services
+    private final AtomicReference<Map<String,FRServiceHandler>> services =
+            new AtomicReference<Map<String,FRServiceHandler>>(Collections.<String,FRServiceHandler>emptyMap());
+    private final Map<String,Double> costs = new ConcurrentHashMap<String, Double>();
+    private boolean cascade = false;
+    private float cascadeBand = 10;
+    private int quorum = 0;
+    private double hedgeRatio = 0;
+    private int hedgeMinSamples = 100;
+    private final Map<String,FRServiceHandler> hedgeTargets = new ConcurrentHashMap<String, FRServiceHandler>();
+    private final ConcurrentMap<String,HedgeBudget> hedgeBudgets = new ConcurrentHashMap<String, HedgeBudget>();
+    private ExecutorService fanOut;
+    private volatile NearDuplicateCache nearDuplicates;
 
     public ServiceManager(int timeoutSeconds) {
         this.timeoutSec = timeoutSeconds;
-        services = new HashMap<String, FRServiceHandler>();
+    }
+
+    /**
+     * Builds a ServiceManager with the services configured through system properties:
+     * <code>tater.timeoutSec</code> for the deadline of requests that do not bring one, <code>tater.facepp.apiKey</code> and
+     * <code>tater.facepp.apiSecret</code> to enable FacePP, <code>tater.verify.mode=cascade</code> and
+     * <code>tater.cascade.band</code> to verify in cascade mode, <code>tater.verify.mode=quorum</code> and
+     * <code>tater.quorum.required</code> to verify in quorum mode, <code>tater.cost.&lt;service&gt;</code> for
+     * the relative cost of calling each service, <code>tater.hedge.ratio</code> and <code>tater.hedge.minSamples</code>
+     * for hedging, and <code>tater.facepp.hedge.apiKey</code>, <code>apiSecret</code> and <code>url</code> for a
+     * second FacePP account or endpoint to send hedges to. <code>tater.local.enabled=true</code> adds the on-CPU
+     * LocalEmbeddingHandler, with the settings of LocalEmbeddingHandler.fromSettings() prefixed
+     * <code>tater.local.</code>, e.g. <code>tater.local.cutoff</code> and <code>tater.local.templateDir</code>.
+     * The facilitator fails to start if it is enabled in cluster mode, where it would answer from one node's templates.
+     * <code>tater.dedup.enabled=true</code> recognises near-duplicate images, with
+     * <code>tater.dedup.maxDistance</code> (default 6 bits), <code>tater.dedup.ttlMs</code> (default 60000) and
+     * <code>tater.dedup.users</code> (default 100000) as its settings, and
+     * <code>tater.dedup.rememberRejections=true</code> to reject near-duplicates of recently rejected verifies
+     * without asking the services; see setNearDuplicates().
+     * <code>tater.fanOut.threads</code> bounds the pool that service calls fan out on; see getFanOut(). If
+     * <code>tater.services.file</code> names a service configuration file, the services are loaded from it instead
+     * and reloaded whenever it changes; see ServiceConfigWatcher.
+     * @return The configured ServiceManager.
+     */
+    public static ServiceManager fromSystemProperties() {
+        ServiceManager manager = new ServiceManager(Integer.getInteger("tater.timeoutSec", 10));
+        String apiKey = System.getProperty("tater.facepp.apiKey");
+        String servicesFile = System.getProperty("tater.services.file");
+        if (servicesFile != null) {
+            ServiceConfigWatcher watcher = new ServiceConfigWatcher(manager, new File(servicesFile));
+            try {
+                watcher.reload();
+            } catch (IOException e) {
+                System.out.println("Error reading service configuration " + servicesFile + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+            watcher.start();
+        }
+        else {
+            if (apiKey != null) {
+                manager.addService(new FacePPCommunicator(apiKey, System.getProperty("tater.facepp.apiSecret")));
+            }
+            if (Boolean.getBoolean("tater.local.enabled")) {
+                Properties settings = new Properties();
+                for (String key : System.getProperties().stringPropertyNames()) {
+                    if (key.startsWith("tater.local.")) {
+                        settings.setProperty(key.substring("tater.local.".length()), System.getProperty(key));
+                    }
+                }
+                try {
+                    manager.addService(LocalEmbeddingHandler.fromSettings(settings));
+                } catch (IOException e) {
+                    System.out.println("Error opening the local service's templates, skipping it: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+        String mode = System.getProperty("tater.verify.mode", "all");
+        if (mode.equals("cascade")) {
+            manager.setCascade(true, Float.parseFloat(System.getProperty("tater.cascade.band", "10")));
+        }
+        else if (mode.equals("quorum")) {
+            manager.setQuorum(Integer.getInteger("tater.quorum.required", -1));
+        }
+        for (String name : manager.getServiceNames()) {
+            String cost = System.getProperty("tater.cost." + name);
+            if (cost != null) manager.setServiceCost(name, Double.parseDouble(cost));
+        }
+        if (Boolean.getBoolean("tater.dedup.enabled")) {
+            manager.setNearDuplicates(new NearDuplicateCache(Integer.getInteger("tater.dedup.maxDistance", 6),
+                    Long.getLong("tater.dedup.ttlMs", 60000), Integer.getInteger("tater.dedup.users", 100000),
+                    Boolean.getBoolean("tater.dedup.rememberRejections")));
+        }
+        manager.setHedging(Double.parseDouble(System.getProperty("tater.hedge.ratio", "0")),
+                           Integer.getInteger("tater.hedge.minSamples", 100));
+        String hedgeKey = System.getProperty("tater.facepp.hedge.apiKey");
+        if (apiKey != null && hedgeKey != null) {
+            manager.setHedgeTarget(new FacePPCommunicator(hedgeKey,
+                    System.getProperty("tater.facepp.hedge.apiSecret"),
+                    System.getProperty("tater.facepp.hedge.url", System.getProperty("tater.facepp.url"))));
+        }
+        return manager;
     }
 
     public int getTimeout() { return timeoutSec; }
     public void setTimeout(int timeoutSeconds) { this.timeoutSec = timeoutSeconds; }
 
+    /**
+     * @return The deadline for a request that did not bring its own: the timeout from now.
+     */
+    public Deadline newDeadline() { return Deadline.after(timeoutSec * 1000L); }
+
+    /**
+     * Adds a service straight away, without warming it up, replacing any service of the same name.
+     */
     public void addService(FRServiceHandler service) {
         service.setTimeout(timeoutSec);
-        services.put(service.getFRServiceName(), service);
+        publish(Collections.singletonList(service), Collections.<String>emptyList());
+    }
+
+    public void removeService(String name) {
+        publish(Collections.<FRServiceHandler>emptyList(), Collections.singletonList(name));
     }
 
+    /**
+     * Changes the services while requests are running. The added services are warmed up first and then swapped in
+     * together with the removals in a single step, so each request sees either the old services or the new ones.
+     * Requests already running on a removed or replaced service are left to finish before it is shut down.
+     * @param added Services to add, replacing any service of the same name.
+     * @param removed Names of services to remove.
+     */
+    public void updateServices(List<FRServiceHandler> added, Collection<String> removed) {
+        for (FRServiceHandler service : added) {
+            service.setTimeout(timeoutSec);
+            service.warmUp();
+        }
+        publish(added, removed);
+    }
+
+    private void publish(List<FRServiceHandler> added, Collection<String> removed) {
+        Map<String,FRServiceHandler> current, next;
+        do {
+            current = services.get();
+            next = new HashMap<String, FRServiceHandler>(current);
+            for (String name : removed) {
+                next.remove(name);
+            }
+            for (FRServiceHandler service : added) {
+                next.put(service.getFRServiceName(), service);
+            }
+        } while (!services.compareAndSet(current, Collections.unmodifiableMap(next)));
+
+        for (FRServiceHandler service : current.values()) {
+            if (next.get(service.getFRServiceName()) != service) drain(service);
+        }
+    }
+
+    /**
+     * Shuts a removed service down once the calls running on it have finished, or after the timeout if they do not.
+     * A request that looked the service up just before it was removed may still be about to call it, so the service
+     * is always given at least one poll interval.
+     */
+    private void drain(final FRServiceHandler service) {
+        getFanOut().execute(new Runnable() {
+            @Override
+            public void run() {
+                long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSec);
+                try {
+                    do {
+                        TimeUnit.MILLISECONDS.sleep(50);
+                    } while (service.getCallsInFlight() > 0 && System.nanoTime() - giveUp < 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (service.getCallsInFlight() > 0) {
+                    System.out.println("Shutting down " + service.getFRServiceName() + " with "
+                            + service.getCallsInFlight() + " calls still running.");
+                }
+                service.shutdown();
+            }
+        });
+    }
+
+    public List<String> getServiceNames() { return new ArrayList<String>(services.get().keySet()); }
+
+    /**
+     * Switches cascade verification on or off. In cascade mode a verify asks the person's services one at a time,
+     * cheapest first, and stops as soon as a service answers with a confidence further than the band from its cutoff.
+     * Only answers close to the cutoff are escalated to the next service.
+     * @param enabled Whether to verify in cascade mode.
+     * @param band How close to a service's cutoff, in confidence points, an answer must be to escalate.
+     */
+    public void setCascade(boolean enabled, float band) {
+        this.cascade = enabled;
+        this.cascadeBand = band;
+        if (enabled) this.quorum = 0;
+    }
+
+    /**
+     * Recognises images that were seen recently, by their perceptual hashes, so that near-duplicate training images
+     * are only sent to the services once, and if the cache remembers rejections, a verify of a near-duplicate of a
+     * recently rejected image is rejected without asking any service. Training images are fingerprinted in parallel
+     * on the fan-out pool; if rejections are remembered, every verify also pays for decoding its image on the request
+     * thread. Cache hits are counted against the verify metrics of each service that was not asked.
+     * @param nearDuplicates The cache of recent images, or null to switch recognising them off.
+     */
+    public void setNearDuplicates(NearDuplicateCache nearDuplicates) { this.nearDuplicates = nearDuplicates; }
+
+    /**
+     * Switches quorum verification on. In quorum mode a verify asks all of the person's services at once and each
+     * service that answers votes for a match if it recognised the person with a confidence at or above its cutoff.
+     * The verify returns as soon as the required number of services have voted for a match, or as soon as too few
+     * services remain outstanding for that to happen, and the services still outstanding are cancelled.
+     * @param required The number of services that must vote for a match, capped at the number the person has; 0 to
+     *                 switch quorum mode off, or a negative number for a majority of the person's services.
+     */
+    public void setQuorum(int required) {
+        this.quorum = required;
+        if (required != 0) this.cascade = false;
+    }
+
+    /**
+     * Configures hedging of verify calls. When a service has not answered a verify by its 95th percentile verify
+     * latency, a second identical request is sent, to the service's hedge target if it has one, and whichever
+     * attempt answers first is used. Hedges are capped at the given share of each service's verifies, so hedging can
+     * add at most that much load to a service that is slow because it is struggling.
+     *
+     * Hedging is off by default (<code>tater.hedge.ratio=0</code>). With it on, once a service has minSamples
+     * answers every verify of it runs on the fan-out pool, so that the request thread is free to send the hedge; that
+     * costs a thread handoff per service call even when no hedge is sent. The calls are still recorded in the
+     * request's trace.
+     * @param ratio The largest share of verifies that may be hedged, e.g. 0.05; 0 switches hedging off.
+     * @param minSamples How many verifies a service must have answered before its latency is trusted for hedging.
+     */
+    public void setHedging(double ratio, int minSamples) {
+        this.hedgeRatio = ratio;
+        this.hedgeMinSamples = minSamples;
+        hedgeBudgets.clear();
+    }
+
+    /**
+     * Sends a service's hedged verifies to another handler, e.g. one using a different endpoint or API key. The
+     * handler must reach the same people as the service it stands in for, and share its name.
+     * @param target The handler to send hedges to; replaces any earlier target for the service of the same name.
+     */
+    public void setHedgeTarget(FRServiceHandler target) {
+        target.setTimeout(timeoutSec);
+        hedgeTargets.put(target.getFRServiceName(), target);
+    }
+
+    /**
+     * @param name The name of a service.
+     * @param cost What a call to the service costs relative to other services; 1 if never set.
+     */
+    public void setServiceCost(String name, double cost) { costs.put(name, cost); }
+
     public SMTrainData train(final String internalID, List<FacilitatorID> FACIDs, List<ImageData> images) {
+        return train(internalID, FACIDs, images, null, newDeadline());
+    }
+
+    public SMTrainData train(final String internalID,
+                             List<FacilitatorID> FACIDs,
+                             List<ImageData> images,
+                             TrainProgressListener listener) {
+        return train(internalID, FACIDs, images, listener, newDeadline());
+    }
+
+    /**
+     * Trains every service, reporting each image and each service's training status as soon as it is known.
+     * @param internalID The Authentication Server's ID for the person.
+     * @param FACIDs The person's IDs at the services that already know them.
+     * @param images The images to train with.
+     * @param listener Receives progress as training proceeds; may be null.
+     * @param deadline When to give up; services not yet trained by then are skipped and the person is reported as
+     *                 not trained.
+     * @return The aggregated training result.
+     */
+    public SMTrainData train(final String internalID,
+                             List<FacilitatorID> FACIDs,
+                             List<ImageData> images,
+                             TrainProgressListener listener,
+                             Deadline deadline) {
         boolean trained = true;
+        List<ImageData> all = images;
+        NearDuplicateCache.Enrollment enrollment = null;
+        if (nearDuplicates != null) {
+            int span = Tracer.start("dedup");
+            enrollment = nearDuplicates.enroll(internalID, images, NearDuplicateCache.fingerprint(images, getFanOut()));
+            images = enrollment.getDistinct();
+            Tracer.end(span);
+        }
 
         Map<String,String> FRPersonIDs = new HashMap<String, String>();
 
@@ -41,66 +348,561 @@ public class ServiceManager {
 
         List<FRServiceHandlerTrainResponse> responses = new ArrayList<FRServiceHandlerTrainResponse>();
 
-        for (Map.Entry<String,FRServiceHandler> s : services.entrySet()) {
-            FRServiceHandlerTrainResponse response;
-            if (FRPersonIDs.containsKey(s.getKey())) {
-                response = s.getValue().train(FRPersonIDs.get(s.getKey()), images);
+        long payloadBytes = imageBytes(images);
+        FanOutEvent event = FanOutEvent.begin("train", internalID, images.size(), payloadBytes);
+        int responded = 0;
+
+        for (Map.Entry<String,FRServiceHandler> s : services.get().entrySet()) {
+            if (deadline.isExpired()) {
+                System.out.println("train: Deadline passed before training " + s.getKey() + ", skipping it.");
+                trained = false;
+                continue;
             }
-            else {
-                response = s.getValue().train(internalID, images);
+            String FRPersonID = FRPersonIDs.get(s.getKey());
+            List<ImageData> sent = images;
+            if (enrollment != null) {
+                sent = enrollment.imagesFor(FRPersonID != null && s.getValue().addsToExistingPerson());
             }
+            FRServiceHandlerTrainResponse response = trainService(s.getValue(), internalID, FRPersonID, sent,
+                    sent == images ? payloadBytes : imageBytes(sent), listener, deadline);
+            if (response.getServiceResponded()) ++responded;
+            responses.add(response);
+            if (listener != null) listener.serviceTrained(response);
         }
 
         if (responses.isEmpty()) {
-            return new SMTrainData(internalID, trained = false, responses, images);
+            trained = false;
         }
 
         for (FRServiceHandlerTrainResponse r : responses) {
             trained = trained && r.getTrainingStatus();
         }
 
-        return new SMTrainData(internalID, trained, responses, images);
+        if (event != null) event.finish(responses.size(), responded, trained ? "trained" : "not trained");
+        if (enrollment != null) enrollment.finish(trained);
+        return new SMTrainData(internalID, trained, responses, all);
+    }
+
+    /**
+     * Trains one service, recording the call in its metrics, the current trace and the flight recorder.
+     */
+    private FRServiceHandlerTrainResponse trainService(FRServiceHandler handler,
+                                                       String internalID,
+                                                       String FRPersonID,
+                                                       List<ImageData> images,
+                                                       long payloadBytes,
+                                                       TrainProgressListener listener,
+                                                       Deadline deadline) {
+        OperationMetrics metrics = handler.getTrainMetrics();
+        HandlerCallEvent event =
+                HandlerCallEvent.begin(handler.getFRServiceName(), "train", internalID, images.size(), payloadBytes);
+        int span = Tracer.start(metrics);
+        Deadline previous = Deadline.attach(deadline);
+        handler.callStarted();
+        long start = metrics.start();
+        FRServiceHandlerTrainResponse response;
+        try {
+            response = handler.train(internalID, FRPersonID, images, listener);
+        } catch (RuntimeException e) {
+            metrics.error(start);
+            if (event != null) event.finish(e.getClass().getSimpleName());
+            throw e;
+        } finally {
+            handler.callFinished();
+            Deadline.attach(previous);
+            Tracer.end(span);
+        }
+        if (response.getServiceResponded()) metrics.success(start);
+        else metrics.error(start);
+        if (event != null) event.finish(response.getServiceResponded() ? "responded" : "no response");
+        return response;
     }
 
     public SMVerifyData verify(final String internalID, List<FacilitatorID> FACIDs, ImageData image) {
-        boolean match = false;
-        float confidence = 0, cutoff = 0;
-        int totalServices = services.size();
-        int totalResponded = 0;
-        boolean consensus = true;
-        List<FRServiceHandlerVerifyResponse> inConsensus = new ArrayList<FRServiceHandlerVerifyResponse>();
-        List<FRServiceHandlerVerifyResponse> notInConsensus = new ArrayList<FRServiceHandlerVerifyResponse>();
-
-        for (FacilitatorID facID : FACIDs) {
+        return verify(internalID, FACIDs, image, newDeadline());
+    }
+
+    /**
+     * Verifies a face against the person's ID at each service. By default every service is asked and their
+     * confidences are averaged; in cascade mode services are asked one at a time, cheapest first, until one is
+     * confident either way; and in quorum mode services are asked at once until enough of them agree.
+     * @param internalID The Authentication Server's ID for the person.
+     * @param FACIDs The person's IDs at each service.
+     * @param image The face to verify.
+     * @param deadline When to give up; the result is then made from whichever services had answered.
+     * @return The aggregated verification result.
+     */
+    public SMVerifyData verify(final String internalID, List<FacilitatorID> FACIDs, ImageData image, Deadline deadline) {
+        ImageFingerprint fingerprint = null;
+        NearDuplicateCache nearDuplicates = this.nearDuplicates;
+        if (nearDuplicates != null && nearDuplicates.remembersRejections() && image != null) {
+            int span = Tracer.start("dedup");
+            fingerprint = ImageFingerprint.of(image.getImageBinary());
+            SMVerifyData seen = nearDuplicates.verified(internalID, FACIDs, fingerprint);
+            Tracer.end(span);
+            if (seen != null) {
+                Map<String,FRServiceHandler> registry = services.get();
+                for (FacilitatorID facID : FACIDs) {
+                    FRServiceHandler handler = registry.get(facID.getFRService());
+                    if (handler != null) handler.getVerifyMetrics().cacheHit();
+                }
+                return seen;
+            }
+        }
+        SMVerifyData result = quorum != 0
+                ? verifyQuorum(internalID, FACIDs, image, deadline)
+                : verifyInTurn(internalID, FACIDs, image, deadline);
+        // only clear answers are worth repeating; a split or partial one should be asked again
+        if (fingerprint != null && result.isConsensus() && result.getTotalResponsed() > 0) {
+            nearDuplicates.rememberVerify(internalID, FACIDs, fingerprint, result);
+        }
+        return result;
+    }
+
+    /**
+     * Verifies in the default or cascade mode.
+     */
+    private SMVerifyData verifyInTurn(final String internalID,
+                                      List<FacilitatorID> FACIDs,
+                                      ImageData image,
+                                      Deadline deadline) {
+        Map<String,FRServiceHandler> registry = services.get();
+        long payloadBytes = image == null ? 0 : image.getImageSize();
+        FanOutEvent event = FanOutEvent.begin("verify", internalID, 1, payloadBytes);
+        VerifyTally tally = new VerifyTally();
+        int called = 0;
+
+        List<FacilitatorID> order = cascade ? cascadeOrder(FACIDs, registry) : FACIDs;
+        for (FacilitatorID facID : order) {
+            FRServiceHandler handler = registry.get(facID.getFRService());
+            if (handler == null) {
+                System.out.println("verify: No service named " + facID.getFRService() + ", skipping it.");
+                continue;
+            }
+            if (deadline.isExpired()) break;
             FRServiceHandlerVerifyResponse response =
-                services.get(facID.getFRService()).verify(facID.getFRPersonID(), image);
-
-            if (response.getServiceResponded()) {
-                ++totalResponded;
-                confidence += response.getConfidence();
-                cutoff += response.getCutoff();
-                if (!response.getFRPersonID().equals(facID.getFRPersonID())) {
-                    consensus = false;
-                    notInConsensus.add(response);
+                verifyHedged(handler, facID.getFRPersonID(), image, payloadBytes, deadline);
+            ++called;
+            if (response == null) break;
+            tally.add(facID, response);
+
+            if (cascade && response.getServiceResponded()
+                    && Math.abs(response.getConfidence() - handler.getFRServiceCutoff()) > cascadeBand) {
+                break;
+            }
+        }
+
+        int span = Tracer.start("consensus");
+        SMVerifyData result = tally.toVerifyData(internalID, registry.size(), tally.meanMatch());
+        Tracer.end(span);
+        if (event != null) event.finish(called, result.getTotalResponsed(), result.isMatch() ? "match" : "no match");
+        return result;
+    }
+
+    /**
+     * Verifies in quorum mode; see setQuorum(). The service calls run on the fan-out pool rather than on the request
+     * thread, and are recorded in the request's trace from there.
+     */
+    private SMVerifyData verifyQuorum(final String internalID,
+                                      List<FacilitatorID> FACIDs,
+                                      final ImageData image,
+                                      final Deadline deadline) {
+        Map<String,FRServiceHandler> registry = services.get();
+        final long payloadBytes = image == null ? 0 : image.getImageSize();
+        FanOutEvent event = FanOutEvent.begin("verify", internalID, 1, payloadBytes);
+        CompletionService<ServiceAnswer> answers = new ExecutorCompletionService<ServiceAnswer>(getFanOut());
+        List<Future<ServiceAnswer>> calls = new ArrayList<Future<ServiceAnswer>>();
+
+        for (final FacilitatorID facID : FACIDs) {
+            final FRServiceHandler handler = registry.get(facID.getFRService());
+            if (handler == null) {
+                System.out.println("verify: No service named " + facID.getFRService() + ", skipping it.");
+                continue;
+            }
+            calls.add(answers.submit(Tracer.propagate(new Callable<ServiceAnswer>() {
+                @Override
+                public ServiceAnswer call() {
+                    return new ServiceAnswer(facID,
+                            verifyHedged(handler, facID.getFRPersonID(), image, payloadBytes, deadline));
+                }
+            })));
+        }
+
+        int required = quorum < 0 ? calls.size() / 2 + 1 : Math.min(quorum, calls.size());
+        int outstanding = calls.size();
+        int votes = 0;
+        VerifyTally tally = new VerifyTally();
+        try {
+            while (outstanding > 0 && votes < required && votes + outstanding >= required) {
+                Future<ServiceAnswer> done = answers.poll(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                if (done == null) break;
+                --outstanding;
+                ServiceAnswer answer;
+                try {
+                    answer = done.get();
+                } catch (ExecutionException e) {
+                    System.out.println("verify: A service failed: " + e.getCause());
+                    e.getCause().printStackTrace();
+                    continue;
+                }
+                tally.add(answer.facID, answer.response);
+                if (VerifyTally.votesForMatch(answer.facID, answer.response)) ++votes;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<ServiceAnswer> call : calls) {
+                call.cancel(true);
+            }
+        }
+
+        boolean match = required > 0 && votes >= required;
+        SMVerifyData result = tally.toVerifyData(internalID, registry.size(), match);
+        if (event != null) event.finish(calls.size(), result.getTotalResponsed(), match ? "match" : "no match");
+        return result;
+    }
+
+    /**
+     * Finds the persons who most resemble a face, asking every service at once. A person found by several services is
+     * listed once, with the highest confidence any of them gave. Services that have not answered by the deadline are
+     * cancelled and the result is made from those that had.
+     * @param image The face to identify.
+     * @param limit The most persons to return.
+     * @param deadline When to stop waiting for services.
+     * @return The persons found, best first.
+     */
+    public SMIdentifyData identify(final ImageData image, final int limit, final Deadline deadline) {
+        Map<String,FRServiceHandler> registry = services.get();
+        final long payloadBytes = image == null ? 0 : image.getImageSize();
+        FanOutEvent event = FanOutEvent.begin("identify", null, 1, payloadBytes);
+        CompletionService<FRServiceHandlerIdentifyResponse> answers =
+                new ExecutorCompletionService<FRServiceHandlerIdentifyResponse>(getFanOut());
+        List<Future<FRServiceHandlerIdentifyResponse>> calls =
+                new ArrayList<Future<FRServiceHandlerIdentifyResponse>>();
+        for (final FRServiceHandler handler : registry.values()) {
+            calls.add(answers.submit(Tracer.propagate(new Callable<FRServiceHandlerIdentifyResponse>() {
+                @Override
+                public FRServiceHandlerIdentifyResponse call() {
+                    return identifyService(handler, image, limit, payloadBytes, deadline);
+                }
+            })));
+        }
+
+        List<FRServiceHandlerIdentifyResponse> responses = new ArrayList<FRServiceHandlerIdentifyResponse>();
+        try {
+            for (int outstanding = calls.size(); outstanding > 0; --outstanding) {
+                Future<FRServiceHandlerIdentifyResponse> done =
+                        answers.poll(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                if (done == null) break;
+                try {
+                    responses.add(done.get());
+                } catch (ExecutionException e) {
+                    System.out.println("identify: A service failed: " + e.getCause());
+                    e.getCause().printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<FRServiceHandlerIdentifyResponse> call : calls) {
+                call.cancel(true);
+            }
+        }
+
+        int span = Tracer.start("merge");
+        Map<String,SMIdentifyData.Match> byPerson = new HashMap<String, SMIdentifyData.Match>();
+        for (FRServiceHandlerIdentifyResponse response : responses) {
+            for (FRServiceHandlerIdentifyResponse.Candidate candidate : response.getCandidates()) {
+                SMIdentifyData.Match match = byPerson.get(candidate.getInternalID());
+                if (match == null) {
+                    match = new SMIdentifyData.Match(candidate.getInternalID());
+                    byPerson.put(candidate.getInternalID(), match);
                 }
-                else {
-                    inConsensus.add(response);
+                match.add(response.getServiceName(), candidate);
+            }
+        }
+        TopK<SMIdentifyData.Match> best = new TopK<SMIdentifyData.Match>(limit);
+        for (SMIdentifyData.Match match : byPerson.values()) {
+            best.add(match, match.getConfidence());
+        }
+        SMIdentifyData result = new SMIdentifyData(best.toList(), responses, registry.size());
+        Tracer.end(span);
+        if (event != null) {
+            event.finish(calls.size(), result.getTotalResponded(), result.getMatches().size() + " candidates");
+        }
+        return result;
+    }
+
+    /**
+     * The pool that quorum verifies, hedges, identifies, near-duplicate fingerprinting and draining removed services
+     * run their work on. It has at most <code>tater.fanOut.threads</code> threads (default 64) and no queue: once
+     * every thread is busy, a task submitted to it runs on the submitting thread instead. A latency spike therefore
+     * slows the requests that caused it down to running their service calls one at a time, rather than making a new
+     * thread for every call that piles up.
+     */
+    private synchronized ExecutorService getFanOut() {
+        if (fanOut == null) {
+            int threads = Math.max(1, Integer.getInteger("tater.fanOut.threads", 64));
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "tater-fanout-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            fanOut = pool;
+        }
+        return fanOut;
+    }
+
+    private static class ServiceAnswer {
+        final FacilitatorID facID;
+        final FRServiceHandlerVerifyResponse response;
+
+        ServiceAnswer(FacilitatorID facID, FRServiceHandlerVerifyResponse response) {
+            this.facID = facID;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Orders the person's services for a cascade: cheapest first, where a service's cost is its configured cost per
+     * call times its median verify latency so far. Services with no latency measured yet go first so that they get
+     * measured.
+     */
+    private List<FacilitatorID> cascadeOrder(List<FacilitatorID> FACIDs, Map<String,FRServiceHandler> registry) {
+        List<FacilitatorID> order = new ArrayList<FacilitatorID>(FACIDs);
+        final Map<String,Double> score = new HashMap<String, Double>();
+        for (FacilitatorID facID : order) {
+            FRServiceHandler handler = registry.get(facID.getFRService());
+            if (handler == null) {
+                score.put(facID.getFRService(), Double.MAX_VALUE);
+                continue;
+            }
+            long medianMicros = handler.getVerifyMetrics().getLatency().getValueAtQuantile(0.5);
+            Double cost = costs.get(facID.getFRService());
+            score.put(facID.getFRService(), (cost == null ? 1.0 : cost) * medianMicros);
+        }
+        Collections.sort(order, new Comparator<FacilitatorID>() {
+            @Override
+            public int compare(FacilitatorID a, FacilitatorID b) {
+                return Double.compare(score.get(a.getFRService()), score.get(b.getFRService()));
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Accumulates the verify responses of a request's services into the overall result.
+     */
+    private static class VerifyTally {
+        private final List<FRServiceHandlerVerifyResponse> inConsensus = new ArrayList<FRServiceHandlerVerifyResponse>();
+        private final List<FRServiceHandlerVerifyResponse> notInConsensus = new ArrayList<FRServiceHandlerVerifyResponse>();
+        private final List<String> contributors = new ArrayList<String>();
+        private float confidence = 0, cutoff = 0;
+        private int totalResponded = 0;
+        private boolean consensus = true;
+
+        void add(FacilitatorID facID, FRServiceHandlerVerifyResponse response) {
+            if (response == null || !response.getServiceResponded()) return;
+            ++totalResponded;
+            contributors.add(facID.getFRService());
+            confidence += response.getConfidence();
+            cutoff += response.getCutoff();
+            if (!response.getFRPersonID().equals(facID.getFRPersonID())) {
+                consensus = false;
+                notInConsensus.add(response);
+            }
+            else {
+                inConsensus.add(response);
+            }
+        }
+
+        /**
+         * @return Whether every service that answered recognised the person, with a mean confidence at or above the
+         *         mean cutoff.
+         */
+        boolean meanMatch() {
+            return consensus && totalResponded > 0 && confidence >= cutoff;
+        }
+
+        /**
+         * @return Whether one service's answer counts as a vote for a match in quorum mode.
+         */
+        static boolean votesForMatch(FacilitatorID facID, FRServiceHandlerVerifyResponse response) {
+            return response != null
+                    && response.getServiceResponded()
+                    && response.getFRPersonID().equals(facID.getFRPersonID())
+                    && response.getConfidence() >= response.getCutoff();
+        }
+
+        SMVerifyData toVerifyData(String internalID, int totalServices, boolean match) {
+            return new SMVerifyData(internalID,
+                                    match,
+                                    inConsensus,
+                                    notInConsensus,
+                                    totalServices,
+                                    totalResponded,
+                                    totalResponded == 0 ? 0 : confidence / totalResponded,
+                                    totalResponded == 0 ? 0 : cutoff / totalResponded,
+                                    consensus,
+                                    contributors);
+        }
+    }
+
+    /**
+     * Verifies against one service, hedging the call if it is slow and the service's hedge budget allows it.
+     * @return The first answer, or null if the deadline passed before any attempt answered.
+     */
+    private FRServiceHandlerVerifyResponse verifyHedged(final FRServiceHandler handler,
+                                                        final String personID,
+                                                        final ImageData image,
+                                                        final long payloadBytes,
+                                                        final Deadline deadline) {
+        if (hedgeRatio <= 0) return verifyService(handler, personID, image, payloadBytes, deadline);
+        OperationMetrics metrics = handler.getVerifyMetrics();
+        HedgeBudget budget = hedgeBudget(handler.getFRServiceName());
+        budget.onRequest();
+        if (metrics.getLatency().getCount() < hedgeMinSamples) {
+            return verifyService(handler, personID, image, payloadBytes, deadline);
+        }
+        long hedgeAfterNanos = Math.min(TimeUnit.MICROSECONDS.toNanos(metrics.getLatency().getValueAtQuantile(0.95)),
+                                        deadline.remainingNanos());
+
+        CompletionService<FRServiceHandlerVerifyResponse> attempts =
+                new ExecutorCompletionService<FRServiceHandlerVerifyResponse>(getFanOut());
+        List<Future<FRServiceHandlerVerifyResponse>> sent = new ArrayList<Future<FRServiceHandlerVerifyResponse>>();
+        sent.add(attempts.submit(verifyCall(handler, personID, image, payloadBytes, deadline)));
+        FRServiceHandlerVerifyResponse response = null;
+        RuntimeException failure = null;
+        try {
+            Future<FRServiceHandlerVerifyResponse> done = attempts.poll(hedgeAfterNanos, TimeUnit.NANOSECONDS);
+            if (done == null && !deadline.isExpired() && budget.tryHedge()) {
+                metrics.hedged();
+                FRServiceHandler target = hedgeTargets.get(handler.getFRServiceName());
+                sent.add(attempts.submit(
+                        verifyCall(target != null ? target : handler, personID, image, payloadBytes, deadline)));
+            }
+            // the first attempt to get an answer from the service wins
+            for (int pending = sent.size(); pending > 0; --pending) {
+                if (done == null) done = attempts.poll(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                if (done == null) break;
+                try {
+                    response = done.get();
+                    if (response.getServiceResponded()) break;
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
                 }
+                done = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IllegalStateException("Interrupted while verifying with " + handler.getFRServiceName(), e);
+            response = null;
+        } finally {
+            for (Future<FRServiceHandlerVerifyResponse> attempt : sent) {
+                attempt.cancel(true);
             }
         }
+        if (response != null || failure == null) return response;
+        throw failure;
+    }
 
-        confidence = confidence / totalResponded;
-        cutoff = cutoff / totalResponded;
-        match = consensus && (confidence >= cutoff);
+    private Callable<FRServiceHandlerVerifyResponse> verifyCall(final FRServiceHandler handler,
+                                                                final String personID,
+                                                                final ImageData image,
+                                                                final long payloadBytes,
+                                                                final Deadline deadline) {
+        return Tracer.propagate(new Callable<FRServiceHandlerVerifyResponse>() {
+            @Override
+            public FRServiceHandlerVerifyResponse call() {
+                return verifyService(handler, personID, image, payloadBytes, deadline);
+            }
+        });
+    }
 
-        return new SMVerifyData(internalID,
-                                match,
-                                inConsensus,
-                                notInConsensus,
-                                totalServices,
-                                totalResponded,
-                                confidence,
-                                cutoff,
-                                consensus);
+    private HedgeBudget hedgeBudget(String serviceName) {
+        HedgeBudget budget = hedgeBudgets.get(serviceName);
+        if (budget == null) {
+            hedgeBudgets.putIfAbsent(serviceName, new HedgeBudget(hedgeRatio, 10));
+            budget = hedgeBudgets.get(serviceName);
+        }
+        return budget;
+    }
+
+    /**
+     * Verifies against one service, recording the call in its metrics, the current trace and the flight recorder.
+     * The deadline is attached to the calling thread for the handler and its SDK to find.
+     */
+    private FRServiceHandlerVerifyResponse verifyService(FRServiceHandler handler,
+                                                         String personID,
+                                                         ImageData image,
+                                                         long payloadBytes,
+                                                         Deadline deadline) {
+        OperationMetrics metrics = handler.getVerifyMetrics();
+        HandlerCallEvent event = HandlerCallEvent.begin(handler.getFRServiceName(), "verify", personID, 1, payloadBytes);
+        int span = Tracer.start(metrics);
+        Deadline previous = Deadline.attach(deadline);
+        handler.callStarted();
+        long start = metrics.start();
+        FRServiceHandlerVerifyResponse response;
+        try {
+            response = handler.verify(personID, image);
+        } catch (RuntimeException e) {
+            metrics.error(start);
+            if (event != null) event.finish(e.getClass().getSimpleName());
+            throw e;
+        } finally {
+            handler.callFinished();
+            Deadline.attach(previous);
+            Tracer.end(span);
+        }
+        if (response.getServiceResponded()) metrics.success(start);
+        else metrics.error(start);
+        if (event != null) event.finish(response.getServiceResponded() ? "responded" : "no response");
+        return response;
+    }
+
+    private FRServiceHandlerIdentifyResponse identifyService(FRServiceHandler handler,
+                                                             ImageData image,
+                                                             int limit,
+                                                             long payloadBytes,
+                                                             Deadline deadline) {
+        OperationMetrics metrics = handler.getIdentifyMetrics();
+        HandlerCallEvent event = HandlerCallEvent.begin(handler.getFRServiceName(), "identify", null, 1, payloadBytes);
+        Deadline previous = Deadline.attach(deadline);
+        handler.callStarted();
+        long start = metrics.start();
+        FRServiceHandlerIdentifyResponse response;
+        try {
+            response = handler.identify(image, limit);
+        } catch (RuntimeException e) {
+            metrics.error(start);
+            if (event != null) event.finish(e.getClass().getSimpleName());
+            throw e;
+        } finally {
+            handler.callFinished();
+            Deadline.attach(previous);
+        }
+        if (response.getServiceResponded()) metrics.success(start);
+        else metrics.error(start);
+        if (event != null) event.finish(response.getServiceResponded() ? "responded" : "no response");
+        return response;
+    }
+
+    private static long imageBytes(List<ImageData> images) {
+        long total = 0;
+        for (ImageData image : images) {
+            total += image.getImageSize();
+        }
+        return total;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,74 @@
+package dsd.cherry.tater;
+
+import com.sun.net.httpserver.HttpServer;
+import dsd.cherry.tater.cluster.Cluster;
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the facilitator on the JDK's built-in HTTP server instead of in a servlet container, for deployments that
+ * want it to start in well under a second. It serves exactly the resources registered by TaterApplication.
+ *
+ * Configured with system properties, in addition to those read by the facilitator itself:
+ * <ul>
+ *     <li><code>tater.server.host</code>: the address to listen on (default 0.0.0.0).</li>
+ *     <li><code>tater.server.port</code>: the port to listen on (default 8080).</li>
+ *     <li><code>tater.server.threads</code>: threads serving requests (default 64).</li>
+ * </ul>
+ */
+public class StandaloneServer {
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts serving the facilitator.
+     * @param uri The base URI to listen on.
+     * @param threads The number of threads serving requests.
+     */
+    public StandaloneServer(URI uri, int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "tater-http-" + count.incrementAndGet());
+            }
+        });
+        // the JDK server handles every request on its dispatcher thread unless given an executor
+        server = JdkHttpServerFactory.createHttpServer(uri, new TaterApplication(), false);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, gives those in progress a second to finish, and stops.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    public static void main(String[] args) {
+        if (Cluster.getGlobal() != null && Boolean.getBoolean("tater.local.enabled")) {
+            // the local service would answer from this node's templates alone; see LocalEmbeddingHandler
+            System.out.println("The local service cannot run in cluster mode, not starting.");
+            System.exit(1);
+        }
+        URI uri = URI.create("http://" + System.getProperty("tater.server.host", "0.0.0.0") + ":"
+                + Integer.getInteger("tater.server.port", 8080) + "/");
+        final StandaloneServer server = new StandaloneServer(uri, Integer.getInteger("tater.server.threads", 64));
+        Runtime.getRuntime().addShutdownHook(new Thread("tater-shutdown") {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        long sinceJVMStart = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.out.println("Tater listening on " + uri + " (" + sinceJVMStart + " ms after JVM start)");
+    }
+}
@@ -0,0 +1,133 @@
+package dsd.cherry.tater;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dsd.cherry.tater.frservices.FRServiceHandlerTrainResponse;
+import dsd.cherry.tater.frservices.TrainProgressListener;
+import dsd.cherry.tater.tracing.Trace;
+import dsd.cherry.tater.tracing.Tracer;
+import dsd.cherry.tater.types.ImageData;
+import dsd.cherry.tater.types.SMTrainData;
+import dsd.cherry.tater.types.jax_pojos.AuthRequestTrain;
+import dsd.cherry.tater.util.Deadline;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Trains every service for a /train/stream request and writes its progress to the client as server-sent events. Each
+ * event is flushed as soon as it is written. If the client goes away training still runs to completion, since the
+ * services have already started enrolling the person, but no further events are written.
+ *
+ * Training runs once the container starts writing the reply, after FacilitatorService.trainStream() has returned, so
+ * the request's trace and record are handed over and finished here when the final event has been written.
+ */
+class TrainEventStream implements StreamingOutput, TrainProgressListener {
+    static final String EVENT_STREAM = "text/event-stream";
+
+    private final ServiceManager services;
+    private final AuthRequestTrain req;
+    private final ObjectMapper mapOut;
+    private final ImageByteBudget.Lease lease;
+    private final Deadline deadline;
+    private final Trace trace;
+    private final RequestRecord record;
+    private final Callable<SMTrainData> training;
+
+    private OutputStream out;
+    private boolean clientGone;
+
+    /**
+     * <b>Constructor.</b>
+     * @param services The services to train.
+     * @param req The parsed training request.
+     * @param mapOut A mapper configured to write ImageData objects as they appear in Authentication Server replies.
+     * @param lease The request's image budget lease, released once the final event has been written.
+     * @param deadline When the reply is due.
+     * @param trace The request's trace, or null if it is not being traced.
+     * @param record The request's record, or null if nothing is recording it.
+     */
+    TrainEventStream(ServiceManager services,
+                     AuthRequestTrain req,
+                     ObjectMapper mapOut,
+                     ImageByteBudget.Lease lease,
+                     Deadline deadline,
+                     Trace trace,
+                     RequestRecord record) {
+        this.services = services;
+        this.req = req;
+        this.mapOut = mapOut;
+        this.lease = lease;
+        this.deadline = deadline;
+        this.trace = trace;
+        this.record = record;
+        // made while the request's thread still has the trace, so that training is recorded in it wherever it runs
+        this.training = Tracer.propagate(new Callable<SMTrainData>() {
+            @Override
+            public SMTrainData call() {
+                return train();
+            }
+        });
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        this.out = output;
+        try {
+            SMTrainData result;
+            try {
+                result = training.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                // train() throws nothing checked
+                throw new IllegalStateException(e);
+            }
+            writeEvent("result", FacilitatorService.buildTrainReply(result));
+        } finally {
+            lease.release();
+            if (record != null) record.finish(200);
+            Tracer.finish(trace);
+        }
+    }
+
+    private SMTrainData train() {
+        return services.train(req.getInternalID(), req.getFACIDs(), req.getImages(), this, deadline);
+    }
+
+    @Override
+    public void imageProcessed(String serviceName, ImageData image) {
+        Map<String,Object> event = new LinkedHashMap<String, Object>();
+        event.put("Service", serviceName);
+        event.put("Image", image);
+        writeEvent("image", event);
+    }
+
+    @Override
+    public void serviceTrained(FRServiceHandlerTrainResponse response) {
+        Map<String,Object> event = new LinkedHashMap<String, Object>();
+        event.put("Service", response.getServiceName());
+        event.put("Responded", response.getServiceResponded());
+        event.put("FacId", response.getFRPersonID());
+        event.put("Success", response.getTrainingStatus());
+        writeEvent("service", event);
+    }
+
+    private synchronized void writeEvent(String name, Object data) {
+        if (clientGone) return;
+        try {
+            out.write(("event: " + name + "\ndata: ").getBytes("UTF-8"));
+            out.write(mapOut.writeValueAsBytes(data));
+            out.write("\n\n".getBytes("UTF-8"));
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("/train/stream: Error writing " + name + " event, client went away? " + e.getMessage());
+            clientGone = true;
+        }
+    }
+}
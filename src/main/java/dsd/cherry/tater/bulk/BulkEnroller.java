@@ -0,0 +1,194 @@
+package dsd.cherry.tater.bulk;
+
+import dsd.cherry.tater.ServiceManager;
+import dsd.cherry.tater.types.ImageData;
+import dsd.cherry.tater.types.SMTrainData;
+import dsd.cherry.tater.util.RateLimiter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enrolls every user in a manifest by driving ServiceManager.train directly, without going through /train. Users are
+ * trained in parallel, but no faster than the slowest configured service allows. Progress is checkpointed after every
+ * user so that a crashed or stopped run picks up where it left off, and throughput and an ETA are reported while it
+ * runs. Users that fail to train are logged next to the checkpoint and retried by the next run.
+ *
+ * Usage: <code>BulkEnroller &lt;manifest directory or .ndjson file&gt; &lt;checkpoint file&gt;</code>
+ *
+ * Configured with system properties:
+ * <ul>
+ *     <li><code>tater.facepp.apiKey</code>, <code>tater.facepp.apiSecret</code>: FacePP credentials.</li>
+ *     <li><code>tater.bulk.threads</code>: users trained at once (default 16).</li>
+ *     <li><code>tater.bulk.rate.&lt;service&gt;</code>: users per second a service may be sent (default 2).</li>
+ *     <li><code>tater.bulk.reportSec</code>: seconds between progress reports (default 10).</li>
+ * </ul>
+ */
+public class BulkEnroller {
+    private final ServiceManager services;
+    private final Map<String,RateLimiter> limits;
+    private final int threads;
+
+    private final AtomicLong enrolled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * <b>Constructor.</b>
+     * @param services The services to enroll users with.
+     * @param limits A rate limiter for each service; every user takes a permit from each of them before training.
+     * @param threads The maximum number of users being trained at once.
+     */
+    public BulkEnroller(ServiceManager services, Map<String,RateLimiter> limits, int threads) {
+        this.services = services;
+        this.limits = limits;
+        this.threads = threads;
+    }
+
+    /**
+     * Enrolls every entry of the manifest not already recorded in the checkpoint.
+     * @param manifest The users to enroll.
+     * @param checkpoint The record of users enrolled so far.
+     * @param failures Where to log users that could not be enrolled.
+     * @param reportSeconds How often to print progress.
+     * @throws IOException If the manifest cannot be read.
+     * @throws InterruptedException If the enrollment is interrupted.
+     */
+    public void run(EnrollmentManifest manifest,
+                    final EnrollmentCheckpoint checkpoint,
+                    final PrintWriter failures,
+                    int reportSeconds) throws IOException, InterruptedException {
+        final long total = manifest.size();
+        final long startedWith = checkpoint.getCompleted();
+        final long start = System.nanoTime();
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(total, startedWith, start);
+                try {
+                    checkpoint.sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final Semaphore slots = new Semaphore(threads * 2);
+        try {
+            EnrollmentManifest.Entry entry;
+            while ((entry = manifest.next()) != null) {
+                if (checkpoint.isDone(entry.getIndex())) continue;
+                slots.acquire();
+                final EnrollmentManifest.Entry user = entry;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            enroll(user, checkpoint, failures);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+            slots.acquire(threads * 2);
+        } finally {
+            pool.shutdownNow();
+            reporter.shutdownNow();
+        }
+        report(total, startedWith, start);
+    }
+
+    private void enroll(EnrollmentManifest.Entry user, EnrollmentCheckpoint checkpoint, PrintWriter failures) {
+        String reason;
+        try {
+            List<ImageData> images = new ArrayList<ImageData>();
+            for (File f : user.getImages()) {
+                images.add(new ImageData(f.getName(), Files.readAllBytes(f.toPath())));
+            }
+            for (RateLimiter limit : limits.values()) {
+                limit.acquire();
+            }
+            SMTrainData result = services.train(user.getInternalID(), user.getFACIDs(), images);
+            if (result.getTrainingStatus()) {
+                checkpoint.markDone(user.getIndex());
+                enrolled.incrementAndGet();
+                return;
+            }
+            reason = "not trained";
+        } catch (IOException e) {
+            reason = e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reason = "interrupted";
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            reason = e.toString();
+        }
+        failed.incrementAndGet();
+        synchronized (failures) {
+            failures.println(user.getIndex() + "\t" + user.getInternalID() + "\t" + reason);
+            failures.flush();
+        }
+    }
+
+    private void report(long total, long startedWith, long start) {
+        long done = enrolled.get();
+        long remaining = total - startedWith - done - failed.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double rate = seconds > 0 ? done / seconds : 0;
+        String eta = rate > 0 ? formatDuration((long) (remaining / rate)) : "unknown";
+        System.out.println(String.format("[bulk] enrolled %d/%d (%d this run, %d failed) at %.1f users/s, ETA %s",
+                startedWith + done, total, done, failed.get(), rate, eta));
+    }
+
+    private static String formatDuration(long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: BulkEnroller <manifest directory or .ndjson file> <checkpoint file>");
+            System.exit(1);
+        }
+
+        ServiceManager services = ServiceManager.fromSystemProperties();
+        Map<String,RateLimiter> limits = new HashMap<String, RateLimiter>();
+        for (String name : services.getServiceNames()) {
+            double rate = Double.parseDouble(System.getProperty("tater.bulk.rate." + name, "2"));
+            limits.put(name, new RateLimiter(rate, rate));
+        }
+
+        int threads = Integer.getInteger("tater.bulk.threads", 16);
+        int reportSeconds = Integer.getInteger("tater.bulk.reportSec", 10);
+
+        File checkpointFile = new File(args[1]);
+        EnrollmentManifest manifest = EnrollmentManifest.open(new File(args[0]));
+        EnrollmentCheckpoint checkpoint = new EnrollmentCheckpoint(checkpointFile);
+        PrintWriter failures = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(checkpointFile.getPath() + ".failed", true), "UTF-8"));
+        try {
+            new BulkEnroller(services, limits, threads).run(manifest, checkpoint, failures, reportSeconds);
+        } finally {
+            failures.close();
+            checkpoint.close();
+            manifest.close();
+        }
+    }
+}
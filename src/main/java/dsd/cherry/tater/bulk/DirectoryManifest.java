@@ -0,0 +1,67 @@
+package dsd.cherry.tater.bulk;
+
+import dsd.cherry.tater.types.FacilitatorID;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A manifest laid out on disk as <code>root/&lt;UserId&gt;/&lt;image files&gt;</code>. Users are enrolled in sorted
+ * order of their directory names so that indexes stay stable between runs.
+ */
+public class DirectoryManifest extends EnrollmentManifest {
+    private static final FileFilter imageFiles = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.isFile() && !f.isHidden();
+        }
+    };
+
+    private final File root;
+    // every name in the root, so that an entry's index does not depend on which of them are user directories
+    private final String[] users;
+    private final long userCount;
+    private int position;
+
+    public DirectoryManifest(File root) throws IOException {
+        this.root = root;
+        String[] names = root.list();
+        if (names == null) throw new IOException("Cannot list manifest directory " + root);
+        Arrays.sort(names);
+        this.users = names;
+        this.position = 0;
+        long count = 0;
+        for (String name : names) {
+            if (isUser(new File(root, name))) ++count;
+        }
+        this.userCount = count;
+    }
+
+    private static boolean isUser(File dir) {
+        return dir.isDirectory() && !dir.isHidden();
+    }
+
+    @Override
+    public long size() { return userCount; }
+
+    @Override
+    public Entry next() throws IOException {
+        while (position < users.length) {
+            int index = position++;
+            File dir = new File(root, users[index]);
+            if (!isUser(dir)) continue;
+
+            File[] files = dir.listFiles(imageFiles);
+            if (files == null) throw new IOException("Cannot list images for user " + users[index]);
+            Arrays.sort(files);
+            return new Entry(index, users[index], new ArrayList<FacilitatorID>(), Arrays.asList(files));
+        }
+        return null;
+    }
+
+    @Override
+    public void close() { }
+}
@@ -0,0 +1,85 @@
+package dsd.cherry.tater.bulk;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.BitSet;
+
+/**
+ * Records which manifest entries have been enrolled so that an interrupted bulk enrollment can resume where it
+ * stopped. The checkpoint is an append-only file holding the index of each enrolled entry on its own line; a line
+ * torn by a crash is ignored when the file is read back.
+ */
+public class EnrollmentCheckpoint implements Closeable {
+    private final BitSet done;
+    private final FileOutputStream file;
+    private final Writer writer;
+    private int completed;
+
+    public EnrollmentCheckpoint(File checkpoint) throws IOException {
+        done = new BitSet();
+        if (checkpoint.exists()) load(checkpoint);
+        completed = done.cardinality();
+        file = new FileOutputStream(checkpoint, true);
+        writer = new OutputStreamWriter(file, "UTF-8");
+    }
+
+    private void load(File checkpoint) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpoint), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    done.set(Integer.parseInt(line.trim()));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring damaged checkpoint line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public synchronized boolean isDone(long index) { return done.get((int) index); }
+
+    /**
+     * @return The number of entries enrolled so far, including those from earlier runs.
+     */
+    public synchronized int getCompleted() { return completed; }
+
+    /**
+     * Records an entry as enrolled. The record reaches the operating system before this returns, so it survives the
+     * process crashing; call {@link #sync()} to make it survive the machine crashing as well.
+     * @param index The manifest index of the enrolled entry.
+     * @throws IOException If the checkpoint cannot be written.
+     */
+    public synchronized void markDone(long index) throws IOException {
+        if (done.get((int) index)) return;
+        done.set((int) index);
+        ++completed;
+        writer.write(Long.toString(index));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * Forces everything recorded so far onto the disk.
+     * @throws IOException If the checkpoint cannot be synced.
+     */
+    public synchronized void sync() throws IOException {
+        writer.flush();
+        file.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        writer.close();
+    }
+}
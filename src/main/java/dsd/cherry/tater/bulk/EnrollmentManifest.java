@@ -0,0 +1,63 @@
+package dsd.cherry.tater.bulk;
+
+import dsd.cherry.tater.types.FacilitatorID;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A list of users to enroll and the image files to train each of them with. Entries are handed out one at a time in
+ * a stable order so that an entry's index can be used to checkpoint progress across runs.
+ */
+public abstract class EnrollmentManifest implements Closeable {
+
+    /**
+     * Opens a manifest. A directory is read as one sub-directory of images per user, named after the user's ID; any
+     * other file is read as newline-delimited JSON.
+     * @param source The manifest directory or file.
+     * @return The opened manifest.
+     * @throws IOException If the manifest cannot be read.
+     */
+    public static EnrollmentManifest open(File source) throws IOException {
+        if (source.isDirectory()) return new DirectoryManifest(source);
+        return new NDJSONManifest(source);
+    }
+
+    /**
+     * @return The total number of entries in the manifest.
+     */
+    public abstract long size();
+
+    /**
+     * @return The next entry in the manifest, or null once every entry has been handed out.
+     * @throws IOException If the manifest cannot be read.
+     */
+    public abstract Entry next() throws IOException;
+
+    /**
+     * A single user to enroll.
+     */
+    public static class Entry {
+        private final long index;
+        private final String internalID;
+        private final List<FacilitatorID> FACIDs;
+        private final List<File> images;
+
+        public Entry(long index, String internalID, List<FacilitatorID> FACIDs, List<File> images) {
+            this.index = index;
+            this.internalID = internalID;
+            this.FACIDs = FACIDs;
+            this.images = images;
+        }
+
+        public long getIndex() { return index; }
+
+        public String getInternalID() { return internalID; }
+
+        public List<FacilitatorID> getFACIDs() { return FACIDs; }
+
+        public List<File> getImages() { return images; }
+    }
+}
@@ -0,0 +1,99 @@
+package dsd.cherry.tater.bulk;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dsd.cherry.tater.types.FacilitatorID;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A manifest with one JSON object per line, e.g.
+ * <pre>{"UserId": "1234", "FacilitatorIds": [], "Images": ["1234/a.jpg", "1234/b.jpg"]}</pre>
+ * Relative image paths are resolved against the directory containing the manifest. An entry's index is its line
+ * number, counting from zero. Lines that cannot be read are reported and skipped.
+ */
+public class NDJSONManifest extends EnrollmentManifest {
+    private final File base;
+    private final ObjectMapper mapper;
+    private final BufferedReader reader;
+    private final long lines;
+    private long position;
+
+    public NDJSONManifest(File source) throws IOException {
+        this.base = source.getAbsoluteFile().getParentFile();
+        this.mapper = new ObjectMapper();
+        this.lines = countLines(source);
+        this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), "UTF-8"));
+        this.position = 0;
+    }
+
+    @Override
+    public long size() { return lines; }
+
+    @Override
+    public Entry next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            long index = position++;
+            if (line.trim().isEmpty()) continue;
+
+            Line parsed;
+            try {
+                parsed = mapper.readValue(line, Line.class);
+            } catch (IOException e) {
+                System.out.println("Skipping unreadable manifest line " + index + ": " + e.getMessage());
+                continue;
+            }
+            List<File> images = new ArrayList<File>();
+            if (parsed.images != null) {
+                for (String path : parsed.images) {
+                    File f = new File(path);
+                    images.add(f.isAbsolute() ? f : new File(base, path));
+                }
+            }
+            List<FacilitatorID> FACIDs = parsed.FACIDs == null ? new ArrayList<FacilitatorID>() : parsed.FACIDs;
+            return new Entry(index, parsed.internalID, FACIDs, images);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private static long countLines(File source) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long count = 0;
+            int n;
+            boolean trailing = false;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; ++i) {
+                    if (buffer[i] == '\n') ++count;
+                }
+                trailing = buffer[n - 1] != '\n';
+            }
+            return trailing ? count + 1 : count;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Line {
+        @JsonProperty("UserId")
+        String internalID;
+        @JsonProperty("FacilitatorIds")
+        List<FacilitatorID> FACIDs;
+        @JsonProperty("Images")
+        List<String> images;
+    }
+}
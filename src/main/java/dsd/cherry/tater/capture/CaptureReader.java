@@ -0,0 +1,81 @@
+package dsd.cherry.tater.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads a log written by TrafficCapture.
+ */
+public class CaptureReader {
+    private final DataInputStream in;
+    private final long startedAt;
+
+    /**
+     * @param file The capture log.
+     * @throws IOException If the file cannot be read or is not a capture log.
+     */
+    public CaptureReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        if (in.readInt() != TrafficCapture.MAGIC) {
+            in.close();
+            throw new IOException(file + " is not a traffic capture");
+        }
+        short version = in.readShort();
+        if (version != TrafficCapture.VERSION) {
+            in.close();
+            throw new IOException(file + " is a version " + version + " capture, expected " + TrafficCapture.VERSION);
+        }
+        startedAt = in.readLong();
+    }
+
+    /**
+     * @return When the capture started, in milliseconds since the epoch.
+     */
+    public long getStartedAt() { return startedAt; }
+
+    /**
+     * @return The next request in the log, or null at the end of it. A record cut short by the facilitator stopping
+     *         mid-write counts as the end.
+     * @throws IOException If the log cannot be read.
+     */
+    public CapturedRequest next() throws IOException {
+        try {
+            return CapturedRequest.read(in);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads every remaining request, ordered by arrival. Records are written as requests finish, so slow requests
+     * appear later in the log than they arrived.
+     * @return The requests.
+     * @throws IOException If the log cannot be read.
+     */
+    public List<CapturedRequest> readAll() throws IOException {
+        List<CapturedRequest> all = new ArrayList<CapturedRequest>();
+        CapturedRequest r;
+        while ((r = next()) != null) {
+            all.add(r);
+        }
+        Collections.sort(all, new Comparator<CapturedRequest>() {
+            @Override
+            public int compare(CapturedRequest a, CapturedRequest b) {
+                return Long.compare(a.getArrivalNanos(), b.getArrivalNanos());
+            }
+        });
+        return all;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,107 @@
+package dsd.cherry.tater.capture;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * One request as recorded by TrafficCapture. It keeps what is needed to replay the request's shape and timing but
+ * nothing that identifies a person: the user ID and each image are reduced to hashes, and an image's size is kept so
+ * that a replay can stand in an image of the same size.
+ *
+ * On disk a request is: endpoint (byte), arrival (long, nanoseconds since the capture started), user ID hash (long),
+ * FacilitatorID count (byte), HTTP status (short), duration (long, nanoseconds), image count (short), then each
+ * image's size (int) and hash (long).
+ */
+public class CapturedRequest {
+    public static final byte TRAIN = 1;
+    public static final byte VERIFY = 2;
+
+    private byte endpoint;
+    private long arrivalNanos;
+    private long userHash;
+    private int FACIDCount;
+    private int status;
+    private long durationNanos;
+    private int[] imageSizes = new int[0];
+    private long[] imageHashes = new long[0];
+
+    CapturedRequest() {}
+
+    CapturedRequest(byte endpoint, long arrivalNanos) {
+        this.endpoint = endpoint;
+        this.arrivalNanos = arrivalNanos;
+    }
+
+    void setUser(long userHash, int FACIDCount) {
+        this.userHash = userHash;
+        this.FACIDCount = FACIDCount;
+    }
+
+    void setImages(int[] sizes, long[] hashes) {
+        this.imageSizes = sizes;
+        this.imageHashes = hashes;
+    }
+
+    void setResult(int status, long durationNanos) {
+        this.status = status;
+        this.durationNanos = durationNanos;
+    }
+
+    public byte getEndpoint() { return endpoint; }
+    public String getEndpointPath() { return endpoint == TRAIN ? "/train" : "/verify"; }
+
+    /**
+     * @return When the request arrived, in nanoseconds since the capture started.
+     */
+    public long getArrivalNanos() { return arrivalNanos; }
+
+    public long getUserHash() { return userHash; }
+    public int getFACIDCount() { return FACIDCount; }
+
+    /**
+     * @return The HTTP status the facilitator answered with when the request was captured.
+     */
+    public int getStatus() { return status; }
+
+    /**
+     * @return How long the facilitator took to answer when the request was captured, in nanoseconds.
+     */
+    public long getDurationNanos() { return durationNanos; }
+
+    public int getImageCount() { return imageSizes.length; }
+    public int getImageSize(int i) { return imageSizes[i]; }
+    public long getImageHash(int i) { return imageHashes[i]; }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(endpoint);
+        out.writeLong(arrivalNanos);
+        out.writeLong(userHash);
+        out.writeByte(Math.min(FACIDCount, 255));
+        out.writeShort(status);
+        out.writeLong(durationNanos);
+        out.writeShort(imageSizes.length);
+        for (int i = 0; i < imageSizes.length; ++i) {
+            out.writeInt(imageSizes[i]);
+            out.writeLong(imageHashes[i]);
+        }
+    }
+
+    static CapturedRequest read(DataInputStream in) throws IOException {
+        CapturedRequest r = new CapturedRequest();
+        r.endpoint = in.readByte();
+        r.arrivalNanos = in.readLong();
+        r.userHash = in.readLong();
+        r.FACIDCount = in.readUnsignedByte();
+        r.status = in.readUnsignedShort();
+        r.durationNanos = in.readLong();
+        int images = in.readUnsignedShort();
+        r.imageSizes = new int[images];
+        r.imageHashes = new long[images];
+        for (int i = 0; i < images; ++i) {
+            r.imageSizes[i] = in.readInt();
+            r.imageHashes[i] = in.readLong();
+        }
+        return r;
+    }
+}
@@ -0,0 +1,183 @@
+package dsd.cherry.tater.capture;
+
+import dsd.cherry.tater.types.ImageData;
+import dsd.cherry.tater.util.KeyedHash;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Records the requests the facilitator serves to a compact binary log for TrafficReplay to re-drive later. Request
+ * threads only hash the images and queue a small record; a background thread does the writing, and if it falls
+ * behind records are dropped and counted rather than slowing requests down. The writer flushes the log whenever it
+ * has caught up, and a shutdown hook has it write out whatever is still queued when the JVM exits.
+ *
+ * User IDs are hashed with HMAC-SHA256 under a random key made for each capture and never written to the log, so IDs
+ * cannot be recovered by hashing every plausible one; the same user still hashes the same way throughout a capture.
+ *
+ * Capture is off unless the <code>tater.capture.file</code> system property names the log to write. The log starts
+ * with a header (magic number, version, and capture start time in milliseconds since the epoch) followed by
+ * CapturedRequest records. <code>tater.capture.queue</code> sets how many records may wait to be written
+ * (default 4096).
+ */
+public class TrafficCapture {
+    static final int MAGIC = 0x54415443; // "TATC"
+    static final short VERSION = 1;
+
+    private static final TrafficCapture global = fromSystemProperties();
+
+    private final long startNanos = System.nanoTime();
+    private final BlockingQueue<CapturedRequest> queue;
+    private final DataOutputStream out;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final KeyedHash userHash = KeyedHash.withRandomKey();
+
+    /**
+     * Starts capturing to a new log, overwriting any existing file.
+     * @param file The log to write.
+     * @param queueSize How many records may wait to be written before new ones are dropped.
+     * @throws IOException If the log cannot be created.
+     */
+    public TrafficCapture(File file, int queueSize) throws IOException {
+        queue = new ArrayBlockingQueue<CapturedRequest>(queueSize);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.flush();
+
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "tater-capture");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writer.interrupt();
+                try {
+                    writer.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "tater-capture-shutdown"));
+    }
+
+    private static TrafficCapture fromSystemProperties() {
+        String file = System.getProperty("tater.capture.file");
+        if (file == null) return null;
+        try {
+            TrafficCapture capture = new TrafficCapture(new File(file), Integer.getInteger("tater.capture.queue", 4096));
+            System.out.println("Capturing traffic to " + file);
+            return capture;
+        } catch (IOException e) {
+            System.out.println("Traffic capture disabled, cannot write " + file + ": " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return The capture configured through system properties, or null if capture is off.
+     */
+    public static TrafficCapture getGlobal() { return global; }
+
+    /**
+     * Starts recording a request as it arrives.
+     * @param endpoint CapturedRequest.TRAIN or CapturedRequest.VERIFY.
+     * @return The record to fill in and pass to finish().
+     */
+    public CapturedRequest begin(byte endpoint) {
+        return new CapturedRequest(endpoint, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records who a request was for and the images it carried, hashed.
+     * @param request The record returned by begin().
+     * @param userID The Authentication Server's ID for the person.
+     * @param FACIDCount The number of FacilitatorIDs the request carried.
+     * @param images The request's images; may be null.
+     */
+    public void setRequest(CapturedRequest request, String userID, int FACIDCount, List<ImageData> images) {
+        request.setUser(userID == null ? 0 : userHash.hash(userID), FACIDCount);
+        if (images == null) return;
+        int[] sizes = new int[images.size()];
+        long[] hashes = new long[images.size()];
+        for (int i = 0; i < sizes.length; ++i) {
+            byte[] image = images.get(i).getImageBinary();
+            sizes[i] = image == null ? 0 : image.length;
+            hashes[i] = image == null ? 0 : hash(image);
+        }
+        request.setImages(sizes, hashes);
+    }
+
+    /**
+     * Queues a finished request to be written to the log.
+     * @param request The record returned by begin().
+     * @param status The HTTP status the request was answered with.
+     */
+    public void finish(CapturedRequest request, int status) {
+        request.setResult(status, System.nanoTime() - startNanos - request.getArrivalNanos());
+        if (!queue.offer(request)) dropped.incrementAndGet();
+    }
+
+    public long getWritten() { return written.get(); }
+    public long getDropped() { return dropped.get(); }
+
+    private void writeLoop() {
+        try {
+            try {
+                while (true) {
+                    write(queue.take());
+                    if (queue.isEmpty()) out.flush();
+                }
+            } catch (InterruptedException e) {
+                // the JVM is exiting; write out what is still queued before the log is closed
+                for (CapturedRequest request = queue.poll(); request != null; request = queue.poll()) {
+                    write(request);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Traffic capture stopped, error writing log: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void write(CapturedRequest request) throws IOException {
+        request.write(out);
+        written.incrementAndGet();
+    }
+
+    /**
+     * A 64-bit hash of an image built from CRC32 and Adler32, both of which the JIT compiles to fast intrinsics. It
+     * only has to tell images apart within one capture, not resist deliberate collisions; images, unlike user IDs,
+     * are not short enough to be found by enumeration.
+     */
+    static long hash(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+}
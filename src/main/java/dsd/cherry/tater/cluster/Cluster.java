@@ -0,0 +1,316 @@
+package dsd.cherry.tater.cluster;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import dsd.cherry.tater.FacilitatorService;
+import dsd.cherry.tater.util.ConsistentHash;
+import dsd.cherry.tater.util.Deadline;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The facilitator nodes that share a deployment. Each user belongs to one node, picked by consistent hashing on
+ * their UserId, and /train and /verify requests for a user are forwarded to that node, so whatever a node keeps about
+ * a user stays on the one node that sees all of their requests however the load balancer spreads them. Adding a node
+ * only moves about one user in every (nodes + 1).
+ *
+ * Cluster mode is off unless both of these system properties are set:
+ * <ul>
+ *     <li><code>tater.cluster.nodes</code>: the base URLs of every node, separated by commas. Every node must be
+ *         given the same list.</li>
+ *     <li><code>tater.cluster.self</code>: the base URL of this node, as it appears in the list.</li>
+ * </ul>
+ * And optionally:
+ * <ul>
+ *     <li><code>tater.cluster.connectTimeoutMs</code>: how long to wait to connect to another node (default 1000).</li>
+ *     <li><code>tater.cluster.retryMs</code>: how long to stop forwarding to a node that could not be reached
+ *         (default 5000).</li>
+ * </ul>
+ *
+ * A request for a node that cannot be connected to is served locally instead, so losing a node costs its users their
+ * affinity but not their requests. Once the owner has been sent a request, though, it may already be acting on it, so
+ * if it then fails to answer in time the caller gets a 504 rather than a second copy of the work done here. The
+ * owner's reply, status, headers and body, is passed back as it is; a stream of server-sent events, as /train/stream
+ * replies with, is relayed as the owner writes it. /verify/batch is always served by the node that receives it.
+ *
+ * Several nodes can be run on one machine with StandaloneServer, giving each its own port and the same node list:
+ *
+ * <pre>
+ *     java -Dtater.server.port=8081 -Dtater.cluster.self=http://localhost:8081/ \
+ *          -Dtater.cluster.nodes=http://localhost:8081/,http://localhost:8082/ dsd.cherry.tater.StandaloneServer
+ *     java -Dtater.server.port=8082 -Dtater.cluster.self=http://localhost:8082/ \
+ *          -Dtater.cluster.nodes=http://localhost:8081/,http://localhost:8082/ dsd.cherry.tater.StandaloneServer
+ * </pre>
+ */
+public class Cluster {
+    /**
+     * The header marking a request as already forwarded by the named node, so that nodes whose lists disagree for a
+     * moment serve it rather than bounce it between them.
+     */
+    public static final String FORWARDED_HEADER = "X-Tater-Forwarded";
+
+    private static final int POINTS_PER_NODE = 128;
+    private static final String EVENT_STREAM = "text/event-stream";
+    private static final JsonFactory json = new JsonFactory();
+    private static final Set<String> NOT_PASSED_BACK = new HashSet<String>(Arrays.asList(
+            "content-type", "content-length", "transfer-encoding", "connection", "keep-alive", "date", "server"));
+    private static final Cluster global = fromSystemProperties();
+
+    private final String self;
+    private final List<String> nodes;
+    private final ConsistentHash<String> ring;
+    private final int connectTimeoutMillis;
+    private final long retryMillis;
+    // node -> System.nanoTime() before which it is not forwarded to
+    private final Map<String,Long> unreachableUntil = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * @param self The base URL of this node.
+     * @param nodes The base URLs of every node, including this one.
+     * @param connectTimeoutMillis How long to wait to connect to another node.
+     * @param retryMillis How long to stop forwarding to a node that could not be reached.
+     */
+    public Cluster(String self, List<String> nodes, int connectTimeoutMillis, long retryMillis) {
+        Map<String,String> byName = new LinkedHashMap<String, String>();
+        for (String node : nodes) {
+            node = normalize(node);
+            if (!node.isEmpty()) byName.put(node, node);
+        }
+        this.self = normalize(self);
+        if (!byName.containsKey(this.self)) {
+            throw new IllegalArgumentException("This node, " + this.self + ", is not one of " + byName.keySet());
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(byName.keySet()));
+        this.ring = new ConsistentHash<String>(byName, POINTS_PER_NODE);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.retryMillis = retryMillis;
+    }
+
+    /**
+     * @return The cluster this process is a node of, or null if cluster mode is off.
+     */
+    public static Cluster getGlobal() { return global; }
+
+    private static Cluster fromSystemProperties() {
+        String nodes = System.getProperty("tater.cluster.nodes");
+        String self = System.getProperty("tater.cluster.self");
+        if (nodes == null || self == null) return null;
+        try {
+            Cluster cluster = new Cluster(self, Arrays.asList(nodes.split(",")),
+                    Integer.getInteger("tater.cluster.connectTimeoutMs", 1000),
+                    Long.getLong("tater.cluster.retryMs", 5000));
+            System.out.println("Cluster mode: " + cluster.self + " of " + cluster.nodes);
+            return cluster;
+        } catch (IllegalArgumentException e) {
+            System.out.println("Cluster mode is misconfigured, serving every user locally: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public String getSelf() { return self; }
+
+    public List<String> getNodes() { return nodes; }
+
+    /**
+     * @param userID The Authentication Server's ID for a person; may be null.
+     * @return The base URL of the node the user belongs to, or null if it is this one or there is no user.
+     */
+    public String ownerOf(String userID) {
+        if (userID == null) return null;
+        String owner = ring.get(userID);
+        return owner.equals(self) ? null : owner;
+    }
+
+    /**
+     * Forwards a /train or /verify request to the node its user belongs to.
+     * @param path The endpoint, e.g. "/verify".
+     * @param body The request body.
+     * @param deadline When the caller stops waiting for the reply.
+     * @return The owner's reply; 502 or 504 if the owner was sent the request but did not answer it; or null if the
+     *         request belongs to this node or the owner could not be connected to, in which case it should be served
+     *         here.
+     */
+    public Response route(String path, byte[] body, Deadline deadline) {
+        String owner = ownerOf(peekUserID(body));
+        if (owner == null || deadline.isExpired()) return null;
+        Long until = unreachableUntil.get(owner);
+        if (until != null) {
+            if (until - System.nanoTime() > 0) return null;
+            unreachableUntil.remove(owner, until);
+        }
+        HttpURLConnection connection;
+        try {
+            connection = connect(owner, path, body.length, deadline);
+        } catch (IOException e) {
+            System.out.println("Cannot connect to " + owner + " to forward " + path + ", serving it here: "
+                    + e.getMessage());
+            unreachableUntil.put(owner, System.nanoTime() + retryMillis * 1000000L);
+            return null;
+        }
+        try {
+            return exchange(connection, body);
+        } catch (SocketTimeoutException e) {
+            connection.disconnect();
+            System.out.println(owner + " did not answer " + path + " in time: " + e.getMessage());
+            return Response.status(504)
+                    .entity("The node serving this user did not answer in time.").build();
+        } catch (IOException e) {
+            connection.disconnect();
+            System.out.println("Lost " + owner + " while it was serving " + path + ": " + e.getMessage());
+            return Response.status(502)
+                    .entity("The node serving this user failed to answer.").build();
+        }
+    }
+
+    /**
+     * @param forwardedBy The value of a request's FORWARDED_HEADER; may be null.
+     * @return Whether the request says it was forwarded by another node of this cluster. The header is only trusted
+     *         when it names a configured node, so a client cannot make a node skip routing with a made-up value.
+     */
+    public boolean isForwardedByPeer(String forwardedBy) {
+        if (forwardedBy == null) return false;
+        String node = normalize(forwardedBy);
+        return !node.equals(self) && nodes.contains(node);
+    }
+
+    /**
+     * Connects to a node, ready to send it a request. Failing here means the node never saw the request.
+     */
+    private HttpURLConnection connect(String node, String path, int length, Deadline deadline) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(node + path.substring(1)).openConnection();
+        int remaining = (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline.remainingMillis()));
+        connection.setConnectTimeout(Math.min(connectTimeoutMillis, remaining));
+        connection.setReadTimeout(remaining);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", MediaType.APPLICATION_JSON);
+        connection.setRequestProperty(FORWARDED_HEADER, self);
+        // the owner keeps to what is left of our deadline, not a fresh one of its own
+        connection.setRequestProperty(FacilitatorService.DEADLINE_HEADER, Long.toString(remaining));
+        connection.setFixedLengthStreamingMode(length);
+        connection.connect();
+        return connection;
+    }
+
+    /**
+     * Sends the request over a connection made by connect() and reads the reply, with its headers. A reply that is a
+     * stream of events is relayed as it arrives, and the connection closed once it ends; any other reply is read
+     * whole and the connection closed straight away.
+     */
+    private static Response exchange(HttpURLConnection connection, byte[] body) throws IOException {
+        OutputStream out = connection.getOutputStream();
+        out.write(body);
+        out.close();
+
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String type = connection.getContentType();
+        Response.ResponseBuilder reply = Response.status(status)
+                .type(type != null ? type : MediaType.APPLICATION_JSON);
+        if (in != null && type != null && type.startsWith(EVENT_STREAM)) {
+            reply.entity(relay(connection, in));
+        }
+        else {
+            try {
+                reply.entity(in == null ? new byte[0] : readAll(in));
+            } finally {
+                connection.disconnect();
+            }
+        }
+        for (Map.Entry<String,List<String>> header : connection.getHeaderFields().entrySet()) {
+            // the status line comes back under a null name; framing headers are the container's to write
+            if (header.getKey() == null || NOT_PASSED_BACK.contains(header.getKey().toLowerCase(Locale.ROOT))) continue;
+            for (String value : header.getValue()) {
+                reply.header(header.getKey(), value);
+            }
+        }
+        return reply.build();
+    }
+
+    /**
+     * Copies a streamed reply from the owner to the caller, pushing each part on as soon as it has been read.
+     */
+    private static StreamingOutput relay(final HttpURLConnection connection, final InputStream in) {
+        return new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                try {
+                    byte[] chunk = new byte[8192];
+                    int n;
+                    while ((n = in.read(chunk)) > 0) {
+                        out.write(chunk, 0, n);
+                        out.flush();
+                    }
+                } finally {
+                    in.close();
+                    connection.disconnect();
+                }
+            }
+        };
+    }
+
+    /**
+     * Finds the UserId of a /train or /verify request without binding the rest of it, skipping over the images.
+     * @return The UserId, or null if the body has none or is not a JSON object.
+     */
+    public static String peekUserID(byte[] body) {
+        try {
+            JsonParser parser = json.createParser(body);
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) return null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (field.equals("UserId")) return value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                    parser.skipChildren();
+                }
+                return null;
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            // malformed requests are served, and rejected, locally
+            return null;
+        }
+    }
+
+    /**
+     * Reads a request body whole, so that it can be both routed and parsed.
+     */
+    public static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            buffer.write(chunk, 0, n);
+        }
+        in.close();
+        return buffer.toByteArray();
+    }
+
+    private static String normalize(String node) {
+        node = node.trim();
+        return node.isEmpty() || node.endsWith("/") ? node : node + "/";
+    }
+}
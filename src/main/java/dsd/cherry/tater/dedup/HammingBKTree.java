@@ -0,0 +1,73 @@
+package dsd.cherry.tater.dedup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A BK-tree over 64-bit hashes under Hamming distance. Each child of a node sits at a known distance from it, so by
+ * the triangle inequality a search for hashes within r of a query only descends into the children at distance d - r
+ * to d + r from a node at distance d, rather than comparing the query with every hash. Not thread-safe.
+ * @param <T> The type of the values stored with the hashes.
+ */
+public class HammingBKTree<T> {
+    private static class Node<T> {
+        final long hash;
+        final T value;
+        // child at each distance 0-64, allocated on the first one
+        Object[] children;
+
+        Node(long hash, T value) {
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private Node<T> root;
+    private int size;
+
+    public void add(long hash, T value) {
+        Node<T> added = new Node<T>(hash, value);
+        ++size;
+        if (root == null) {
+            root = added;
+            return;
+        }
+        Node<T> node = root;
+        while (true) {
+            int distance = Long.bitCount(node.hash ^ hash);
+            if (node.children == null) node.children = new Object[65];
+            Node<T> child = child(node, distance);
+            if (child == null) {
+                node.children[distance] = added;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * @return The values of the hashes that differ from the given one in at most radius bits.
+     */
+    public List<T> within(long hash, int radius) {
+        List<T> found = new ArrayList<T>();
+        if (root != null) search(root, hash, radius, found);
+        return found;
+    }
+
+    public int size() { return size; }
+
+    private void search(Node<T> node, long hash, int radius, List<T> found) {
+        int distance = Long.bitCount(node.hash ^ hash);
+        if (distance <= radius) found.add(node.value);
+        if (node.children == null) return;
+        for (int d = Math.max(0, distance - radius); d <= Math.min(64, distance + radius); ++d) {
+            Node<T> child = child(node, d);
+            if (child != null) search(child, hash, radius, found);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T> child(Node<T> node, int distance) {
+        return (Node<T>) node.children[distance];
+    }
+}
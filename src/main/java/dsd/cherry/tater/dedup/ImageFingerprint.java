@@ -0,0 +1,118 @@
+package dsd.cherry.tater.dedup;
+
+import dsd.cherry.tater.util.GreyScale;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Perceptual hashes of an image: 64-bit summaries of what it looks like rather than of its bytes, so that a photo
+ * that was re-encoded, resized or slightly recoloured hashes to within a few bits of the original, while a different
+ * photo differs in about half of them.
+ *
+ * The difference hash (dHash) records whether each pixel of a 9x8 grey thumbnail is brighter than its right-hand
+ * neighbour. The DCT hash (pHash) records whether each of the 64 lowest spatial frequencies of a 32x32 thumbnail is
+ * above their median. Two images are only taken for duplicates if both hashes agree, as each lets through near misses
+ * that the other catches.
+ */
+public final class ImageFingerprint {
+    private static final int DCT_SIZE = 32;
+    private static final int DCT_KEEP = 8;
+    // COSINES[u][x] = cos((2x + 1) u pi / 2N), the DCT-II basis
+    private static final float[][] COSINES = new float[DCT_KEEP][DCT_SIZE];
+
+    static {
+        for (int u = 0; u < DCT_KEEP; ++u) {
+            for (int x = 0; x < DCT_SIZE; ++x) {
+                COSINES[u][x] = (float) Math.cos((2 * x + 1) * u * Math.PI / (2 * DCT_SIZE));
+            }
+        }
+    }
+
+    private final long dHash;
+    private final long pHash;
+
+    ImageFingerprint(long dHash, long pHash) {
+        this.dHash = dHash;
+        this.pHash = pHash;
+    }
+
+    /**
+     * @param image An encoded image, e.g. a JPEG or PNG.
+     * @return The image's fingerprint, or null if it could not be read.
+     */
+    public static ImageFingerprint of(byte[] image) {
+        if (image == null) return null;
+        BufferedImage decoded = GreyScale.decode(image);
+        if (decoded == null) return null;
+        // the image is only scaled down once, which costs as much as decoding it; the dHash thumbnail comes from this
+        float[] thumbnail = GreyScale.scale(decoded, DCT_SIZE, DCT_SIZE);
+        return new ImageFingerprint(dHash(thumbnail), pHash(thumbnail));
+    }
+
+    private static long dHash(float[] thumbnail) {
+        // area-average the thumbnail down to 9x8
+        float[] grey = new float[9 * 8];
+        int[] counts = new int[9 * 8];
+        for (int y = 0; y < DCT_SIZE; ++y) {
+            for (int x = 0; x < DCT_SIZE; ++x) {
+                int target = (y * 8 / DCT_SIZE) * 9 + x * 9 / DCT_SIZE;
+                grey[target] += thumbnail[y * DCT_SIZE + x];
+                ++counts[target];
+            }
+        }
+        for (int i = 0; i < grey.length; ++i) {
+            grey[i] /= counts[i];
+        }
+        long hash = 0;
+        for (int y = 0; y < 8; ++y) {
+            for (int x = 0; x < 8; ++x) {
+                hash = (hash << 1) | (grey[y * 9 + x] > grey[y * 9 + x + 1] ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    private static long pHash(float[] grey) {
+        // the 2D DCT is separable: transform the rows, then the columns, keeping only the lowest frequencies
+        float[] rows = new float[DCT_SIZE * DCT_KEEP];
+        for (int y = 0; y < DCT_SIZE; ++y) {
+            for (int u = 0; u < DCT_KEEP; ++u) {
+                float sum = 0;
+                for (int x = 0; x < DCT_SIZE; ++x) {
+                    sum += grey[y * DCT_SIZE + x] * COSINES[u][x];
+                }
+                rows[y * DCT_KEEP + u] = sum;
+            }
+        }
+        float[] coefficients = new float[DCT_KEEP * DCT_KEEP];
+        for (int v = 0; v < DCT_KEEP; ++v) {
+            for (int u = 0; u < DCT_KEEP; ++u) {
+                float sum = 0;
+                for (int y = 0; y < DCT_SIZE; ++y) {
+                    sum += rows[y * DCT_KEEP + u] * COSINES[v][y];
+                }
+                coefficients[v * DCT_KEEP + u] = sum;
+            }
+        }
+        // the first coefficient is the overall brightness, which would skew the median
+        float[] sorted = Arrays.copyOfRange(coefficients, 1, coefficients.length);
+        Arrays.sort(sorted);
+        float median = sorted[sorted.length / 2];
+        long hash = 0;
+        for (float coefficient : coefficients) {
+            hash = (hash << 1) | (coefficient > median ? 1 : 0);
+        }
+        return hash;
+    }
+
+    public long getDHash() { return dHash; }
+    public long getPHash() { return pHash; }
+
+    /**
+     * @return The number of bits in which the more different of the two hashes differs, 0-64.
+     */
+    public int distance(ImageFingerprint other) {
+        return Math.max(Long.bitCount(dHash ^ other.dHash), Long.bitCount(pHash ^ other.pHash));
+    }
+}
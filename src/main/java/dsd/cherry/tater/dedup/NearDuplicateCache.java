@@ -0,0 +1,369 @@
+package dsd.cherry.tater.dedup;
+
+import dsd.cherry.tater.types.FacilitatorID;
+import dsd.cherry.tater.types.ImageData;
+import dsd.cherry.tater.types.SMVerifyData;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the fingerprints of each user's recent images, so that a photo that reaches the facilitator again, whether
+ * replayed byte for byte or re-encoded on the way, is recognised without asking any service:
+ *
+ * <ul>
+ *     <li>if rejections are remembered, a verify of a near-duplicate of an image recently rejected for the same
+ *     person is rejected again;</li>
+ *     <li>a training image that near-duplicates another in the same request is not sent to the services again, and
+ *     is reported as its original was;</li>
+ *     <li>a training image that near-duplicates one the user was recently trained with is left out for services that
+ *     add it to the person they already have, but not for services that start the person over, as those need all of
+ *     the user's images again.</li>
+ * </ul>
+ *
+ * Each user keeps their IMAGES_PER_USER most recent images in a HammingBKTree of their DCT hashes, and the least
+ * recently seen users are forgotten beyond the configured number. Entries expire after the configured time to live,
+ * and training a user drops the verify results remembered for them, as those were made against the old templates.
+ *
+ * Matches are never remembered. Verify is how users authenticate, so answering a near-duplicate of an accepted photo
+ * from the cache would accept anyone replaying a captured photo, without any service seeing it. Remembering
+ * rejections cannot let anyone in, but it does reject a user retrying with a similar photo, even one a service would
+ * now accept, until the rejection expires, so it is off unless asked for.
+ *
+ * Enabled with <code>tater.dedup.enabled=true</code>; see ServiceManager.fromSystemProperties() for its settings.
+ */
+public class NearDuplicateCache {
+    static final int IMAGES_PER_USER = 32;
+
+    private final int maxDistance;
+    private final long ttlMillis;
+    private final boolean rememberRejections;
+    private final Map<String,UserImages> users;
+    private final AtomicLong verifyHits = new AtomicLong();
+    private final AtomicLong trainDuplicates = new AtomicLong();
+
+    private static class Seen {
+        final ImageFingerprint fingerprint;
+        final long time;
+        // for verified images, the services asked and their answer; for trained images, whether any service took it
+        final String FACIDs;
+        final SMVerifyData result;
+        final boolean accepted;
+
+        Seen(ImageFingerprint fingerprint, long time, String FACIDs, SMVerifyData result, boolean accepted) {
+            this.fingerprint = fingerprint;
+            this.time = time;
+            this.FACIDs = FACIDs;
+            this.result = result;
+            this.accepted = accepted;
+        }
+    }
+
+    /**
+     * One user's recent images, oldest first, and the tree to search them by.
+     */
+    private static class UserImages {
+        final ArrayDeque<Seen> recent = new ArrayDeque<Seen>();
+        HammingBKTree<Seen> tree = new HammingBKTree<Seen>();
+
+        synchronized void add(Seen seen) {
+            recent.addLast(seen);
+            if (recent.size() > IMAGES_PER_USER) {
+                recent.removeFirst();
+                rebuild();
+            } else {
+                tree.add(seen.fingerprint.getPHash(), seen);
+            }
+        }
+
+        /**
+         * @return The most recent image within maxDistance of the fingerprint, younger than oldest, that the filter
+         *         accepts; or null.
+         */
+        synchronized Seen nearest(ImageFingerprint fingerprint, int maxDistance, long oldest, boolean verified) {
+            Seen best = null;
+            for (Seen seen : tree.within(fingerprint.getPHash(), maxDistance)) {
+                if (seen.time < oldest || (seen.result != null) != verified) continue;
+                if (seen.fingerprint.distance(fingerprint) > maxDistance) continue;
+                if (best == null || seen.time > best.time) best = seen;
+            }
+            return best;
+        }
+
+        synchronized void forgetVerified() {
+            boolean removed = false;
+            for (Iterator<Seen> seen = recent.iterator(); seen.hasNext(); ) {
+                if (seen.next().result != null) {
+                    seen.remove();
+                    removed = true;
+                }
+            }
+            if (removed) rebuild();
+        }
+
+        private void rebuild() {
+            tree = new HammingBKTree<Seen>();
+            for (Seen seen : recent) {
+                tree.add(seen.fingerprint.getPHash(), seen);
+            }
+        }
+    }
+
+    /**
+     * Builds a cache that only recognises near-duplicate training images.
+     * @param maxDistance The most bits in which two images' hashes may differ for them to count as duplicates.
+     * @param ttlMillis How long an image is remembered.
+     * @param maxUsers How many users' images are remembered at once.
+     */
+    public NearDuplicateCache(int maxDistance, long ttlMillis, int maxUsers) {
+        this(maxDistance, ttlMillis, maxUsers, false);
+    }
+
+    /**
+     * @param maxDistance The most bits in which two images' hashes may differ for them to count as duplicates.
+     * @param ttlMillis How long an image is remembered.
+     * @param maxUsers How many users' images are remembered at once.
+     * @param rememberRejections Whether to reject a verify of a near-duplicate of a recently rejected image without
+     *                           asking any service.
+     */
+    public NearDuplicateCache(int maxDistance, long ttlMillis, final int maxUsers, boolean rememberRejections) {
+        this.maxDistance = maxDistance;
+        this.ttlMillis = ttlMillis;
+        this.rememberRejections = rememberRejections;
+        if (rememberRejections) {
+            System.out.println("dedup: WARNING: verifies of near-duplicates of images rejected in the last " + ttlMillis
+                    + "ms are rejected without asking any service, even if a service would now accept them.");
+        }
+        this.users = new LinkedHashMap<String, UserImages>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,UserImages> eldest) {
+                return size() > maxUsers;
+            }
+        };
+    }
+
+    /**
+     * Fingerprints images in parallel, one per thread of the pool and the last on the calling thread.
+     * @return The images' fingerprints, in order, null for any that could not be read.
+     */
+    public static List<ImageFingerprint> fingerprint(List<ImageData> images, ExecutorService pool) {
+        List<Future<ImageFingerprint>> pending = new ArrayList<Future<ImageFingerprint>>();
+        for (int i = 0; i < images.size() - 1; ++i) {
+            final byte[] image = images.get(i).getImageBinary();
+            pending.add(pool.submit(new Callable<ImageFingerprint>() {
+                @Override
+                public ImageFingerprint call() {
+                    return ImageFingerprint.of(image);
+                }
+            }));
+        }
+        List<ImageFingerprint> fingerprints = new ArrayList<ImageFingerprint>(images.size());
+        ImageFingerprint last = images.isEmpty() ? null : ImageFingerprint.of(images.get(images.size() - 1)
+                .getImageBinary());
+        for (Future<ImageFingerprint> fingerprint : pending) {
+            try {
+                fingerprints.add(fingerprint.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fingerprints.add(null);
+            } catch (ExecutionException e) {
+                System.out.println("dedup: Error fingerprinting an image: " + e.getCause());
+                fingerprints.add(null);
+            }
+        }
+        if (!images.isEmpty()) fingerprints.add(last);
+        return fingerprints;
+    }
+
+    /**
+     * @return Whether verifies are looked up and remembered at all; if not, there is no need to fingerprint them.
+     */
+    public boolean remembersRejections() { return rememberRejections; }
+
+    /**
+     * @param FACIDs The services the verify would ask.
+     * @return The rejection of a recent near-duplicate of the image by the same services, or null.
+     */
+    public SMVerifyData verified(String userID, List<FacilitatorID> FACIDs, ImageFingerprint fingerprint) {
+        if (!rememberRejections || userID == null || fingerprint == null) return null;
+        UserImages images = user(userID, false);
+        if (images == null) return null;
+        long now = System.currentTimeMillis();
+        Seen seen = images.nearest(fingerprint, maxDistance, now - ttlMillis, true);
+        if (seen == null || seen.result.isMatch() || !seen.FACIDs.equals(key(FACIDs))) return null;
+        verifyHits.incrementAndGet();
+        System.out.println("dedup: Image for " + userID + " is a near-duplicate of one rejected "
+                + (now - seen.time) + "ms ago, rejecting it again.");
+        return seen.result;
+    }
+
+    /**
+     * Remembers the result of a verify, if it was a rejection and rejections are remembered.
+     */
+    public void rememberVerify(String userID, List<FacilitatorID> FACIDs, ImageFingerprint fingerprint,
+                               SMVerifyData result) {
+        if (!rememberRejections || userID == null || fingerprint == null || result.isMatch()) return;
+        user(userID, true).add(new Seen(fingerprint, System.currentTimeMillis(), key(FACIDs), result, false));
+    }
+
+    /**
+     * Sorts a training request's images into those to send to the services and the near-duplicates to leave out.
+     * @param images The request's images.
+     * @param fingerprints Their fingerprints, as from fingerprint().
+     * @return The enrollment, to be finished once the services have been trained.
+     */
+    public Enrollment enroll(String userID, List<ImageData> images, List<ImageFingerprint> fingerprints) {
+        return new Enrollment(userID, images, fingerprints);
+    }
+
+    /**
+     * A training request's images, sorted by enroll().
+     */
+    public class Enrollment {
+        private final String userID;
+        // the images not repeated within the request, and of those the ones not trained before
+        private final List<ImageData> distinct = new ArrayList<ImageData>();
+        private final List<ImageFingerprint> distinctFingerprints = new ArrayList<ImageFingerprint>();
+        private final List<ImageData> unseen = new ArrayList<ImageData>();
+        private final List<ImageFingerprint> unseenFingerprints = new ArrayList<ImageFingerprint>();
+        // duplicate -> the image in the same request it duplicates
+        private final Map<ImageData,ImageData> inRequest = new LinkedHashMap<ImageData, ImageData>();
+        // duplicate -> the earlier image it duplicates
+        private final Map<ImageData,Seen> earlier = new LinkedHashMap<ImageData, Seen>();
+        // whether the images trained before were sent to a service after all
+        private boolean resent;
+
+        private Enrollment(String userID, List<ImageData> images, List<ImageFingerprint> fingerprints) {
+            this.userID = userID;
+            UserImages known = userID == null ? null : user(userID, false);
+            long oldest = System.currentTimeMillis() - ttlMillis;
+            for (int i = 0; i < images.size(); ++i) {
+                ImageData image = images.get(i);
+                ImageFingerprint fingerprint = fingerprints.get(i);
+                if (fingerprint != null) {
+                    ImageData original = null;
+                    for (int j = 0; j < distinct.size() && original == null; ++j) {
+                        ImageFingerprint other = distinctFingerprints.get(j);
+                        if (other != null && other.distance(fingerprint) <= maxDistance) original = distinct.get(j);
+                    }
+                    if (original != null) {
+                        inRequest.put(image, original);
+                        continue;
+                    }
+                    Seen seen = known == null ? null : known.nearest(fingerprint, maxDistance, oldest, false);
+                    if (seen != null) {
+                        earlier.put(image, seen);
+                        distinct.add(image);
+                        distinctFingerprints.add(fingerprint);
+                        continue;
+                    }
+                }
+                distinct.add(image);
+                distinctFingerprints.add(fingerprint);
+                unseen.add(image);
+                unseenFingerprints.add(fingerprint);
+            }
+            // a request made only of images trained before is a retraining; let it through whole
+            if (unseen.isEmpty()) {
+                distinct.clear();
+                distinctFingerprints.clear();
+                distinct.addAll(images);
+                distinctFingerprints.addAll(fingerprints);
+                unseen.addAll(images);
+                unseenFingerprints.addAll(fingerprints);
+                inRequest.clear();
+                earlier.clear();
+            }
+            trainDuplicates.addAndGet(inRequest.size() + earlier.size());
+            if (!inRequest.isEmpty() || !earlier.isEmpty()) {
+                System.out.println("dedup: Leaving " + inRequest.size() + " repeated images out of training " + userID
+                        + ", and " + earlier.size() + " previously trained ones for services adding to their person.");
+            }
+        }
+
+        /**
+         * @param addsToPerson Whether the service adds the images to the person it already has, and so was given the
+         *                     images the user was trained with before. A service that starts the person over needs
+         *                     those again.
+         * @return The images to send to the service.
+         */
+        public List<ImageData> imagesFor(boolean addsToPerson) {
+            if (addsToPerson) return unseen;
+            if (!earlier.isEmpty()) resent = true;
+            return distinct;
+        }
+
+        /**
+         * @return The images not repeated within the request, which is every image any service is sent.
+         */
+        public List<ImageData> getDistinct() { return distinct; }
+
+        /**
+         * Reports each duplicate as its original was, and remembers the images the services were trained with.
+         * @param trained Whether training succeeded.
+         */
+        public void finish(boolean trained) {
+            for (Map.Entry<ImageData,ImageData> duplicate : inRequest.entrySet()) {
+                duplicate.getKey().setAcceptedByService(duplicate.getValue().getAcceptedByService());
+                duplicate.getKey().addCode(duplicate.getValue().getCode());
+            }
+            // images trained before that went to a service after all carry its answer instead
+            if (!resent) {
+                for (Map.Entry<ImageData,Seen> duplicate : earlier.entrySet()) {
+                    duplicate.getKey().setAcceptedByService(duplicate.getValue().accepted);
+                }
+            }
+            if (userID == null) return;
+            UserImages images = user(userID, true);
+            images.forgetVerified();
+            if (!trained) return;
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < unseen.size(); ++i) {
+                if (unseenFingerprints.get(i) == null) continue;
+                images.add(new Seen(unseenFingerprints.get(i), now, null, null, unseen.get(i).getAcceptedByService()));
+            }
+        }
+    }
+
+    /**
+     * @return The number of verifies rejected from remembered results.
+     */
+    public long getVerifyHits() { return verifyHits.get(); }
+
+    /**
+     * @return The number of training images left out as near-duplicates.
+     */
+    public long getTrainDuplicates() { return trainDuplicates.get(); }
+
+    private UserImages user(String userID, boolean create) {
+        synchronized (users) {
+            UserImages images = users.get(userID);
+            if (images == null && create) {
+                images = new UserImages();
+                users.put(userID, images);
+            }
+            return images;
+        }
+    }
+
+    private static String key(List<FacilitatorID> FACIDs) {
+        List<String> keys = new ArrayList<String>();
+        if (FACIDs != null) {
+            for (FacilitatorID FACID : FACIDs) {
+                keys.add(FACID.getFRService() + ":" + FACID.getFRPersonID());
+            }
+        }
+        Collections.sort(keys);
+        return keys.toString();
+    }
+}
@@ -0,0 +1,113 @@
+package dsd.cherry.tater.frservices;
+
+import com.facepp.error.FaceppParseException;
+import com.facepp.http.PostParameters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The FacePP accounts a communicator can call through. Each account has its own calls-per-second ceiling, so spreading
+ * work across several multiplies what the communicator can get through. Work that is not yet tied to an account, such
+ * as enrolling a new person, goes to the account with the fewest calls in flight. Persons belong to the account they
+ * were created in and can only be verified through it.
+ *
+ * Which account owns a person is kept here, not in their FRPersonID, which stays FacePP's own person ID, so the IDs
+ * handed out before the pool existed and those handed out since look the same to the Authentication Server. The pool
+ * remembers the owner of every person it creates or is told about; a person it has not seen since it started is
+ * looked up in each account in turn, first account first.
+ */
+class ApiKeyPool {
+    private final List<InstrumentedHttpRequests> keys;
+    // FacePP person ID -> the account it was created in
+    private final Map<String,InstrumentedHttpRequests> owners =
+            new ConcurrentHashMap<String, InstrumentedHttpRequests>();
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * @param apiKeys The accounts' API keys, separated by commas.
+     * @param apiSecrets The accounts' API secrets, separated by commas, in the same order as the keys.
+     * @param url The base URL of the FacePP API, or null for FacePP itself.
+     */
+    ApiKeyPool(String serviceName, String apiKeys, String apiSecrets, boolean isCN, boolean isDebug, String url) {
+        String[] keyList = apiKeys.split(",");
+        String[] secretList = apiSecrets == null ? new String[0] : apiSecrets.split(",");
+        if (keyList.length != secretList.length) {
+            throw new IllegalArgumentException("FacePP needs one API secret per API key, got " + keyList.length
+                    + " keys and " + secretList.length + " secrets.");
+        }
+
+        List<InstrumentedHttpRequests> keys = new ArrayList<InstrumentedHttpRequests>();
+        for (int i = 0; i < keyList.length; ++i) {
+            InstrumentedHttpRequests key = new InstrumentedHttpRequests(serviceName, keyList[i].trim(),
+                    secretList[i].trim(), isCN, isDebug);
+            if (url != null) InstrumentedHttpRequests.setWebSite(key, url.endsWith("/") ? url : url + "/");
+            keys.add(key);
+        }
+        this.keys = Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * @return The first account, which the group operations work on.
+     */
+    InstrumentedHttpRequests primary() { return keys.get(0); }
+
+    List<InstrumentedHttpRequests> getKeys() { return keys; }
+
+    /**
+     * Picks the account to start new work on: the one with the fewest calls in flight among those not resting after
+     * running out of quota, or if they all are, the one that gets back first. Ties go round the accounts in turn.
+     */
+    InstrumentedHttpRequests leastLoaded() {
+        int start = rotation.getAndIncrement() & Integer.MAX_VALUE;
+        InstrumentedHttpRequests best = null, soonest = null;
+        for (int i = 0; i < keys.size(); ++i) {
+            InstrumentedHttpRequests key = keys.get((start + i) % keys.size());
+            if (key.isAvailable()) {
+                if (best == null || key.getCallsInFlight() < best.getCallsInFlight()) best = key;
+            }
+            else if (soonest == null || key.getAvailableAt() - soonest.getAvailableAt() < 0) {
+                soonest = key;
+            }
+        }
+        return best != null ? best : soonest;
+    }
+
+    /**
+     * Finds the account a person was created in. A person the pool has not seen is looked up with person/get_info in
+     * each account until one knows them; with a single account there is nothing to look up.
+     * @param personID A person's FacePP ID.
+     * @return The account the person was created in, or null if no account in the pool has them.
+     * @throws FaceppParseException If the person was not found but an account could not be asked, so they may be
+     *                              there after all.
+     */
+    InstrumentedHttpRequests ownerOf(String personID) throws FaceppParseException {
+        InstrumentedHttpRequests owner = owners.get(personID);
+        if (owner != null) return owner;
+        if (keys.size() == 1) return keys.get(0);
+        FaceppParseException unanswered = null;
+        for (InstrumentedHttpRequests key : keys) {
+            try {
+                key.personGetInfo(new PostParameters().setPersonId(personID));
+            } catch (FaceppParseException e) {
+                if (!InstrumentedHttpRequests.hasErrorCode(e, InstrumentedHttpRequests.INVALID_PERSON)) unanswered = e;
+                continue;
+            }
+            remember(personID, key);
+            return key;
+        }
+        if (unanswered != null) throw unanswered;
+        return null;
+    }
+
+    /**
+     * Records that a person belongs to an account, e.g. because they were just created in it.
+     */
+    void remember(String personID, InstrumentedHttpRequests key) {
+        if (personID != null && keys.size() > 1) owners.put(personID, key);
+    }
+}
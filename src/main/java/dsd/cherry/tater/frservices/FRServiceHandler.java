@@ -1,19 +1,83 @@
 package dsd.cherry.tater.frservices;
 
+import dsd.cherry.tater.metrics.MetricsRegistry;
+import dsd.cherry.tater.metrics.OperationMetrics;
 import dsd.cherry.tater.types.ImageData;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by James Beach on 4/29/2016.
  */
 public abstract class FRServiceHandler {
-    private int timeoutSec;
+    // until a ServiceManager sets it, the same default as a ServiceManager's
+    private int timeoutSec = 10;
+    private OperationMetrics trainMetrics, verifyMetrics, identifyMetrics;
+    private final AtomicInteger callsInFlight = new AtomicInteger();
 
     abstract public FRServiceHandlerTrainResponse train(String userID, List<ImageData> images);
 
+    /**
+     * Trains the service while reporting each image as soon as the service has accepted or rejected it. Handlers that
+     * cannot report images individually report them all once training has finished.
+     * @param userID The ID of the person to train.
+     * @param images The images to train the person with.
+     * @param listener Receives each image as it is processed; may be null.
+     * @return The training response.
+     */
+    public FRServiceHandlerTrainResponse train(String userID, List<ImageData> images, TrainProgressListener listener) {
+        FRServiceHandlerTrainResponse response = train(userID, images);
+        if (listener != null && images != null) {
+            for (ImageData image : images) {
+                listener.imageProcessed(getFRServiceName(), image);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Trains the service with a person's images. The default is for handlers that know a person by one ID only: it
+     * trains the person's ID at the service if they have one and their internal ID otherwise. Handlers that name or
+     * file persons by their internal ID override this, so that a person they already know keeps their internal ID.
+     * @param internalID The Authentication Server's ID for the person.
+     * @param FRPersonID The service's ID for the person from an earlier training, or null if it has none.
+     * @param images The images to train the person with.
+     * @param listener Receives each image as it is processed; may be null.
+     * @return The training response.
+     */
+    public FRServiceHandlerTrainResponse train(String internalID, String FRPersonID, List<ImageData> images,
+                                               TrainProgressListener listener) {
+        return train(FRPersonID != null ? FRPersonID : internalID, images, listener);
+    }
+
+    /**
+     * @return Whether train(internalID, FRPersonID, ...) adds the images to the person the service already has, so
+     *         that images the person was trained with before need not be sent again. The default, for handlers that
+     *         may start the person over, is false.
+     */
+    public boolean addsToExistingPerson() {
+        return false;
+    }
+
+    /**
+     * Verifies a face against a person. The request's Deadline is attached to the calling thread; handlers making
+     * more than one call to their service should stop once it has passed rather than finish work nobody will read.
+     */
     abstract public FRServiceHandlerVerifyResponse verify(String personID, ImageData image);
 
+    /**
+     * Finds the persons the service knows who most resemble a face. As with verify, the request's Deadline is
+     * attached to the calling thread, and a handler searching in several places should answer with what it has found
+     * once it passes. The default answers that the service cannot identify faces.
+     * @param image The face to identify.
+     * @param limit The most candidates to return.
+     * @return The candidates found, best first.
+     */
+    public FRServiceHandlerIdentifyResponse identify(ImageData image, int limit) {
+        return new FRServiceHandlerIdentifyResponse(getFRServiceName(), false, getFRServiceCutoff(), null);
+    }
+
     abstract public String getFRServiceName();
 
     abstract public float getFRServiceCutoff();
@@ -21,4 +85,72 @@ public abstract class FRServiceHandler {
     final public void setTimeout(int seconds) {
         timeoutSec = seconds;
     }
+
+    /**
+     * @return How long, in seconds, a call to the service may take when no deadline says otherwise.
+     */
+    final public int getTimeout() {
+        return timeoutSec;
+    }
+
+    /**
+     * Prepares the handler to take traffic, e.g. by opening connections to its service, so that the first requests
+     * sent to it are not the ones to pay for that. Called once before the handler is added to a running
+     * ServiceManager; the default does nothing.
+     */
+    public void warmUp() {}
+
+    /**
+     * Releases whatever the handler holds. Called once the handler has been removed from a ServiceManager and the
+     * calls still running on it have finished; the default does nothing.
+     */
+    public void shutdown() {}
+
+    /**
+     * Counts a call into the handler, so that the handler is not shut down while the call is running. Every call to
+     * callStarted() must be followed by a call to callFinished().
+     */
+    final public void callStarted() {
+        callsInFlight.incrementAndGet();
+    }
+
+    final public void callFinished() {
+        callsInFlight.decrementAndGet();
+    }
+
+    final public int getCallsInFlight() {
+        return callsInFlight.get();
+    }
+
+    /**
+     * @return The metrics recording calls to this handler's train methods.
+     */
+    final public OperationMetrics getTrainMetrics() {
+        // racing threads get the same instance back from the registry
+        if (trainMetrics == null) {
+            trainMetrics = MetricsRegistry.getGlobal().operation(getFRServiceName(), "train", MetricsRegistry.HANDLER);
+        }
+        return trainMetrics;
+    }
+
+    /**
+     * @return The metrics recording calls to this handler's verify method.
+     */
+    final public OperationMetrics getVerifyMetrics() {
+        if (verifyMetrics == null) {
+            verifyMetrics = MetricsRegistry.getGlobal().operation(getFRServiceName(), "verify", MetricsRegistry.HANDLER);
+        }
+        return verifyMetrics;
+    }
+
+    /**
+     * @return The metrics recording calls to this handler's identify method.
+     */
+    final public OperationMetrics getIdentifyMetrics() {
+        if (identifyMetrics == null) {
+            identifyMetrics =
+                    MetricsRegistry.getGlobal().operation(getFRServiceName(), "identify", MetricsRegistry.HANDLER);
+        }
+        return identifyMetrics;
+    }
 }
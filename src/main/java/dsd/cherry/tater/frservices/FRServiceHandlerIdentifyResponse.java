@@ -0,0 +1,60 @@
+package dsd.cherry.tater.frservices;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The persons a service found resembling a face, best first.
+ */
+public class FRServiceHandlerIdentifyResponse {
+    private String serviceName;
+    private boolean serviceResponded;
+    private float cutoff;
+    private List<Candidate> candidates;
+
+    /**
+     * A person a service found resembling the face.
+     */
+    public static class Candidate {
+        private String internalID;
+        private String FRPersonID;
+        private float confidence;
+
+        /**
+         * @param internalID The Authentication Server's ID for the person.
+         * @param FRPersonID The service's ID for the person, as handed out when they were trained.
+         * @param confidence The raw confidence reported by the service.
+         */
+        public Candidate(String internalID, String FRPersonID, float confidence) {
+            this.internalID = internalID;
+            this.FRPersonID = FRPersonID;
+            this.confidence = confidence;
+        }
+
+        public String getInternalID() { return internalID; }
+        public String getFRPersonID() { return FRPersonID; }
+        public float getConfidence() { return confidence; }
+    }
+
+    /**
+     * <b>Constructor.</b>
+     * @param serviceName The name of the service, should be identical to the service name or ID provided elsewhere.
+     * @param serviceResponded True if the service responded within the allotted timeout period; false otherwise.
+     * @param cutoff The minimum confidence constituting a match.
+     * @param candidates The persons found, best first; empty if none were, or the service did not respond.
+     */
+    protected FRServiceHandlerIdentifyResponse(String serviceName,
+                                               boolean serviceResponded,
+                                               float cutoff,
+                                               List<Candidate> candidates) {
+        this.serviceName = serviceName;
+        this.serviceResponded = serviceResponded;
+        this.cutoff = cutoff;
+        this.candidates = candidates == null ? Collections.<Candidate>emptyList() : candidates;
+    }
+
+    public String getServiceName() { return serviceName; }
+    public boolean getServiceResponded() { return serviceResponded; }
+    public float getCutoff() { return cutoff; }
+    public List<Candidate> getCandidates() { return candidates; }
+}
@@ -0,0 +1,18 @@
+package dsd.cherry.tater.frservices;
+
+/**
+ * Turns a face image into a fixed-length vector such that images of the same person lie close together, for
+ * LocalEmbeddingHandler to compare. Implementations must be safe to call from many threads at once.
+ */
+public interface FaceEmbedder {
+    /**
+     * @return The length of the vectors this embedder produces.
+     */
+    int dimensions();
+
+    /**
+     * @param image An encoded image of a face, e.g. a JPEG or PNG.
+     * @return The face's embedding, scaled to unit length, or null if the image could not be read.
+     */
+    float[] embed(byte[] image);
+}
@@ -10,6 +10,10 @@ package dsd.cherry.tater.frservices;
 
 import dsd.cherry.tater.frservices.FRServiceHandlerTrainResponse;
 import dsd.cherry.tater.types.ImageData;
+import dsd.cherry.tater.types.StatusCode;
+import dsd.cherry.tater.util.Deadline;
+import dsd.cherry.tater.util.TopK;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -18,9 +22,25 @@ import com.facepp.http.HttpRequests;
 import com.facepp.http.PostParameters;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dsd.cherry.tater.frservices.FRServiceHandler;
 
@@ -30,6 +50,17 @@ import dsd.cherry.tater.frservices.FRServiceHandler;
  * Makes HTTP requests to the API to create groups of people. Each person has a set of face
  * images. These are used to determine if a provided image of a person's face matches any
  * of the people in the group.
+ *
+ * Persons are spread across <code>tater.facepp.groupShards</code> groups (default 1) by consistent hashing on their
+ * name, and group-wide operations run against every shard at once; see GroupShards.
+ *
+ * The communicator can call through several FacePP accounts at once; see ApiKeyPool. Training enrolls each new person
+ * through the least busy account and verifying goes through the account that owns the person. The group operations
+ * work on the first account.
+ *
+ * Groups are retrained after their persons change by a GroupTrainingScheduler, at most once every
+ * <code>tater.facepp.groupTrainWindowMs</code> (default 30000), checking on training every
+ * <code>tater.facepp.groupTrainPollMs</code> (default 1000).
  */
 public class FacePPCommunicator extends FRServiceHandler {
 
@@ -38,26 +69,84 @@ public class FacePPCommunicator extends FRServiceHandler {
     private Boolean useChineseServer;
     private Boolean useHttp;
     private HttpRequests httpRequests;
+    private ApiKeyPool keys;
     private String groupName;
+    private volatile GroupShards shards;
+    private GroupTrainingScheduler groupTraining;
+    // each account has its own groups, so each has its own scheduler
+    private Map<InstrumentedHttpRequests,GroupTrainingScheduler> groupTrainings;
+    private static ExecutorService shardPool;
 
     /**
      * Constructor
      */
     public FacePPCommunicator(String apiKey, String apiSecret) {
+        this(apiKey, apiSecret, System.getProperty("tater.facepp.url"));
+    }
+
+    /**
+     * Constructor for a communicator talking to a particular FacePP endpoint.
+     * @param apiKey The API key, or several separated by commas to spread calls across that many accounts.
+     * @param apiSecret The API secret, or one per key separated by commas.
+     * @param url The base URL of the FacePP API, or null for FacePP itself.
+     */
+    public FacePPCommunicator(String apiKey, String apiSecret, String url) {
         this.apiKey = apiKey;
         this.apiSecret = apiSecret;
         useChineseServer = false;
         useHttp = true;
         groupName = "faceSqaud2";
+        shards = new GroupShards(groupName, Integer.getInteger("tater.facepp.groupShards", 1));
 
-        initializeHttpRequests();
+        initializeHttpRequests(url);
+        groupTrainings = new HashMap<InstrumentedHttpRequests, GroupTrainingScheduler>();
+        for (InstrumentedHttpRequests key : keys.getKeys()) {
+            groupTrainings.put(key, newGroupTraining(key));
+        }
+        groupTraining = groupTrainings.get(keys.primary());
+    }
+
+    private GroupTrainingScheduler newGroupTraining(final InstrumentedHttpRequests key) {
+        String apiKey = key.getApiKey();
+        String account = apiKey.substring(0, Math.min(6, apiKey.length()));
+        return new GroupTrainingScheduler(getFRServiceName(), account, new GroupTrainingScheduler.GroupTrainer() {
+            @Override
+            public String startTraining(String group) throws Exception {
+                return key.trainIdentify(new PostParameters().setGroupName(group)).getString("session_id");
+            }
+
+            @Override
+            public String sessionStatus(String sessionID) throws Exception {
+                return key.infoGetSession(new PostParameters().setSessionId(sessionID)).getString("status");
+            }
+        }, Long.getLong("tater.facepp.groupTrainWindowMs", 30000), Long.getLong("tater.facepp.groupTrainPollMs", 1000));
     }
 
     /**
-     * Initializes the HTTP request object with the API key and API secret.
+     * Constructor for a communicator working through one account of another communicator's pool.
      */
-    private void initializeHttpRequests() {
-        httpRequests = new HttpRequests(apiKey, apiSecret, useChineseServer, useHttp);
+    private FacePPCommunicator(FacePPCommunicator pooled, InstrumentedHttpRequests key) {
+        this.apiKey = key.getApiKey();
+        this.apiSecret = key.getApiSecret();
+        useChineseServer = pooled.useChineseServer;
+        useHttp = pooled.useHttp;
+        groupName = pooled.groupName;
+        shards = pooled.shards;
+        groupTrainings = pooled.groupTrainings;
+        groupTraining = pooled.groupTrainings.get(key);
+        keys = pooled.keys;
+        httpRequests = key;
+        setTimeout(pooled.getTimeout());
+    }
+
+    /**
+     * Initializes the HTTP request objects with the API keys and API secrets.
+     * @param url If not null, requests go there instead of to FacePP, e.g. to a local FacePPStandIn. The
+     *            <code>tater.facepp.url</code> system property sets it for communicators built without one.
+     */
+    private void initializeHttpRequests(String url) {
+        keys = new ApiKeyPool(getFRServiceName(), apiKey, apiSecret, useChineseServer, useHttp, url);
+        httpRequests = keys.primary();
     }
 
     /**
@@ -97,8 +186,7 @@ public class FacePPCommunicator extends FRServiceHandler {
 
     /**
      * Attempts to detect a face in the image byte array.
-     * Again, why can't we extract face_id from the JSONObject this time?
-     * Do we need to though?
+     * Returns the face ID associated with the face in the image, or an empty string if no face was found.
      */
      protected String detectFace(byte[] data) {
          System.out.println("detecting face in FacePP" + "\n");
@@ -110,7 +198,7 @@ public class FacePPCommunicator extends FRServiceHandler {
              e.printStackTrace();
          }
          System.out.println("result: " + result.toString() + "\n");
-         return result.toString();
+         return getFaceId(result);
      }
 
          /**
@@ -136,7 +224,9 @@ public class FacePPCommunicator extends FRServiceHandler {
                   e.printStackTrace();
               }
               System.out.println("person ID: " + personID);
-              addPersonToGroup(personID);
+              String group = shards.groupFor(personName);
+              addPersonToGroup(personID, group);
+              groupTraining.markDirty(group);
               return personID;
           }
 
@@ -171,11 +261,13 @@ public class FacePPCommunicator extends FRServiceHandler {
            * when he adds a person, he adds that person to the group using groupAddPerson. Tbe question is,
            * does one need to use both personDelete() and groupRemovePerson() or just one?
            */
-          protected String removePersonFromGroup(String personID) {
+          protected String removePersonFromGroup(String personID, String personName) {
           System.out.println("Removing person from group: " + personID + "\n");
           JSONObject result = new JSONObject();
+          String group = shards.groupFor(personName);
           try {
-              result = httpRequests.groupRemovePerson(new PostParameters().setGroupName(groupName).setPersonId(personID));
+              result = httpRequests.groupRemovePerson(new PostParameters().setGroupName(group).setPersonId(personID));
+              groupTraining.markDirty(group);
           }
           catch (FaceppParseException e) {
               e.printStackTrace();
@@ -287,10 +379,18 @@ public class FacePPCommunicator extends FRServiceHandler {
 
 
           /**
-          * Creates a person group.
-           * returns the group id
+          * Creates the person groups, one per shard.
+           * returns the results of creating each group
           */
         protected String createGroup(){
+            StringBuilder results = new StringBuilder();
+            for (String group : shards.getGroupNames()) {
+                results.append(createGroup(group)).append('\n');
+            }
+            return results.toString();
+        }
+
+        private String createGroup(String groupName){
             System.out.println("[facepp] Creating group: " + groupName + "\n");
             JSONObject result = new JSONObject();
             try {
@@ -322,7 +422,7 @@ public class FacePPCommunicator extends FRServiceHandler {
           /**
           * Adds a person to a group with the person's ID.
           */
-          private String addPersonToGroup(String personID){
+          private String addPersonToGroup(String personID, String groupName){
               System.out.println("Adding person to group: " + personID + "\n");
               JSONObject result = new JSONObject();
               try {
@@ -355,24 +455,247 @@ public class FacePPCommunicator extends FRServiceHandler {
         }
 
     /**
-     * Face trains a group of people.
-     * @return
+     * Face trains every group of people, all shards at once, straight away. Changes made through the communicator
+     * retrain their groups by themselves; see getGroupTraining().
+     * @return The session info of each group's training, as a JSON object keyed by group name.
      */
     protected String trainGroup(){
-        System.out.println("Training group: " + groupName + "\n");
+        return trainGroups(shards.getGroupNames()).toString();
+    }
+
+    private JSONObject trainGroups(Collection<String> groups) {
+        Map<String,JSONObject> sessions = forEachGroup(groups, new GroupCall<String>() {
+            @Override
+            public JSONObject call(String group) throws FaceppParseException, JSONException {
+                System.out.println("Training group: " + group + "\n");
+                JSONObject result = httpRequests.trainIdentify(new PostParameters().setGroupName(group));
+                return httpRequests.infoGetSession(new PostParameters().setSessionId(result.getString("session_id")));
+            }
+        });
+        JSONObject sessionInfo = new JSONObject();
+        for (Map.Entry<String,JSONObject> session : sessions.entrySet()) {
+            try {
+                sessionInfo.put(session.getKey(), session.getValue());
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("Session Info: " + sessionInfo.toString() + "\n");
+        return sessionInfo;
+    }
+
+    private JSONObject identifyInGroups(final String faceID) {
+        return identifyInGroups(faceID, 3);
+    }
+
+    /**
+     * Identifies a detected face against every group at once and merges the candidates each group found, best first.
+     * The face is detected once and then referred to by its ID, so the image is only uploaded once however many
+     * groups there are.
+     * @param limit The most candidates to keep.
+     */
+    private JSONObject identifyInGroups(final String faceID, int limit) {
+        Map<String,JSONObject> results = forEachGroup(shards.getGroupNames(), new GroupCall<String>() {
+            @Override
+            public JSONObject call(String group) throws FaceppParseException {
+                return httpRequests.recognitionIdentify(new PostParameters().setGroupName(group).setKeyFaceId(faceID));
+            }
+        });
+        if (results.isEmpty()) return new JSONObject();
+        // while a rebalance is moving a person they can be in two groups, so keep their best match only
+        Map<String,JSONObject> best = new HashMap<String, JSONObject>();
+        for (JSONObject result : results.values()) {
+            JSONArray faces = result.optJSONArray("face");
+            JSONArray candidates = faces == null || faces.length() == 0
+                    ? null : faces.optJSONObject(0).optJSONArray("candidate");
+            for (int i = 0; candidates != null && i < candidates.length(); ++i) {
+                JSONObject candidate = candidates.optJSONObject(i);
+                JSONObject seen = best.get(candidate.optString("person_id"));
+                if (seen == null || seen.optDouble("confidence") < candidate.optDouble("confidence")) {
+                    best.put(candidate.optString("person_id"), candidate);
+                }
+            }
+        }
+        TopK<JSONObject> merged = new TopK<JSONObject>(limit);
+        for (JSONObject candidate : best.values()) {
+            merged.add(candidate, candidate.optDouble("confidence"));
+        }
+
         JSONObject result = new JSONObject();
-        JSONObject sessionInfo;
         try {
-            result = httpRequests.trainIdentify(new PostParameters().setGroupName(groupName));
-            sessionInfo = httpRequests.infoGetSession(new PostParameters().setSessionId(result.getString("session_id")));
-            System.out.println("Session Info: " + sessionInfo.toString() + "\n");
-            return sessionInfo.toString();
-        } catch (FaceppParseException e){
-            e.printStackTrace();
+            JSONObject face = new JSONObject();
+            face.put("face_id", faceID);
+            face.put("candidate", new JSONArray(merged.toList()));
+            result.put("face", new JSONArray(Collections.singletonList(face)));
         } catch (JSONException e) {
-           e.printStackTrace();
+            e.printStackTrace();
         }
-        return "UNSUCCESFULL RETRIEVAL OF SESSION INFO FOR TRAINING";
+        return result;
+    }
+
+    /**
+     * Adds a newly trained person to the group they belong in, in the account they were created in, creating the
+     * group there if the account does not have it yet, and schedules the group for retraining so that identify can
+     * find them. Only a missing group is created; any other error, such as running out of quota, leaves the person
+     * out of the group.
+     */
+    private void enrollInGroup(String personID, String personName) {
+        String group = shards.groupFor(personName);
+        try {
+            try {
+                httpRequests.groupAddPerson(new PostParameters().setGroupName(group).setPersonId(personID));
+            } catch (FaceppParseException e) {
+                if (!InstrumentedHttpRequests.hasErrorCode(e, InstrumentedHttpRequests.INVALID_GROUP)) throw e;
+                createGroup(group);
+                httpRequests.groupAddPerson(new PostParameters().setGroupName(group).setPersonId(personID));
+            }
+            groupTraining.markDirty(group);
+        } catch (FaceppParseException e) {
+            System.out.println("[facepp] Could not add " + personID + " to group " + group + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves persons into the groups they belong in once the number of shards changes, then schedules the groups that
+     * changed for retraining. New persons go to the new groups as soon as they exist, and identify looks in every group throughout,
+     * so the facilitator keeps working while persons are moved. Groups no longer needed are removed at the end.
+     * @param shardCount The new number of groups.
+     */
+    public void rebalanceGroups(int shardCount) {
+        GroupShards from = shards;
+        GroupShards to = from.resize(shardCount);
+        for (String group : to.getGroupNames()) {
+            if (!from.getGroupNames().contains(group)) createGroup(group);
+        }
+        shards = to;
+
+        Set<String> changed = new HashSet<String>();
+        for (String group : from.getGroupNames()) {
+            JSONArray persons;
+            try {
+                persons = httpRequests.groupGetInfo(new PostParameters().setGroupName(group)).optJSONArray("person");
+            } catch (FaceppParseException e) {
+                e.printStackTrace();
+                continue;
+            }
+            for (int i = 0; persons != null && i < persons.length(); ++i) {
+                JSONObject person = persons.optJSONObject(i);
+                String target = to.groupFor(person.optString("person_name"));
+                if (target.equals(group)) continue;
+                String personID = person.optString("person_id");
+                try {
+                    httpRequests.groupAddPerson(new PostParameters().setGroupName(target).setPersonId(personID));
+                    httpRequests.groupRemovePerson(new PostParameters().setGroupName(group).setPersonId(personID));
+                    changed.add(group);
+                    changed.add(target);
+                } catch (FaceppParseException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        for (String group : from.getGroupNames()) {
+            if (!to.getGroupNames().contains(group)) {
+                removeGroup(group);
+                changed.remove(group);
+            }
+        }
+        System.out.println("[facepp] Rebalanced " + from.size() + " groups into " + to.size() + ", "
+                + changed.size() + " changed.");
+        for (String group : changed) {
+            groupTraining.markDirty(group);
+        }
+    }
+
+    /**
+     * @return The scheduler retraining groups as they change, which knows when each group was last retrained.
+     */
+    public GroupTrainingScheduler getGroupTraining() {
+        return groupTraining;
+    }
+
+    private interface GroupCall<T> {
+        JSONObject call(T group) throws FaceppParseException, JSONException;
+    }
+
+    /**
+     * Makes a call against each of the groups, or accounts, in parallel, carrying the current deadline over to the
+     * calls. Calls still running when the deadline passes, or after the handler's timeout if there is no deadline,
+     * are abandoned, so a slow group costs its own answer only.
+     * @return The result of each group's call, leaving out the groups whose call failed or did not finish in time.
+     */
+    private <T> Map<T,JSONObject> forEachGroup(Collection<T> groups, final GroupCall<T> call) {
+        Map<T,JSONObject> results = new LinkedHashMap<T, JSONObject>();
+        if (groups.size() == 1) {
+            T group = groups.iterator().next();
+            try {
+                results.put(group, call.call(group));
+            } catch (FaceppParseException e) {
+                e.printStackTrace();
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            return results;
+        }
+
+        final Deadline deadline = Deadline.current();
+        Map<T,Future<JSONObject>> calls = new LinkedHashMap<T, Future<JSONObject>>();
+        for (final T group : groups) {
+            calls.put(group, getShardPool().submit(new Callable<JSONObject>() {
+                @Override
+                public JSONObject call() throws Exception {
+                    Deadline previous = Deadline.attach(deadline);
+                    try {
+                        return call.call(group);
+                    } finally {
+                        Deadline.attach(previous);
+                    }
+                }
+            }));
+        }
+        // e.g. bulk enrollment and rebalancing run without a deadline, but must not wait on a hung call forever
+        Deadline wait = deadline != null ? deadline : Deadline.after(TimeUnit.SECONDS.toMillis(getTimeout()));
+        for (Map.Entry<T,Future<JSONObject>> group : calls.entrySet()) {
+            try {
+                results.put(group.getKey(), group.getValue().get(wait.remainingNanos(), TimeUnit.NANOSECONDS));
+            } catch (ExecutionException e) {
+                System.out.println("[facepp] Call to group " + group.getKey() + " failed: " + e.getCause());
+            } catch (TimeoutException e) {
+                System.out.println("[facepp] Call to group " + group.getKey() + " did not finish in time.");
+                group.getValue().cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The pool group calls run on, shared by every communicator. It has at most
+     * <code>tater.facepp.shardThreads</code> threads (default 32) and no queue: once every thread is busy, a call
+     * runs on the thread that made it instead, so a burst of calls to slow groups cannot pile up threads.
+     */
+    private static synchronized ExecutorService getShardPool() {
+        if (shardPool == null) {
+            int threads = Math.max(1, Integer.getInteger("tater.facepp.shardThreads", 32));
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "tater-facepp-shard-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            shardPool = pool;
+        }
+        return shardPool;
     }
 
 
@@ -382,12 +705,7 @@ public class FacePPCommunicator extends FRServiceHandler {
           */
         protected String identifyPersonInGroup(String url){
             System.out.println("Identifying person in url: " + url + "\n");
-            JSONObject result = new JSONObject();
-            try {
-                result = httpRequests.recognitionIdentify(new PostParameters().setGroupName(groupName).setUrl(url));
-            } catch (FaceppParseException e){
-                e.printStackTrace();
-            }
+            JSONObject result = identifyInGroups(detectFace(url));
             System.out.println("result: " + result.toString() + "\n");
             return result.toString();
         }
@@ -413,7 +731,8 @@ public class FacePPCommunicator extends FRServiceHandler {
             System.out.println("Identifying person in file: " + file + "\n");
             JSONObject result = new JSONObject();
             try {
-                result = httpRequests.trainIdentify(new PostParameters().setGroupName(groupName).setImg(file));
+                String faceID = getFaceId(httpRequests.detectionDetect(new PostParameters().setImg(file)));
+                result = identifyInGroups(faceID);
             } catch (FaceppParseException e){
                 e.printStackTrace();
             }
@@ -438,12 +757,7 @@ public class FacePPCommunicator extends FRServiceHandler {
           */
          protected String identifyPersonInGroup(byte[] data){
              System.out.println("Identifying person in data: " + data + "\n");
-             JSONObject result = new JSONObject();
-             try {
-                 result = httpRequests.trainIdentify(new PostParameters().setGroupName(groupName).setImg(data));
-             } catch (FaceppParseException e){
-                 e.printStackTrace();
-             }
+             JSONObject result = identifyInGroups(detectFace(data));
              System.out.println("result: " + result.toString() + "\n");
              return result.toString();
          }
@@ -462,33 +776,124 @@ public class FacePPCommunicator extends FRServiceHandler {
             return result;
         }
 
+    @Override
+    public boolean addsToExistingPerson() {
+        return true;
+    }
+
+    /**
+     * Looks up a person trained before, renaming them after their internal ID if they were named otherwise, as
+     * persons retrained before training was given both IDs were named after their FacePP ID.
+     * @return The person's ID, or null if FacePP no longer has them.
+     */
+    private String findPerson(String personID, String internalID) {
+        JSONObject person;
+        try {
+            person = httpRequests.personGetInfo(new PostParameters().setPersonId(personID));
+        } catch (FaceppParseException e) {
+            if (InstrumentedHttpRequests.hasErrorCode(e, InstrumentedHttpRequests.INVALID_PERSON)) return null;
+            // they are most likely still there, and training a second person for them would split their faces
+            System.out.println("[facepp] Could not look up person " + personID + ", training them anyway: "
+                    + e.getMessage());
+            return personID;
+        }
+        if (!internalID.equals(person.optString("person_name"))) {
+            try {
+                httpRequests.personSetInfo(new PostParameters().setPersonId(personID).setPersonName(internalID));
+            } catch (FaceppParseException e) {
+                System.out.println("[facepp] Could not rename person " + personID + ": " + e.getMessage());
+            }
+        }
+        return personID;
+    }
+
+    /**
+     * Detects the face in an image and adds it to a person, recording on the image whether FacePP accepted it.
+     * @return True if the face was added to the person; false otherwise.
+     */
+    private boolean addImageToPerson(String personID, ImageData image) {
+        String faceID = detectFace(image.getImageBinary());
+        boolean added = false;
+        if (!faceID.isEmpty()) {
+            try {
+                JSONObject result =
+                        httpRequests.personAddFace(new PostParameters().setPersonId(personID).setFaceId(faceID));
+                System.out.println("result: " + result.toString() + "\n");
+                added = result.optBoolean("success", false);
+            } catch (FaceppParseException e) {
+                e.printStackTrace();
+            }
+        }
+        image.setAcceptedByService(added);
+        if (!added) image.addCode(StatusCode.IMAGE_ERROR);
+        return added;
+    }
+
     public FRServiceHandlerTrainResponse train(String userID, List<ImageData> images) {
+        return train(userID, null, images, null);
+    }
+
+    @Override
+    public FRServiceHandlerTrainResponse train(String userID, List<ImageData> images, TrainProgressListener listener) {
+        return train(userID, null, images, listener);
+    }
+
+    /**
+     * Trains a person named after their internal ID, which is how identify maps candidates back to it and which group
+     * they are filed in. A person FacePP already has is trained further, in the account they were created in, so
+     * their earlier faces are kept; anyone else becomes a new person.
+     */
+    @Override
+    public FRServiceHandlerTrainResponse train(String userID, String FRPersonID, List<ImageData> images,
+                                               TrainProgressListener listener) {
         String serviceName = "facepp";
-        FacePPCommunicator fpp = new FacePPCommunicator(apiKey, apiSecret);
         FRServiceHandlerTrainResponse response =
-                new FRServiceHandlerTrainResponse(serviceName, false, userID, false, images);
+                new FRServiceHandlerTrainResponse(serviceName, false, FRPersonID != null ? FRPersonID : userID,
+                                                  false, images);
         if (userID == null){
             return response;
         }
         if (images == null) {
             return response;
         }
-        String personId = fpp.createPerson(userID);
+        InstrumentedHttpRequests key = null;
+        String personId = null;
+        if (FRPersonID != null) {
+            try {
+                key = keys.ownerOf(FRPersonID);
+            } catch (FaceppParseException e) {
+                // they may well still be there, and training a second person for them would split their faces
+                System.out.println("[facepp] Could not find the account of person " + FRPersonID + ": "
+                        + e.getMessage());
+                return response;
+            }
+            if (key != null) personId = new FacePPCommunicator(this, key).findPerson(FRPersonID, userID);
+        }
+        if (personId == null) key = keys.leastLoaded();
+        FacePPCommunicator fpp = new FacePPCommunicator(this, key);
+        if (personId == null) {
+            personId = fpp.createPerson(userID);
+            keys.remember(personId, key);
+        }
         Iterator<ImageData> it = images.iterator();
         JSONObject result;
         int tries = 0;
         boolean goodTraining = false;
         boolean serverResponded = false;
         while (it.hasNext()) {
-            fpp.addFaceToPerson(personId,it.next().getImageBinary());
+            ImageData image = it.next();
+            fpp.addImageToPerson(personId, image);
+            if (listener != null) listener.imageProcessed(serviceName, image);
         }
+        if (personId != null) fpp.enrollInGroup(personId, userID);
+        Deadline deadline = Deadline.current();
         do {
             try {
                 String sessionId = fpp.trainPerson(personId);
                 serverResponded = true;
-                TimeUnit.SECONDS.sleep(1);
-                result = httpRequests.infoGetSession(new PostParameters().setSessionId(sessionId));
-                goodTraining = (result.getString("status") == "SUCC");
+                TimeUnit.MILLISECONDS.sleep(deadline == null ? 1000 : Math.min(1000, deadline.remainingMillis()));
+                result = key.infoGetSession(new PostParameters().setSessionId(sessionId));
+                goodTraining = "SUCC".equals(result.getString("status"));
             }
             catch (FaceppParseException e){
                 e.printStackTrace();
@@ -500,9 +905,9 @@ public class FacePPCommunicator extends FRServiceHandler {
                 e.printStackTrace();
             }
             tries++;
-        } while ((!goodTraining) && (tries < 10));
-        FRServiceHandlerTrainResponse response2 =
-                new FRServiceHandlerTrainResponse(serviceName, serverResponded, personId, goodTraining, images);
+        } while ((!goodTraining) && (tries < 10) && (deadline == null || !deadline.isExpired()));
+        FRServiceHandlerTrainResponse response2 = new FRServiceHandlerTrainResponse(serviceName, serverResponded,
+                personId, goodTraining, images);
         return response2;
     }
 
@@ -512,7 +917,6 @@ public class FacePPCommunicator extends FRServiceHandler {
         float confidence;
         final float cutoff;
         String FRPersonID = personID;
-        JSONObject result = identifyPerson(personID, image.getImageBinary());
         FRServiceHandlerVerifyResponse response = new FRServiceHandlerVerifyResponse(serviceName,false,0,80,personID);
         if (personID == null) {
             return response;
@@ -520,6 +924,17 @@ public class FacePPCommunicator extends FRServiceHandler {
         if (image == null){
             return response;
         }
+        InstrumentedHttpRequests key;
+        try {
+            key = keys.ownerOf(personID);
+        } catch (FaceppParseException e) {
+            System.out.println("[facepp] Could not find the account of person " + personID + ": " + e.getMessage());
+            return response;
+        }
+        if (key == null || !key.isAvailable()) {
+            return response;
+        }
+        JSONObject result = new FacePPCommunicator(this, key).identifyPerson(personID, image.getImageBinary());
         if (result != null) {
             {
             try {
@@ -540,10 +955,88 @@ public class FacePPCommunicator extends FRServiceHandler {
         return response;
 
     }
+    /**
+     * Identifies a face against the groups of every account at once, and every account's groups at once. The face is
+     * detected once per account, since FacePP face IDs belong to the account that detected them. Persons are named
+     * after their internal ID when they are trained, which is how candidates are mapped back to it.
+     */
+    @Override
+    public FRServiceHandlerIdentifyResponse identify(ImageData image, final int limit) {
+        String serviceName = getFRServiceName();
+        if (image == null || image.getImageBinary() == null) {
+            return new FRServiceHandlerIdentifyResponse(serviceName, false, getFRServiceCutoff(), null);
+        }
+        final byte[] data = image.getImageBinary();
+        final FacePPCommunicator pooled = this;
+        Map<InstrumentedHttpRequests,JSONObject> results = forEachGroup(keys.getKeys(),
+                new GroupCall<InstrumentedHttpRequests>() {
+            @Override
+            public JSONObject call(InstrumentedHttpRequests key) throws JSONException {
+                if (!key.isAvailable()) return new JSONObject();
+                FacePPCommunicator fpp = new FacePPCommunicator(pooled, key);
+                String faceID = fpp.detectFace(data);
+                if (faceID.isEmpty()) return new JSONObject().put("face", new JSONArray());
+                return fpp.identifyInGroups(faceID, limit);
+            }
+        });
+
+        boolean responded = false;
+        Map<String,FRServiceHandlerIdentifyResponse.Candidate> best =
+                new HashMap<String, FRServiceHandlerIdentifyResponse.Candidate>();
+        for (Map.Entry<InstrumentedHttpRequests,JSONObject> result : results.entrySet()) {
+            JSONArray faces = result.getValue().optJSONArray("face");
+            if (faces == null) continue;
+            responded = true;
+            JSONArray candidates = faces.length() == 0 ? null : faces.optJSONObject(0).optJSONArray("candidate");
+            for (int i = 0; candidates != null && i < candidates.length(); ++i) {
+                JSONObject candidate = candidates.optJSONObject(i);
+                String internalID = candidate.optString("person_name");
+                String personID = candidate.optString("person_id");
+                keys.remember(personID, result.getKey());
+                FRServiceHandlerIdentifyResponse.Candidate seen = best.get(internalID);
+                float confidence = (float) candidate.optDouble("confidence");
+                if (seen == null || seen.getConfidence() < confidence) {
+                    best.put(internalID, new FRServiceHandlerIdentifyResponse.Candidate(internalID, personID,
+                                                                                       confidence));
+                }
+            }
+        }
+        TopK<FRServiceHandlerIdentifyResponse.Candidate> merged =
+                new TopK<FRServiceHandlerIdentifyResponse.Candidate>(limit);
+        for (FRServiceHandlerIdentifyResponse.Candidate candidate : best.values()) {
+            merged.add(candidate, candidate.getConfidence());
+        }
+        return new FRServiceHandlerIdentifyResponse(serviceName, responded, getFRServiceCutoff(), merged.toList());
+    }
+
     public String getFRServiceName(){
         return "facepp";
     }
 
+    /**
+     * Makes a cheap call to FacePP so that the connection to it is open before the first request needs it.
+     */
+    @Override
+    public void warmUp() {
+        for (InstrumentedHttpRequests key : keys.getKeys()) {
+            try {
+                key.infoGetApp();
+            } catch (FaceppParseException e) {
+                System.out.println("facepp: Warm-up call failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops retraining groups; training already started on FacePP's side carries on without us.
+     */
+    @Override
+    public void shutdown() {
+        for (GroupTrainingScheduler scheduler : groupTrainings.values()) {
+            scheduler.close();
+        }
+    }
+
     public float getFRServiceCutoff(){
         return 80;
     }
@@ -589,7 +1082,9 @@ public class FacePPCommunicator extends FRServiceHandler {
         fpp.identifyPerson(personId, "http://i.huffpost.com/gen/2518262/images/n-OBAMA-628x314.jpg");
          fpp.removePersonWName("person_8"); //removing the person removes them from facepp removes them from the group.
        // fpp.removePersonFromGroup(personId);
-       fpp.removeGroup(fpp.groupName);
+       for (String group : fpp.shards.getGroupNames()) {
+           fpp.removeGroup(group);
+       }
     }
 }
 
@@ -0,0 +1,83 @@
+package dsd.cherry.tater.frservices;
+
+import dsd.cherry.tater.util.VectorMath;
+
+import java.nio.FloatBuffer;
+
+/**
+ * The embeddings a person was trained with, kept back to back so that comparing a face against them walks memory in
+ * order. They are either in a float[] on the heap or in a FloatBuffer over a store's memory-mapped file.
+ */
+public final class FaceTemplate {
+    private final String internalID;
+    private final int dimensions;
+    private final float[] vectors;
+    private final FloatBuffer mapped;
+    private final int length;
+
+    /**
+     * @param internalID The Authentication Server's ID for the person.
+     * @param dimensions The length of each embedding.
+     * @param vectors The embeddings, each of unit length, one after another.
+     */
+    public FaceTemplate(String internalID, int dimensions, float[] vectors) {
+        if (vectors.length % dimensions != 0) {
+            throw new IllegalArgumentException(vectors.length + " floats are not a whole number of "
+                    + dimensions + "-dimensional embeddings.");
+        }
+        this.internalID = internalID;
+        this.dimensions = dimensions;
+        this.vectors = vectors;
+        this.mapped = null;
+        this.length = vectors.length;
+    }
+
+    /**
+     * @param internalID The Authentication Server's ID for the person.
+     * @param dimensions The length of each embedding.
+     * @param mapped The embeddings, each of unit length, one after another from index 0 to the buffer's limit. The
+     *               buffer is read with absolute gets only, so it may be shared.
+     */
+    public FaceTemplate(String internalID, int dimensions, FloatBuffer mapped) {
+        if (mapped.limit() % dimensions != 0) {
+            throw new IllegalArgumentException(mapped.limit() + " floats are not a whole number of "
+                    + dimensions + "-dimensional embeddings.");
+        }
+        this.internalID = internalID;
+        this.dimensions = dimensions;
+        this.vectors = null;
+        this.mapped = mapped;
+        this.length = mapped.limit();
+    }
+
+    public String getInternalID() { return internalID; }
+    public int getDimensions() { return dimensions; }
+    public int getCount() { return length / dimensions; }
+
+    /**
+     * @return The embeddings, one after another; not to be modified. Templates in a mapped file are copied out.
+     */
+    public float[] getVectors() {
+        if (vectors != null) return vectors;
+        float[] copy = new float[length];
+        for (int i = 0; i < length; ++i) {
+            copy[i] = mapped.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * @param embedding A face's embedding, of unit length.
+     * @return The cosine similarity of the face to the closest of the person's embeddings.
+     */
+    public float similarity(float[] embedding) {
+        float best = -1;
+        for (int offset = 0; offset < length; offset += dimensions) {
+            float similarity = vectors != null
+                    ? VectorMath.dot(vectors, offset, embedding, 0, dimensions)
+                    : VectorMath.dot(mapped, offset, embedding, 0, dimensions);
+            best = Math.max(best, similarity);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,55 @@
+package dsd.cherry.tater.frservices;
+
+import dsd.cherry.tater.util.ConsistentHash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spreads persons across a number of FacePP groups by consistent hashing on their internal ID, so that no one group
+ * grows large enough to make training and identifying against it slow. Adding a group only moves the persons that
+ * now hash to it, about one in every (groups + 1), and leaves the rest where they were.
+ *
+ * The first group is named after the base name and the others after the base name and their number, so a single
+ * shard is the unsharded group persons were created in before.
+ */
+class GroupShards {
+    private static final int POINTS_PER_GROUP = 128;
+
+    private final String baseName;
+    private final List<String> groupNames;
+    private final ConsistentHash<String> ring;
+
+    GroupShards(String baseName, int shards) {
+        this.baseName = baseName;
+        Map<String,String> names = new LinkedHashMap<String, String>();
+        for (int i = 0; i < Math.max(1, shards); ++i) {
+            String name = i == 0 ? baseName : baseName + "-" + i;
+            names.put(name, name);
+        }
+        this.groupNames = Collections.unmodifiableList(new ArrayList<String>(names.keySet()));
+        this.ring = new ConsistentHash<String>(names, POINTS_PER_GROUP);
+    }
+
+    /**
+     * @param internalID The Authentication Server's ID for a person.
+     * @return The name of the group the person belongs in.
+     */
+    String groupFor(String internalID) {
+        return ring.get(internalID);
+    }
+
+    List<String> getGroupNames() { return groupNames; }
+
+    int size() { return groupNames.size(); }
+
+    /**
+     * @return The same groups with more added, for rebalancing into.
+     */
+    GroupShards resize(int shards) {
+        return new GroupShards(baseName, shards);
+    }
+}
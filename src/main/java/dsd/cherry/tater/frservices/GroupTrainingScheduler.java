@@ -0,0 +1,320 @@
+package dsd.cherry.tater.frservices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retrains groups after their persons or faces change, at most once per window however many changes there were.
+ * Training a group is an expensive job on the service's side, so rather than start one per enrollment the first
+ * change to a group schedules a run a window later and every change until then rides along with it. Changes made
+ * while a run is in progress schedule the next one, a window after the first of them.
+ *
+ * Runs are followed by polling their session on a timer, so no thread waits for training to finish. The timer only
+ * keeps time: starting a run and checking on it are calls to the service, made on a small shared pool of
+ * <code>tater.groupTraining.threads</code> workers (default 4), so one slow call does not hold up every other group's
+ * schedule. A run that fails leaves the group dirty, to be retried a window later, as does one still running after ten
+ * minutes.
+ *
+ * Every scheduler not yet closed is listed by getSchedulers(), for MetricsService to publish how fresh each group is.
+ */
+public class GroupTrainingScheduler {
+    /**
+     * Starts training a group and checks on it, for the scheduler to drive.
+     */
+    interface GroupTrainer {
+        /**
+         * @return The ID of the training session started.
+         * @throws Exception If training could not be started.
+         */
+        String startTraining(String group) throws Exception;
+
+        /**
+         * @return The status of a training session: "SUCC" once it has succeeded, "FAILED" if it failed, anything
+         *         else while it is still running.
+         * @throws Exception If the status could not be read; the scheduler asks again later.
+         */
+        String sessionStatus(String sessionID) throws Exception;
+    }
+
+    private static class GroupState {
+        boolean dirty;
+        long dirtySince;
+        boolean scheduled;
+        // between taking a run's changes and knowing its session
+        boolean starting;
+        String session;
+        long runStartedAt;
+        long lastRefreshed;
+    }
+
+    // a session still running after this long is taken to have been lost
+    private static final long SESSION_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static ScheduledExecutorService sharedTimer;
+    private static ExecutorService sharedWorkers;
+    private static final Set<GroupTrainingScheduler> schedulers = new LinkedHashSet<GroupTrainingScheduler>();
+
+    private final String serviceName;
+    private final String account;
+    private final GroupTrainer trainer;
+    private final long windowMillis;
+    private final long pollMillis;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+    private final Map<String,GroupState> groups = new HashMap<String, GroupState>();
+    private boolean closed;
+
+    /**
+     * @param account Which of the service's accounts the groups belong to, since each account has its own groups.
+     * @param windowMillis How long after a group's first change to retrain it.
+     * @param pollMillis How often to check on a group that is training.
+     */
+    GroupTrainingScheduler(String serviceName, String account, GroupTrainer trainer, long windowMillis,
+                           long pollMillis) {
+        this.serviceName = serviceName;
+        this.account = account;
+        this.trainer = trainer;
+        this.windowMillis = windowMillis;
+        this.pollMillis = pollMillis;
+        this.timer = getSharedTimer();
+        this.workers = getSharedWorkers();
+        synchronized (schedulers) {
+            schedulers.add(this);
+        }
+    }
+
+    /**
+     * @return Every scheduler that has not been closed.
+     */
+    public static List<GroupTrainingScheduler> getSchedulers() {
+        synchronized (schedulers) {
+            return new ArrayList<GroupTrainingScheduler>(schedulers);
+        }
+    }
+
+    /**
+     * Stops starting runs, for a service that is being shut down. Runs already started are still checked on, but
+     * nothing new is scheduled and the scheduler is no longer listed by getSchedulers().
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        synchronized (schedulers) {
+            schedulers.remove(this);
+        }
+    }
+
+    public String getServiceName() { return serviceName; }
+
+    public String getAccount() { return account; }
+
+    /**
+     * Records that a group's persons or faces changed, so that it is retrained within a window.
+     */
+    public synchronized void markDirty(String group) {
+        GroupState state = stateOf(group);
+        if (!state.dirty) {
+            state.dirty = true;
+            state.dirtySince = System.currentTimeMillis();
+        }
+        if (!state.scheduled && !state.starting && state.session == null && !closed) {
+            schedule(group, state, windowMillis);
+        }
+    }
+
+    /**
+     * @return When the group's model was last refreshed, as the time the run that refreshed it started, since only
+     *         changes made before then are in it; 0 if it has not been refreshed since this scheduler was created.
+     */
+    public synchronized long getLastRefreshed(String group) {
+        GroupState state = groups.get(group);
+        return state == null ? 0 : state.lastRefreshed;
+    }
+
+    /**
+     * @return When each group the scheduler knows about was last refreshed, as for getLastRefreshed(String).
+     */
+    public synchronized Map<String,Long> getLastRefreshed() {
+        Map<String,Long> refreshed = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String,GroupState> group : groups.entrySet()) {
+            refreshed.put(group.getKey(), group.getValue().lastRefreshed);
+        }
+        return refreshed;
+    }
+
+    /**
+     * @return True if the group has changes its model does not have yet, whether or not a run is on its way.
+     */
+    public synchronized boolean isStale(String group) {
+        GroupState state = groups.get(group);
+        return state != null && (state.dirty || state.starting || state.session != null);
+    }
+
+    private GroupState stateOf(String group) {
+        GroupState state = groups.get(group);
+        if (state == null) {
+            state = new GroupState();
+            groups.put(group, state);
+        }
+        return state;
+    }
+
+    private void schedule(final String group, GroupState state, long delayMillis) {
+        state.scheduled = true;
+        later(new Runnable() {
+            @Override
+            public void run() {
+                start(group);
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Runs a task on the workers once the delay has passed.
+     */
+    private void later(final Runnable task, long delayMillis) {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                workers.execute(task);
+            }
+        }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules the group's next run a window after its first unrefreshed change, if it has one.
+     */
+    private void scheduleNext(String group, GroupState state) {
+        if (state.dirty && !state.scheduled && !closed) {
+            schedule(group, state, state.dirtySince + windowMillis - System.currentTimeMillis());
+        }
+    }
+
+    private void start(final String group) {
+        long startedAt;
+        synchronized (this) {
+            GroupState state = stateOf(group);
+            state.scheduled = false;
+            if (!state.dirty || state.starting || state.session != null || closed) return;
+            state.dirty = false;
+            state.starting = true;
+            startedAt = state.runStartedAt = System.currentTimeMillis();
+        }
+
+        String session;
+        try {
+            session = trainer.startTraining(group);
+        } catch (Exception e) {
+            System.out.println("[" + serviceName + "] Could not start training group " + group + ": " + e);
+            session = null;
+        }
+
+        synchronized (this) {
+            GroupState state = stateOf(group);
+            state.starting = false;
+            if (session == null) {
+                if (!state.dirty) {
+                    state.dirty = true;
+                    state.dirtySince = startedAt;
+                }
+                // retry a full window later rather than straight away
+                if (!state.scheduled && !closed) schedule(group, state, windowMillis);
+                return;
+            }
+            state.session = session;
+        }
+        poll(group, session);
+    }
+
+    private void poll(final String group, final String session) {
+        later(new Runnable() {
+            @Override
+            public void run() {
+                check(group, session);
+            }
+        }, pollMillis);
+    }
+
+    private void check(String group, String session) {
+        long runningFor;
+        synchronized (this) {
+            runningFor = System.currentTimeMillis() - stateOf(group).runStartedAt;
+        }
+        String status;
+        try {
+            status = trainer.sessionStatus(session);
+        } catch (Exception e) {
+            System.out.println("[" + serviceName + "] Could not check training of group " + group + ": " + e);
+            status = null;
+        }
+        if (!"SUCC".equals(status) && runningFor > SESSION_TIMEOUT_MILLIS) status = "FAILED";
+        if (!"SUCC".equals(status) && !"FAILED".equals(status)) {
+            poll(group, session);
+            return;
+        }
+
+        synchronized (this) {
+            GroupState state = stateOf(group);
+            state.session = null;
+            if (status.equals("SUCC")) {
+                state.lastRefreshed = state.runStartedAt;
+                System.out.println("[" + serviceName + "] Group " + group + " retrained in "
+                        + (System.currentTimeMillis() - state.runStartedAt) + " ms.");
+            } else {
+                System.out.println("[" + serviceName + "] Training group " + group + " failed, will retry.");
+                if (!state.dirty) {
+                    state.dirty = true;
+                    state.dirtySince = System.currentTimeMillis();
+                }
+            }
+            scheduleNext(group, state);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getSharedTimer() {
+        if (sharedTimer == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "tater-group-training-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            sharedTimer = timer;
+        }
+        return sharedTimer;
+    }
+
+    private static synchronized ExecutorService getSharedWorkers() {
+        if (sharedWorkers == null) {
+            int threads = Math.max(1, Integer.getInteger("tater.groupTraining.threads", 4));
+            ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "tater-group-training-call");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            workers.allowCoreThreadTimeOut(true);
+            sharedWorkers = workers;
+        }
+        return sharedWorkers;
+    }
+}
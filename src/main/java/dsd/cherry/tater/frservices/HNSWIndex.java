@@ -0,0 +1,711 @@
+package dsd.cherry.tater.frservices;
+
+import dsd.cherry.tater.util.VectorMath;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An approximate nearest neighbour index over unit-length embeddings (a hierarchical navigable small world graph,
+ * Malkov and Yashunin 2016), so that identifying a face among millions of enrolled persons looks at a few thousand
+ * embeddings instead of all of them.
+ *
+ * Every embedding is a node linked to its most similar neighbours on level 0, and a random, exponentially thinning
+ * subset of nodes is also linked on the levels above. A search walks greedily down from the top level to find a good
+ * starting point and then explores level 0 best first, keeping the efSearch most similar nodes seen; a larger efSearch
+ * finds more of the true nearest neighbours at the cost of comparing more embeddings. m, the number of links per node,
+ * and efConstruction, the efSearch used while inserting, trade build time and memory for recall the same way.
+ *
+ * Embeddings are labelled with the FRPersonID they belong to, and a person may have several. A search returns
+ * persons, so efSearch counts persons too: the nodes kept are scaled by the embeddings per person, and the search goes
+ * on widening while the nodes it found belong to fewer than the persons asked for. Searches and inserts
+ * may run concurrently from any number of threads: the links of each node are guarded by one of a set of striped
+ * locks, and searches never wait for anything else. Removing a person only hides their embeddings from results; they
+ * stay in the graph, as its links run through them, until the index is rebuilt from scratch.
+ */
+public class HNSWIndex {
+    private static final int MAGIC = 0x484e5357;  // "HNSW"
+    private static final int VERSION = 1;
+    // nodes are kept in chunks of this many, so that growing the index never copies it
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+    private static final int LOCK_STRIPES = 1 << 12;
+
+    private final int dimensions;
+    private final int m;
+    private final int maxLinks0;
+    private final int efConstruction;
+    private volatile int efSearch;
+    private final double levelFactor;
+
+    // chunk -> the embeddings of its nodes, back to back
+    private volatile float[][] vectors = new float[16][];
+    // chunk -> for each node, its number of level 0 links followed by room for maxLinks0 of them
+    private volatile int[][] links0 = new int[16][];
+    // chunk -> for each node, the person it belongs to
+    private volatile int[][] owners = new int[16][];
+    private volatile int chunks;
+    private final Object growLock = new Object();
+    // node -> its links on levels 1 and up, each a count followed by room for m; only nodes above level 0 have any
+    private final ConcurrentHashMap<Integer,int[][]> upperLinks = new ConcurrentHashMap<Integer, int[][]>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final AtomicInteger nodes = new AtomicInteger();
+    private final Object entryLock = new Object();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // person -> FRPersonID, or null once removed
+    private final List<String> labels = new ArrayList<String>();
+    private final ConcurrentHashMap<String,Integer> persons = new ConcurrentHashMap<String, Integer>();
+    // person -> the node last added for them, or -1; guarded by labels
+    private int[] lastAdded = new int[16];
+
+    // inserts share it, saving takes it alone so that the file is a consistent snapshot
+    private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+
+    private final ThreadLocal<Visited> visited = new ThreadLocal<Visited>() {
+        @Override
+        protected Visited initialValue() { return new Visited(); }
+    };
+
+    /**
+     * A person found resembling the query.
+     */
+    public static class Match {
+        private final String label;
+        private final float similarity;
+
+        Match(String label, float similarity) {
+            this.label = label;
+            this.similarity = similarity;
+        }
+
+        public String getLabel() { return label; }
+
+        /**
+         * @return The cosine similarity of the person's closest embedding found.
+         */
+        public float getSimilarity() { return similarity; }
+    }
+
+    /**
+     * @param dimensions The length of the embeddings.
+     * @param m The number of links each node keeps per level, twice as many on level 0; 16 suits most embeddings.
+     * @param efConstruction How many candidates an insert considers linking to; 100-200 is typical.
+     * @param efSearch How many persons a search considers; at least the number of results asked for.
+     */
+    public HNSWIndex(int dimensions, int m, int efConstruction, int efSearch) {
+        if (dimensions < 1 || m < 2 || efConstruction < 1 || efSearch < 1) {
+            throw new IllegalArgumentException("Invalid HNSW parameters: dimensions " + dimensions + ", m " + m
+                    + ", efConstruction " + efConstruction + ", efSearch " + efSearch + ".");
+        }
+        this.dimensions = dimensions;
+        this.m = m;
+        this.maxLinks0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelFactor = 1 / Math.log(m);
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            locks[i] = new Object();
+        }
+    }
+
+    public int getDimensions() { return dimensions; }
+    public int getM() { return m; }
+    public int getEfConstruction() { return efConstruction; }
+    public int getEfSearch() { return efSearch; }
+    public void setEfSearch(int efSearch) { this.efSearch = Math.max(1, efSearch); }
+
+    /**
+     * @return The number of embeddings in the graph, including those of removed persons.
+     */
+    public int size() { return nodes.get(); }
+
+    public boolean contains(String label) { return persons.containsKey(label); }
+
+    /**
+     * Adds one of a person's embeddings.
+     * @param label The person's FRPersonID.
+     * @param vector Holds the embedding, of unit length, at [offset, offset + dimensions).
+     */
+    public void add(String label, float[] vector, int offset) {
+        structure.readLock().lock();
+        try {
+            int node = nodes.getAndIncrement();
+            ensureCapacity(node);
+            int chunk = node >>> CHUNK_BITS, slot = node & (CHUNK - 1);
+            System.arraycopy(vector, offset, vectors[chunk], slot * dimensions, dimensions);
+            int person = personOf(label);
+            owners[chunk][slot] = person;
+            synchronized (labels) {
+                lastAdded[person] = Math.max(lastAdded[person], node);
+            }
+            int level = (int) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * levelFactor);
+            if (level > 0) upperLinks.put(node, new int[level][m + 1]);
+            link(node, level, vector, offset);
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param label The person's FRPersonID.
+     * @param vector Holds an embedding at [offset, offset + dimensions).
+     * @return True if the embedding is the one last added for the person, i.e. the index has caught up with the
+     *         person's training if that embedding was the last one trained.
+     */
+    public boolean isLastAdded(String label, float[] vector, int offset) {
+        int node;
+        synchronized (labels) {
+            Integer person = persons.get(label);
+            if (person == null || lastAdded[person] < 0) return false;
+            node = lastAdded[person];
+        }
+        float[] chunk = vectors[node >>> CHUNK_BITS];
+        int base = (node & (CHUNK - 1)) * dimensions;
+        for (int i = 0; i < dimensions; ++i) {
+            if (Float.floatToIntBits(chunk[base + i]) != Float.floatToIntBits(vector[offset + i])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hides the person's embeddings from searches.
+     */
+    public void remove(String label) {
+        synchronized (labels) {
+            Integer person = persons.remove(label);
+            if (person != null) labels.set(person, null);
+        }
+    }
+
+    /**
+     * @param query The embedding to search for, of unit length.
+     * @param k The number of persons to return.
+     * @return Up to k persons, best first, each with the similarity of their closest embedding found.
+     */
+    public List<Match> search(float[] query, int k) {
+        int entry, top;
+        synchronized (entryLock) {
+            entry = entryPoint;
+            top = maxLevel;
+        }
+        if (entry < 0 || k < 1) return Collections.emptyList();
+
+        long best = descend(query, 0, entry, top, 0);
+        int total = nodes.get();
+        int persons;
+        synchronized (labels) {
+            persons = Math.max(1, labels.size());
+        }
+        // removed persons' embeddings count too, as they take up places in the results just the same
+        long perPerson = (total + persons - 1) / persons;
+        int ef = (int) Math.min(total, Math.max(efSearch, k) * perPerson);
+        while (true) {
+            long[] sorted = searchLayer(query, 0, best, ef, 0).drain();
+            List<Match> matches = distinct(sorted, k);
+            if (matches.size() >= k || sorted.length < ef || ef >= total) return matches;
+            ef = (int) Math.min(total, ef * 2L);
+        }
+    }
+
+    /**
+     * @param sorted Packed similarities of nodes, in ascending order.
+     * @return Up to k of the nodes' persons, best first, leaving out removed ones.
+     */
+    private List<Match> distinct(long[] sorted, int k) {
+        List<Match> matches = new ArrayList<Match>(k);
+        Set<Integer> seen = new HashSet<Integer>();
+        for (int i = sorted.length - 1; i >= 0 && matches.size() < k; --i) {
+            int node = id(sorted[i]);
+            int person = owners[node >>> CHUNK_BITS][node & (CHUNK - 1)];
+            if (!seen.add(person)) continue;
+            String label;
+            synchronized (labels) {
+                label = labels.get(person);
+            }
+            if (label != null) matches.add(new Match(label, similarity(sorted[i])));
+        }
+        return matches;
+    }
+
+    private int personOf(String label) {
+        Integer person = persons.get(label);
+        if (person != null) return person;
+        synchronized (labels) {
+            person = persons.get(label);
+            if (person == null) {
+                person = labels.size();
+                labels.add(label);
+                if (person == lastAdded.length) lastAdded = Arrays.copyOf(lastAdded, person * 2);
+                lastAdded[person] = -1;
+                persons.put(label, person);
+            }
+            return person;
+        }
+    }
+
+    private void ensureCapacity(int node) {
+        int chunk = node >>> CHUNK_BITS;
+        if (chunk < chunks) return;
+        synchronized (growLock) {
+            while (chunks <= chunk) {
+                int next = chunks;
+                if (next == vectors.length) {
+                    vectors = Arrays.copyOf(vectors, next * 2);
+                    links0 = Arrays.copyOf(links0, next * 2);
+                    owners = Arrays.copyOf(owners, next * 2);
+                }
+                vectors[next] = new float[CHUNK * dimensions];
+                links0[next] = new int[CHUNK * (maxLinks0 + 1)];
+                owners[next] = new int[CHUNK];
+                chunks = next + 1;
+            }
+        }
+    }
+
+    private void link(int node, int level, float[] vector, int offset) {
+        int entry, top;
+        synchronized (entryLock) {
+            entry = entryPoint;
+            top = maxLevel;
+            if (entry < 0) {
+                entryPoint = node;
+                maxLevel = level;
+                return;
+            }
+        }
+
+        long current = descend(vector, offset, entry, top, level);
+        int[] chosen = new int[maxLinks0 + 1];
+        for (int layer = Math.min(level, top); layer >= 0; --layer) {
+            long[] candidates = searchLayer(vector, offset, current, efConstruction, layer).drain();
+            current = candidates[candidates.length - 1];
+            int count = selectNeighbours(candidates, candidates.length, m, chosen);
+            synchronized (lockOf(node)) {
+                int[] links = linksOf(node, layer);
+                int base = baseOf(node, layer);
+                System.arraycopy(chosen, 0, links, base + 1, count);
+                links[base] = count;
+            }
+            for (int i = 0; i < count; ++i) {
+                addLink(chosen[i], layer, node);
+            }
+        }
+
+        if (level > top) {
+            synchronized (entryLock) {
+                if (level > maxLevel) {
+                    entryPoint = node;
+                    maxLevel = level;
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks greedily from the entry point down to the given level, moving to whichever neighbour is most similar.
+     * @return The node reached, packed with its similarity.
+     */
+    private long descend(float[] query, int offset, int entry, int top, int level) {
+        long current = pack(similarity(entry, query, offset), entry);
+        int[] links = new int[m + 1];
+        for (int layer = top; layer > level; --layer) {
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                int count = copyLinks(id(current), layer, links);
+                for (int i = 0; i < count; ++i) {
+                    long next = pack(similarity(links[i], query, offset), links[i]);
+                    if (next > current) {
+                        current = next;
+                        moved = true;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search of one level from a starting node.
+     * @return The ef most similar nodes found, as a heap of packed similarities and nodes.
+     */
+    private LongHeap searchLayer(float[] query, int offset, long start, int ef, int layer) {
+        Visited seen = visited.get();
+        seen.clear(chunks * CHUNK);
+        seen.add(id(start));
+        // candidates are pushed complemented, so that the min-heap pops the most similar first
+        LongHeap candidates = new LongHeap(ef * 2);
+        LongHeap results = new LongHeap(ef + 1);
+        candidates.push(~start);
+        results.push(start);
+        int[] links = new int[maxLinks0 + 1];
+        while (candidates.size() > 0) {
+            long candidate = ~candidates.pop();
+            if (results.size() >= ef && candidate < results.peek()) break;
+            int count = copyLinks(id(candidate), layer, links);
+            for (int i = 0; i < count; ++i) {
+                int neighbour = links[i];
+                if (!seen.add(neighbour)) continue;
+                long next = pack(similarity(neighbour, query, offset), neighbour);
+                if (results.size() < ef || next > results.peek()) {
+                    candidates.push(~next);
+                    results.push(next);
+                    if (results.size() > ef) results.pop();
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Picks up to max of the candidates to link to, most similar first, skipping any that is more similar to one
+     * already picked than to the node being linked: links then reach out in different directions rather than all
+     * into the same cluster, which keeps the graph navigable.
+     * @param candidates Packed similarities to the node being linked, in ascending order.
+     * @return The number of nodes written to chosen.
+     */
+    private int selectNeighbours(long[] candidates, int count, int max, int[] chosen) {
+        int picked = 0;
+        for (int i = count - 1; i >= 0 && picked < max; --i) {
+            int candidate = id(candidates[i]);
+            float toNode = similarity(candidates[i]);
+            boolean diverse = true;
+            for (int j = 0; j < picked && diverse; ++j) {
+                diverse = similarity(candidate, chosen[j]) <= toNode;
+            }
+            if (diverse) chosen[picked++] = candidate;
+        }
+        return picked;
+    }
+
+    private void addLink(int node, int layer, int neighbour) {
+        int max = layer == 0 ? maxLinks0 : m;
+        synchronized (lockOf(node)) {
+            int[] links = linksOf(node, layer);
+            int base = baseOf(node, layer);
+            int count = links[base];
+            if (count < max) {
+                links[base + 1 + count] = neighbour;
+                links[base] = count + 1;
+                return;
+            }
+            long[] candidates = new long[count + 1];
+            for (int i = 0; i < count; ++i) {
+                int linked = links[base + 1 + i];
+                candidates[i] = pack(similarity(node, linked), linked);
+            }
+            candidates[count] = pack(similarity(node, neighbour), neighbour);
+            Arrays.sort(candidates);
+            int[] chosen = new int[max];
+            int picked = selectNeighbours(candidates, candidates.length, max, chosen);
+            System.arraycopy(chosen, 0, links, base + 1, picked);
+            links[base] = picked;
+        }
+    }
+
+    private int copyLinks(int node, int layer, int[] into) {
+        synchronized (lockOf(node)) {
+            int[] links = linksOf(node, layer);
+            int base = baseOf(node, layer);
+            int count = links[base];
+            System.arraycopy(links, base + 1, into, 0, count);
+            return count;
+        }
+    }
+
+    private int[] linksOf(int node, int layer) {
+        return layer == 0 ? links0[node >>> CHUNK_BITS] : upperLinks.get(node)[layer - 1];
+    }
+
+    private int baseOf(int node, int layer) {
+        return layer == 0 ? (node & (CHUNK - 1)) * (maxLinks0 + 1) : 0;
+    }
+
+    private Object lockOf(int node) {
+        return locks[node & (LOCK_STRIPES - 1)];
+    }
+
+    private float similarity(int node, float[] query, int offset) {
+        return VectorMath.dot(vectors[node >>> CHUNK_BITS], (node & (CHUNK - 1)) * dimensions, query, offset,
+                dimensions);
+    }
+
+    private float similarity(int node, int other) {
+        return similarity(node, vectors[other >>> CHUNK_BITS], (other & (CHUNK - 1)) * dimensions);
+    }
+
+    // a similarity and a node packed into a long that orders by similarity, so that heaps need no objects
+
+    private static long pack(float similarity, int node) {
+        int bits = Float.floatToIntBits(similarity);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long) bits << 32) | (node & 0xffffffffL);
+    }
+
+    private static float similarity(long packed) {
+        int bits = (int) (packed >> 32);
+        return Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7fffffff));
+    }
+
+    private static int id(long packed) {
+        return (int) packed;
+    }
+
+    /**
+     * Writes the index to a file, replacing it only once it is complete. Inserts wait meanwhile; searches do not.
+     */
+    public void save(File file) throws IOException {
+        File partial = new File(file.getPath() + ".tmp");
+        structure.writeLock().lock();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial),
+                    1 << 16));
+            try {
+                int count = nodes.get();
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(dimensions);
+                out.writeInt(m);
+                out.writeInt(efConstruction);
+                out.writeInt(efSearch);
+                out.writeInt(count);
+                synchronized (entryLock) {
+                    out.writeInt(entryPoint);
+                    out.writeInt(maxLevel);
+                }
+                synchronized (labels) {
+                    out.writeInt(labels.size());
+                    for (String label : labels) {
+                        out.writeBoolean(label != null);
+                        if (label != null) out.writeUTF(label);
+                    }
+                }
+                Bulk bulk = new Bulk();
+                for (int chunk = 0; chunk * CHUNK < count; ++chunk) {
+                    int inChunk = Math.min(CHUNK, count - chunk * CHUNK);
+                    bulk.write(out, vectors[chunk], inChunk * dimensions);
+                    bulk.write(out, links0[chunk], inChunk * (maxLinks0 + 1));
+                    bulk.write(out, owners[chunk], inChunk);
+                }
+                out.writeInt(upperLinks.size());
+                for (Map.Entry<Integer,int[][]> node : upperLinks.entrySet()) {
+                    out.writeInt(node.getKey());
+                    out.writeInt(node.getValue().length);
+                    for (int[] links : node.getValue()) {
+                        bulk.write(out, links, links.length);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads an index written by save().
+     * @throws IOException If the file cannot be read or is not an index.
+     */
+    public static HNSWIndex load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not an HNSW index this version can read.");
+            }
+            HNSWIndex index = new HNSWIndex(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            int count = in.readInt();
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            int labels = in.readInt();
+            for (int person = 0; person < labels; ++person) {
+                String label = in.readBoolean() ? in.readUTF() : null;
+                index.labels.add(label);
+                if (label != null) index.persons.put(label, person);
+            }
+            Bulk bulk = new Bulk();
+            if (count > 0) index.ensureCapacity(count - 1);
+            for (int chunk = 0; chunk * CHUNK < count; ++chunk) {
+                int inChunk = Math.min(CHUNK, count - chunk * CHUNK);
+                bulk.read(in, index.vectors[chunk], inChunk * index.dimensions);
+                bulk.read(in, index.links0[chunk], inChunk * (index.maxLinks0 + 1));
+                bulk.read(in, index.owners[chunk], inChunk);
+            }
+            index.nodes.set(count);
+            index.lastAdded = new int[Math.max(16, labels)];
+            Arrays.fill(index.lastAdded, -1);
+            for (int node = 0; node < count; ++node) {
+                index.lastAdded[index.owners[node >>> CHUNK_BITS][node & (CHUNK - 1)]] = node;
+            }
+            int upper = in.readInt();
+            for (int i = 0; i < upper; ++i) {
+                int node = in.readInt();
+                int[][] levels = new int[in.readInt()][index.m + 1];
+                for (int[] links : levels) {
+                    bulk.read(in, links, links.length);
+                }
+                index.upperLinks.put(node, levels);
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Moves arrays of primitives to and from a stream a buffer at a time, rather than a number at a time.
+     */
+    private static class Bulk {
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+        void write(DataOutputStream out, float[] values, int length) throws IOException {
+            for (int done = 0; done < length; ) {
+                int batch = Math.min(length - done, buffer.capacity() / 4);
+                buffer.clear();
+                buffer.asFloatBuffer().put(values, done, batch);
+                out.write(buffer.array(), 0, batch * 4);
+                done += batch;
+            }
+        }
+
+        void write(DataOutputStream out, int[] values, int length) throws IOException {
+            for (int done = 0; done < length; ) {
+                int batch = Math.min(length - done, buffer.capacity() / 4);
+                buffer.clear();
+                buffer.asIntBuffer().put(values, done, batch);
+                out.write(buffer.array(), 0, batch * 4);
+                done += batch;
+            }
+        }
+
+        void read(DataInputStream in, float[] values, int length) throws IOException {
+            for (int done = 0; done < length; ) {
+                int batch = Math.min(length - done, buffer.capacity() / 4);
+                in.readFully(buffer.array(), 0, batch * 4);
+                buffer.clear();
+                buffer.asFloatBuffer().get(values, done, batch);
+                done += batch;
+            }
+        }
+
+        void read(DataInputStream in, int[] values, int length) throws IOException {
+            for (int done = 0; done < length; ) {
+                int batch = Math.min(length - done, buffer.capacity() / 4);
+                in.readFully(buffer.array(), 0, batch * 4);
+                buffer.clear();
+                buffer.asIntBuffer().get(values, done, batch);
+                done += batch;
+            }
+        }
+    }
+
+    /**
+     * The nodes a search has reached, cleared in constant time by moving on to the next mark.
+     */
+    private static class Visited {
+        private int[] marks = new int[0];
+        private int mark;
+
+        void clear(int capacity) {
+            if (marks.length < capacity) {
+                marks = new int[capacity];
+                mark = 0;
+            }
+            if (++mark == 0) {
+                Arrays.fill(marks, 0);
+                mark = 1;
+            }
+        }
+
+        /**
+         * @return True if the node had not been reached before.
+         */
+        boolean add(int node) {
+            // a node inserted since the search began
+            if (node >= marks.length) marks = Arrays.copyOf(marks, Math.max(node + 1, marks.length * 2));
+            if (marks[node] == mark) return false;
+            marks[node] = mark;
+            return true;
+        }
+    }
+
+    /**
+     * A binary min-heap of longs.
+     */
+    private static class LongHeap {
+        private long[] heap;
+        private int size;
+
+        LongHeap(int capacity) {
+            heap = new long[Math.max(capacity, 2)];
+        }
+
+        int size() { return size; }
+        long peek() { return heap[0]; }
+
+        void push(long value) {
+            if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= value) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long last = heap[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heap[child + 1] < heap[child]) ++child;
+                if (heap[child] >= last) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return top;
+        }
+
+        /**
+         * Empties the heap.
+         * @return Its values in ascending order.
+         */
+        long[] drain() {
+            long[] sorted = new long[size];
+            for (int i = 0; i < sorted.length; ++i) {
+                sorted[i] = pop();
+            }
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package dsd.cherry.tater.frservices;
+
+import dsd.cherry.tater.util.GreyScale;
+import dsd.cherry.tater.util.VectorMath;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Embeds a face as a histogram of oriented gradients (HOG): the image is scaled to 64x64 grey levels, the direction
+ * and strength of its edges are binned over 8x8 pixel cells, and each 2x2 block of cells is normalized on its own so
+ * that lighting differences across the face cancel out. It needs no model and runs in about a millisecond.
+ *
+ * HOG describes the shape of what is in the image rather than who it is, so it only tells people apart when their
+ * images are cropped to the face and aligned alike, as the Authentication Server's captures are. A learned embedding
+ * can be plugged in through FaceEmbedder in its place.
+ */
+public class HOGEmbedder implements FaceEmbedder {
+    private static final int SIZE = 64;
+    private static final int CELL = 8;
+    private static final int CELLS = SIZE / CELL;
+    private static final int BINS = 9;
+    private static final int BLOCKS = CELLS - 1;
+    private static final int DIMENSIONS = BLOCKS * BLOCKS * 4 * BINS;
+    // block histograms are clipped here after normalizing, so that one strong edge cannot drown out the rest
+    private static final float CLIP = 0.2f;
+
+    @Override
+    public int dimensions() { return DIMENSIONS; }
+
+    @Override
+    public float[] embed(byte[] image) {
+        BufferedImage decoded = GreyScale.decode(image);
+        if (decoded == null) return null;
+        return describe(GreyScale.scale(decoded, SIZE, SIZE));
+    }
+
+    private static float[] describe(float[] grey) {
+        float[] cells = new float[CELLS * CELLS * BINS];
+        for (int y = 0; y < SIZE; ++y) {
+            for (int x = 0; x < SIZE; ++x) {
+                float dx = grey[y * SIZE + Math.min(x + 1, SIZE - 1)] - grey[y * SIZE + Math.max(x - 1, 0)];
+                float dy = grey[Math.min(y + 1, SIZE - 1) * SIZE + x] - grey[Math.max(y - 1, 0) * SIZE + x];
+                float magnitude = (float) Math.sqrt(dx * dx + dy * dy);
+                if (magnitude == 0) continue;
+                // unsigned orientation in [0, BINS), split between the two nearest bins
+                double angle = Math.atan2(dy, dx);
+                if (angle < 0) angle += Math.PI;
+                float position = (float) (angle / Math.PI * BINS) - 0.5f;
+                int low = (int) Math.floor(position);
+                float high = position - low;
+                int cell = ((y / CELL) * CELLS + x / CELL) * BINS;
+                cells[cell + (low + BINS) % BINS] += magnitude * (1 - high);
+                cells[cell + (low + 1) % BINS] += magnitude * high;
+            }
+        }
+
+        float[] descriptor = new float[DIMENSIONS];
+        int out = 0;
+        for (int by = 0; by < BLOCKS; ++by) {
+            for (int bx = 0; bx < BLOCKS; ++bx) {
+                int start = out;
+                for (int cy = by; cy < by + 2; ++cy) {
+                    System.arraycopy(cells, (cy * CELLS + bx) * BINS, descriptor, out, 2 * BINS);
+                    out += 2 * BINS;
+                }
+                normalizeBlock(descriptor, start, out);
+            }
+        }
+        VectorMath.normalize(descriptor);
+        return descriptor;
+    }
+
+    private static void normalizeBlock(float[] v, int from, int to) {
+        for (int pass = 0; pass < 2; ++pass) {
+            float norm = (float) Math.sqrt(VectorMath.dot(v, from, v, from, to - from) + 1e-6f);
+            for (int i = from; i < to; ++i) {
+                v[i] = pass == 0 ? Math.min(v[i] / norm, CLIP) : v[i] / norm;
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package dsd.cherry.tater.frservices;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps templates on the heap. They are lost when the facilitator stops, so persons must be trained again after a
+ * restart.
+ */
+public class InMemoryTemplateStore implements TemplateStore {
+    private final ConcurrentHashMap<String,FaceTemplate> templates = new ConcurrentHashMap<String, FaceTemplate>();
+
+    @Override
+    public void put(String personID, FaceTemplate template) { templates.put(personID, template); }
+
+    @Override
+    public FaceTemplate get(String personID) { return templates.get(personID); }
+
+    @Override
+    public void remove(String personID) { templates.remove(personID); }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (Map.Entry<String,FaceTemplate> template : templates.entrySet()) {
+            visitor.visit(template.getKey(), template.getValue());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package dsd.cherry.tater.frservices;
+
+import dsd.cherry.tater.jfr.RemoteCallEvent;
+import dsd.cherry.tater.metrics.MetricsRegistry;
+import dsd.cherry.tater.metrics.OperationMetrics;
+import dsd.cherry.tater.tracing.Tracer;
+import dsd.cherry.tater.util.Deadline;
+import org.json.JSONObject;
+
+import com.facepp.error.FaceppParseException;
+import com.facepp.http.HttpRequests;
+import com.facepp.http.PostParameters;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A FacePP HttpRequests that records the latency and outcome of every call it makes to the FacePP API. Every API
+ * method of the SDK goes through request(), so overriding it covers them all. Each call is recorded as a remote
+ * operation named after the API it called, e.g. "detection/detect", traced as a span of the current request, and
+ * emitted as a RemoteCallEvent to the flight recorder.
+ *
+ * Calls made on a thread with a Deadline attached get only the time left before the deadline, and are not made at all
+ * once it has passed. The SDK reads its timeout from a field shared by every call on the instance, so such calls go
+ * through a per-thread copy whose timeout can be set without affecting calls running on other threads.
+ *
+ * Each instance calls as one FacePP account, and tracks the calls it has in flight and whether the account has run
+ * out of quota, for ApiKeyPool to route by. An account that is refused for quota rests for
+ * <code>tater.facepp.keyCooldownMs</code> (default 1000), twice as long each time it is refused again, up to a minute.
+ */
+class InstrumentedHttpRequests extends HttpRequests {
+    private final String serviceName;
+    static final String DEADLINE_EXPIRED = "error :Deadline expired before calling ";
+    private static final int QUOTA_EXCEEDED = 1003;
+    static final int INVALID_PERSON = 1505;
+    static final int INVALID_GROUP = 1506;
+    private static final long COOLDOWN_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("tater.facepp.keyCooldownMs", 1000));
+    private static final long MAX_COOLDOWN_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    // control -> action -> metrics, so that recording a call never has to build the operation name
+    private final ConcurrentMap<String,ConcurrentMap<String,OperationMetrics>> operations =
+            new ConcurrentHashMap<String, ConcurrentMap<String, OperationMetrics>>();
+    private final AtomicInteger callsInFlight = new AtomicInteger();
+    private volatile long availableAt = System.nanoTime();
+    private volatile long cooldown = COOLDOWN_NANOS;
+    private final ThreadLocal<HttpRequests> bounded = new ThreadLocal<HttpRequests>() {
+        @Override
+        protected HttpRequests initialValue() {
+            HttpRequests copy = new HttpRequests(getApiKey(), getApiSecret());
+            setWebSite(copy, getWebSite());
+            return copy;
+        }
+    };
+
+    InstrumentedHttpRequests(String serviceName, String apiKey, String apiSecret, boolean isCN, boolean isDebug) {
+        super(apiKey, apiSecret, isCN, isDebug);
+        this.serviceName = serviceName;
+    }
+
+    @Override
+    public JSONObject request(String control, String action, PostParameters params) throws FaceppParseException {
+        OperationMetrics metrics = metricsFor(control, action);
+        RemoteCallEvent event = RemoteCallEvent.begin(serviceName, metrics.getOperation());
+        int span = Tracer.start(metrics);
+        long start = metrics.start();
+        String outcome = "error";
+        callsInFlight.incrementAndGet();
+        try {
+            Deadline deadline = Deadline.current();
+            JSONObject result = deadline == null
+                    ? super.request(control, action, params)
+                    : requestWithin(deadline, control, action, params);
+            metrics.success(start);
+            outcome = "ok";
+            cooldown = COOLDOWN_NANOS;
+            return result;
+        } catch (FaceppParseException e) {
+            if (isQuotaExceeded(e)) {
+                restForQuota();
+                outcome = "quota";
+            }
+            if (isTimeout(e)) {
+                metrics.timeout(start);
+                outcome = "timeout";
+            }
+            else {
+                metrics.error(start);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.error(start);
+            throw e;
+        } finally {
+            callsInFlight.decrementAndGet();
+            Tracer.end(span);
+            if (event != null) event.finish(outcome);
+        }
+    }
+
+    int getCallsInFlight() { return callsInFlight.get(); }
+
+    /**
+     * @return Whether the account may be called, rather than resting after running out of quota.
+     */
+    boolean isAvailable() { return System.nanoTime() - availableAt >= 0; }
+
+    /**
+     * @return When the account may be called again, in System.nanoTime().
+     */
+    long getAvailableAt() { return availableAt; }
+
+    private void restForQuota() {
+        long rest = cooldown;
+        availableAt = System.nanoTime() + rest;
+        cooldown = Math.min(rest * 2, MAX_COOLDOWN_NANOS);
+        String key = getApiKey();
+        System.out.println(serviceName + ": API key " + key.substring(0, Math.min(6, key.length()))
+                + "... is out of quota, resting it for " + TimeUnit.NANOSECONDS.toMillis(rest) + " ms.");
+    }
+
+    private static boolean isQuotaExceeded(FaceppParseException e) {
+        return hasErrorCode(e, QUOTA_EXCEEDED);
+    }
+
+    /**
+     * The SDK wraps API errors in a second FaceppParseException that only carries the first one's description, so
+     * look for the error code there as well.
+     * @return Whether the exception reports the given FacePP API error code.
+     */
+    static boolean hasErrorCode(FaceppParseException e, int errorCode) {
+        Integer code = e.getErrorCode();
+        if (code != null) return code == errorCode;
+        String message = e.getMessage();
+        return message != null && message.contains("code=" + errorCode + ",");
+    }
+
+    private JSONObject requestWithin(Deadline deadline, String control, String action, PostParameters params)
+            throws FaceppParseException {
+        long remaining = deadline.remainingMillis();
+        if (remaining <= 0) throw new FaceppParseException(DEADLINE_EXPIRED + control + "/" + action);
+        HttpRequests copy = bounded.get();
+        copy.setApiKey(getApiKey());
+        copy.setApiSecret(getApiSecret());
+        copy.setHttpTimeOut((int) Math.min(remaining, getHttpTimeOut()));
+        return copy.request(control, action, params);
+    }
+
+    /**
+     * The SDK only lets us choose between the public FacePP hosts, so point it elsewhere by setting its private
+     * field directly.
+     */
+    static void setWebSite(HttpRequests requests, String url) {
+        try {
+            Field webSite = HttpRequests.class.getDeclaredField("webSite");
+            webSite.setAccessible(true);
+            webSite.set(requests, url);
+        } catch (NoSuchFieldException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private OperationMetrics metricsFor(String control, String action) {
+        ConcurrentMap<String,OperationMetrics> actions = operations.get(control);
+        if (actions == null) {
+            operations.putIfAbsent(control, new ConcurrentHashMap<String, OperationMetrics>());
+            actions = operations.get(control);
+        }
+        OperationMetrics metrics = actions.get(action);
+        if (metrics == null) {
+            metrics = MetricsRegistry.getGlobal().operation(serviceName, control + "/" + action, MetricsRegistry.REMOTE);
+            actions.putIfAbsent(action, metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * The SDK wraps I/O failures, timeouts included, in a FaceppParseException carrying only the original
+     * exception's description, so that is all there is to go on. Calls skipped because their deadline had passed
+     * count as timeouts too.
+     */
+    private static boolean isTimeout(FaceppParseException e) {
+        String message = e.getMessage();
+        return message != null && (message.contains("Timeout") || message.startsWith(DEADLINE_EXPIRED));
+    }
+}
@@ -0,0 +1,454 @@
+package dsd.cherry.tater.frservices;
+
+import dsd.cherry.tater.cluster.Cluster;
+import dsd.cherry.tater.types.ImageData;
+import dsd.cherry.tater.types.StatusCode;
+import dsd.cherry.tater.util.Deadline;
+import dsd.cherry.tater.util.TopK;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Recognizes faces on the facilitator's own CPU instead of calling out to a service. Training embeds each image with
+ * a FaceEmbedder and keeps the embeddings as the person's template; verifying embeds the face and compares it against
+ * the template, which takes milliseconds and costs nothing per call. Confidences are cosine similarities scaled to
+ * 0-100, like FacePP's, so the handler takes part in consensus alongside the remote services.
+ *
+ * Identifying a face compares it against every template, which is fine up to some hundred thousand persons. Beyond
+ * that an HNSWIndex over the embeddings finds the closest persons without looking at most of them; their templates
+ * are then compared in full to score them exactly. Retraining a person adds only their new embeddings to the index;
+ * those the template pushes out stay there, still leading to the person, and once they outnumber the live ones the
+ * index is rebuilt from the templates in the background.
+ *
+ * Enabled with <code>tater.local.enabled=true</code>; see fromSettings() for the settings it takes. Templates are
+ * kept on the node that trained them, and not every request is routed to a user's node in cluster mode, so the
+ * handler refuses to run in a Cluster.
+ */
+public class LocalEmbeddingHandler extends FRServiceHandler {
+    // a person's template keeps at most this many embeddings, the most recently trained
+    private static final int MAX_EMBEDDINGS = 16;
+    private static final int RETRAIN_LOCK_STRIPES = 64;
+    private static final long DEFAULT_REBUILD_DEAD = 100000;
+    private static final long DEFAULT_SAVE_INTERVAL_SEC = 300;
+
+    private final FaceEmbedder embedder;
+    private final TemplateStore templates;
+    private final float cutoff;
+    private volatile HNSWIndex index;
+    private final File indexFile;
+    private final long rebuildDead;
+    // the embeddings in the templates; the index's other nodes are ones the templates have pushed out
+    private final AtomicLong liveEmbeddings = new AtomicLong();
+    // stores hold it shared to update the templates and the index together, a rebuild alone to switch indexes
+    private final ReentrantReadWriteLock indexing = new ReentrantReadWriteLock();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    // the persons stored while a rebuild runs, which it adds to the new index again before switching to it
+    private volatile Set<String> storedDuringRebuild;
+    private final AtomicBoolean unsaved = new AtomicBoolean();
+    private final ScheduledExecutorService saver;
+    // a retrain reads the person's template and writes it back, so retrains of one person take turns
+    private final Object[] retrainLocks = new Object[RETRAIN_LOCK_STRIPES];
+
+    /**
+     * @param embedder Turns images into embeddings.
+     * @param templates Where persons' templates are kept.
+     * @param cutoff The minimum confidence, 0-100, constituting a match.
+     */
+    public LocalEmbeddingHandler(FaceEmbedder embedder, TemplateStore templates, float cutoff) {
+        this(embedder, templates, cutoff, null, null);
+    }
+
+    /**
+     * @param embedder Turns images into embeddings.
+     * @param templates Where persons' templates are kept.
+     * @param cutoff The minimum confidence, 0-100, constituting a match.
+     * @param index The index to identify faces through, or null to compare against every template. Templates in the
+     *              store that it lacks, or lacks the latest training of, e.g. those trained since it was last saved,
+     *              are added to it.
+     * @param indexFile Where to save the index every five minutes and when the handler shuts down, or null not to.
+     */
+    public LocalEmbeddingHandler(FaceEmbedder embedder, TemplateStore templates, float cutoff,
+                                 HNSWIndex index, File indexFile) {
+        this(embedder, templates, cutoff, index, indexFile, DEFAULT_REBUILD_DEAD, DEFAULT_SAVE_INTERVAL_SEC);
+    }
+
+    /**
+     * @param embedder Turns images into embeddings.
+     * @param templates Where persons' templates are kept.
+     * @param cutoff The minimum confidence, 0-100, constituting a match.
+     * @param index The index to identify faces through, or null to compare against every template. Templates in the
+     *              store that it lacks, or lacks the latest training of, are added to it.
+     * @param indexFile Where to save the index while the handler runs and when it shuts down, or null not to.
+     * @param rebuildDead The number of pushed out embeddings in the index at which it is rebuilt, if they also
+     *                    outnumber the live ones.
+     * @param saveIntervalSec How often to save the index if it has changed, or 0 to save it only on shutdown.
+     */
+    public LocalEmbeddingHandler(FaceEmbedder embedder, TemplateStore templates, float cutoff,
+                                 HNSWIndex index, File indexFile, long rebuildDead, long saveIntervalSec) {
+        this.embedder = embedder;
+        this.templates = templates;
+        this.cutoff = cutoff;
+        this.index = index;
+        this.indexFile = indexFile;
+        this.rebuildDead = rebuildDead;
+        for (int i = 0; i < retrainLocks.length; ++i) {
+            retrainLocks[i] = new Object();
+        }
+        if (index != null) catchUp();
+        if (index != null && indexFile != null && saveIntervalSec > 0) {
+            saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "tater-local-index-save");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            saver.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    if (unsaved.getAndSet(false)) save();
+                }
+            }, saveIntervalSec, saveIntervalSec, TimeUnit.SECONDS);
+        }
+        else {
+            saver = null;
+        }
+    }
+
+    /**
+     * Builds the handler from its settings, all optional: <code>cutoff</code>, the confidence constituting a match
+     * (default 90), which should be calibrated against the embedder in use; <code>templateDir</code>, a directory to
+     * keep templates in across restarts (see MappedTemplateStore); and <code>ann=true</code> to identify faces through
+     * an HNSWIndex, with <code>ann.m</code> (default 16), <code>ann.efConstruction</code> (default 200) and
+     * <code>ann.efSearch</code> (default 64) as its parameters, <code>ann.rebuildDead</code> (default 100000) as the
+     * number of pushed out embeddings at which it is rebuilt if they also outnumber the live ones, and
+     * <code>ann.saveIntervalSec</code> (default 300, 0 for never) as how often it is saved. With a templateDir, the
+     * index is saved there while the handler runs and on shutdown, and loaded on the next start.
+     * @throws IOException If the templates cannot be opened.
+     * @throws IllegalStateException If cluster mode is on.
+     */
+    public static LocalEmbeddingHandler fromSettings(Properties settings) throws IOException {
+        if (Cluster.getGlobal() != null) {
+            throw new IllegalStateException("The local service keeps templates on one node and cannot run in "
+                    + "cluster mode; unset tater.cluster.nodes or disable the local service.");
+        }
+        FaceEmbedder embedder = new HOGEmbedder();
+        float cutoff = Float.parseFloat(settings.getProperty("cutoff", "90"));
+        String templateDir = settings.getProperty("templateDir");
+        TemplateStore templates = templateDir == null
+                ? new InMemoryTemplateStore() : MappedTemplateStore.open(new File(templateDir));
+        if (!Boolean.parseBoolean(settings.getProperty("ann"))) {
+            return new LocalEmbeddingHandler(embedder, templates, cutoff);
+        }
+
+        int m = Integer.parseInt(settings.getProperty("ann.m", "16"));
+        int efConstruction = Integer.parseInt(settings.getProperty("ann.efConstruction", "200"));
+        int efSearch = Integer.parseInt(settings.getProperty("ann.efSearch", "64"));
+        long rebuildDead = Long.parseLong(settings.getProperty("ann.rebuildDead", "" + DEFAULT_REBUILD_DEAD));
+        long saveIntervalSec =
+                Long.parseLong(settings.getProperty("ann.saveIntervalSec", "" + DEFAULT_SAVE_INTERVAL_SEC));
+        File indexFile = templateDir == null ? null : new File(templateDir, "hnsw.idx");
+        HNSWIndex index = null;
+        if (indexFile != null && indexFile.exists()) {
+            try {
+                index = HNSWIndex.load(indexFile);
+                if (index.getDimensions() != embedder.dimensions() || index.getM() != m
+                        || index.getEfConstruction() != efConstruction) {
+                    System.out.println("local: The saved index was built with other parameters, rebuilding it.");
+                    index = null;
+                }
+            } catch (IOException e) {
+                System.out.println("local: Error loading the index from " + indexFile + ", rebuilding it: "
+                        + e.getMessage());
+            }
+        }
+        if (index == null) index = new HNSWIndex(embedder.dimensions(), m, efConstruction, efSearch);
+        index.setEfSearch(efSearch);
+        return new LocalEmbeddingHandler(embedder, templates, cutoff, index, indexFile, rebuildDead, saveIntervalSec);
+    }
+
+    /**
+     * Adds the templates the index lacks, or lacks the latest training of, e.g. after a crash since it was saved.
+     */
+    private void catchUp() {
+        final int[] added = {0};
+        templates.forEach(new TemplateStore.Visitor() {
+            @Override
+            public void visit(String personID, FaceTemplate template) {
+                liveEmbeddings.addAndGet(template.getCount());
+                float[] vectors = template.getVectors();
+                if (template.getCount() == 0 || index.isLastAdded(personID, vectors, 0)) return;
+                index(index, personID, vectors, template.getCount());
+                ++added[0];
+            }
+        });
+        if (added[0] > 0) {
+            System.out.println("local: Added " + added[0] + " persons to the index.");
+            unsaved.set(true);
+        }
+    }
+
+    /**
+     * Adds the first count of a person's embeddings to an index, the first one last, so that the index can tell
+     * whether it has the person's latest training.
+     */
+    private void index(HNSWIndex into, String personID, float[] vectors, int count) {
+        for (int i = count - 1; i >= 0; --i) {
+            into.add(personID, vectors, i * embedder.dimensions());
+        }
+    }
+
+    @Override
+    public FRServiceHandlerTrainResponse train(String userID, List<ImageData> images) {
+        return train(userID, images, null);
+    }
+
+    @Override
+    public FRServiceHandlerTrainResponse train(String userID, List<ImageData> images, TrainProgressListener listener) {
+        return train(userID, null, images, listener);
+    }
+
+    /**
+     * Trains a person's template. A person the handler already has keeps their FRPersonID, and their template gains
+     * the new embeddings, which push out their oldest ones once it is full; anyone else gets a new template.
+     */
+    @Override
+    public FRServiceHandlerTrainResponse train(String userID, String FRPersonID, List<ImageData> images,
+                                               TrainProgressListener listener) {
+        if (userID == null || images == null) {
+            return new FRServiceHandlerTrainResponse(getFRServiceName(), false, FRPersonID, false, images);
+        }
+        int dimensions = embedder.dimensions();
+        List<float[]> embeddings = new ArrayList<float[]>();
+        Deadline deadline = Deadline.current();
+        for (ImageData image : images) {
+            float[] embedding = null;
+            if (embeddings.size() < MAX_EMBEDDINGS && (deadline == null || !deadline.isExpired())) {
+                embedding = image.getImageBinary() == null ? null : embedder.embed(image.getImageBinary());
+            }
+            image.setAcceptedByService(embedding != null);
+            if (embedding != null) embeddings.add(embedding);
+            else image.addCode(StatusCode.IMAGE_ERROR);
+            if (listener != null) listener.imageProcessed(getFRServiceName(), image);
+        }
+        if (embeddings.isEmpty()) {
+            return new FRServiceHandlerTrainResponse(getFRServiceName(), true, FRPersonID, false, images);
+        }
+
+        if (FRPersonID != null) {
+            synchronized (retrainLocks[(FRPersonID.hashCode() & Integer.MAX_VALUE) % retrainLocks.length]) {
+                FaceTemplate previous = templates.get(FRPersonID);
+                if (previous != null) {
+                    store(FRPersonID, userID, previous, merge(embeddings, previous), embeddings.size());
+                    return new FRServiceHandlerTrainResponse(getFRServiceName(), true, FRPersonID, true, images);
+                }
+            }
+        }
+        String personID = "local-" + UUID.randomUUID();
+        store(personID, userID, null, merge(embeddings, null), embeddings.size());
+        return new FRServiceHandlerTrainResponse(getFRServiceName(), true, personID, true, images);
+    }
+
+    @Override
+    public boolean addsToExistingPerson() {
+        return true;
+    }
+
+    /**
+     * @param previous The person's template so far, or null.
+     * @return The new embeddings followed by as many of the template's as still fit, back to back.
+     */
+    private float[] merge(List<float[]> embeddings, FaceTemplate previous) {
+        int dimensions = embedder.dimensions();
+        int kept = previous == null || previous.getDimensions() != dimensions ? 0
+                : Math.min(previous.getCount(), MAX_EMBEDDINGS - embeddings.size());
+        float[] vectors = new float[(embeddings.size() + kept) * dimensions];
+        for (int i = 0; i < embeddings.size(); ++i) {
+            System.arraycopy(embeddings.get(i), 0, vectors, i * dimensions, dimensions);
+        }
+        if (kept > 0) {
+            System.arraycopy(previous.getVectors(), 0, vectors, embeddings.size() * dimensions, kept * dimensions);
+        }
+        return vectors;
+    }
+
+    /**
+     * Stores a person's template, replacing any they had, and adds their new embeddings to the index.
+     * @param previous The template replaced, or null.
+     * @param vectors The new template's embeddings.
+     * @param added How many of them, from the first, are new.
+     */
+    private void store(String personID, String internalID, FaceTemplate previous, float[] vectors, int added) {
+        FaceTemplate template = new FaceTemplate(internalID, embedder.dimensions(), vectors);
+        if (index == null) {
+            templates.put(personID, template);
+            return;
+        }
+        indexing.readLock().lock();
+        try {
+            templates.put(personID, template);
+            index(index, personID, vectors, added);
+            Set<String> stored = storedDuringRebuild;
+            if (stored != null) stored.add(personID);
+        } finally {
+            indexing.readLock().unlock();
+        }
+        liveEmbeddings.addAndGet(template.getCount() - (previous == null ? 0 : previous.getCount()));
+        unsaved.set(true);
+
+        long dead = index.size() - liveEmbeddings.get();
+        if (dead < rebuildDead || dead < liveEmbeddings.get() || !rebuilding.compareAndSet(false, true)) return;
+        Thread rebuilder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuild();
+                } catch (RuntimeException e) {
+                    System.out.println("local: Error rebuilding the index: " + e.getMessage());
+                    e.printStackTrace();
+                } finally {
+                    rebuilding.set(false);
+                }
+            }
+        }, "tater-local-index-rebuild");
+        rebuilder.setDaemon(true);
+        rebuilder.start();
+    }
+
+    /**
+     * Builds a new index from the templates, leaving out the embeddings they have pushed out, and switches to it.
+     * Trains go on meanwhile, adding to the old index; the persons they store are added to the new one again, if it
+     * missed their latest training, just before the switch.
+     */
+    void rebuild() {
+        HNSWIndex old = index;
+        final HNSWIndex fresh =
+                new HNSWIndex(old.getDimensions(), old.getM(), old.getEfConstruction(), old.getEfSearch());
+        storedDuringRebuild = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        try {
+            templates.forEach(new TemplateStore.Visitor() {
+                @Override
+                public void visit(String personID, FaceTemplate template) {
+                    index(fresh, personID, template.getVectors(), template.getCount());
+                }
+            });
+            indexing.writeLock().lock();
+            try {
+                for (String personID : storedDuringRebuild) {
+                    FaceTemplate template = templates.get(personID);
+                    if (template == null) continue;
+                    float[] vectors = template.getVectors();
+                    if (!fresh.isLastAdded(personID, vectors, 0)) index(fresh, personID, vectors, template.getCount());
+                }
+                index = fresh;
+                storedDuringRebuild = null;
+            } finally {
+                indexing.writeLock().unlock();
+            }
+        } finally {
+            storedDuringRebuild = null;
+        }
+        unsaved.set(true);
+        System.out.println("local: Rebuilt the index, from " + old.size() + " embeddings to " + fresh.size() + ".");
+    }
+
+    @Override
+    public FRServiceHandlerVerifyResponse verify(String personID, ImageData image) {
+        if (personID == null || image == null || image.getImageBinary() == null) {
+            return new FRServiceHandlerVerifyResponse(getFRServiceName(), false, 0, cutoff, personID);
+        }
+        FaceTemplate template = templates.get(personID);
+        if (template == null) {
+            System.out.println("local: No template for " + personID + ".");
+            return new FRServiceHandlerVerifyResponse(getFRServiceName(), true, 0, cutoff, personID);
+        }
+        float[] embedding = embedder.embed(image.getImageBinary());
+        if (embedding == null) {
+            return new FRServiceHandlerVerifyResponse(getFRServiceName(), false, 0, cutoff, personID);
+        }
+        return new FRServiceHandlerVerifyResponse(getFRServiceName(), true,
+                confidence(template.similarity(embedding)), cutoff, personID);
+    }
+
+    /**
+     * Compares the face against the templates of the persons the index finds closest, or against every stored
+     * template if there is no index.
+     */
+    @Override
+    public FRServiceHandlerIdentifyResponse identify(ImageData image, int limit) {
+        float[] embedding =
+                image == null || image.getImageBinary() == null ? null : embedder.embed(image.getImageBinary());
+        if (embedding == null) return new FRServiceHandlerIdentifyResponse(getFRServiceName(), false, cutoff, null);
+
+        final float[] query = embedding;
+        final TopK<FRServiceHandlerIdentifyResponse.Candidate> best =
+                new TopK<FRServiceHandlerIdentifyResponse.Candidate>(limit);
+        TemplateStore.Visitor score = new TemplateStore.Visitor() {
+            @Override
+            public void visit(String personID, FaceTemplate template) {
+                float confidence = confidence(template.similarity(query));
+                best.add(new FRServiceHandlerIdentifyResponse.Candidate(template.getInternalID(), personID, confidence),
+                         confidence);
+            }
+        };
+        HNSWIndex index = this.index;
+        if (index == null) {
+            templates.forEach(score);
+        } else {
+            for (HNSWIndex.Match match : index.search(query, limit)) {
+                FaceTemplate template = templates.get(match.getLabel());
+                if (template != null) score.visit(match.getLabel(), template);
+            }
+        }
+        return new FRServiceHandlerIdentifyResponse(getFRServiceName(), true, cutoff, best.toList());
+    }
+
+    private static float confidence(float similarity) {
+        return Math.max(0, Math.min(100, similarity * 100));
+    }
+
+    @Override
+    public void shutdown() {
+        if (saver != null) saver.shutdown();
+        if (index != null && indexFile != null) save();
+    }
+
+    /**
+     * Saves the index; saves take turns, so that an older index is never written over a newer one.
+     */
+    private synchronized void save() {
+        try {
+            index.save(indexFile);
+        } catch (IOException e) {
+            unsaved.set(true);
+            System.out.println("local: Error saving the index to " + indexFile + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String getFRServiceName() {
+        return "local";
+    }
+
+    @Override
+    public float getFRServiceCutoff() {
+        return cutoff;
+    }
+}
@@ -0,0 +1,717 @@
+package dsd.cherry.tater.frservices;
+
+import dsd.cherry.tater.util.ConsistentHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps templates off the heap, in memory-mapped files, so that millions of them can stay resident without the
+ * garbage collector walking them and a restart maps the files instead of reading them back in.
+ *
+ * The store is a pair of files. <code>templates-N.dat</code> is an append-only run of records, each a small header
+ * naming the person followed by their embeddings as raw floats, mapped in 1GB segments; a FaceTemplate handed out
+ * reads its floats straight from the mapping. <code>templates-N.log</code> is an append-only run of fixed-width
+ * entries recording where each person's current record is, or that it was removed. Opening a store reads the log,
+ * which is small, into an open-addressing table of primitive arrays from the hash of the FRPersonID to the record's
+ * offset; the records themselves are only paged in as they are used.
+ *
+ * Storing a template appends a new record and a log entry and leaves the old record in place as garbage, which
+ * compact() reclaims by copying the live records into the next pair of files and then pointing the
+ * <code>CURRENT</code> file at them. Records are never changed once written, so the copying goes on alongside stores
+ * and lookups; they wait only while the changes made meanwhile are copied too and the store switches files.
+ * Compaction starts by itself on a background thread once the garbage passes
+ * <code>tater.local.compactDeadBytes</code> (default 64MB) and outweighs the live records.
+ *
+ * put() and remove() return once their change is on disk. Forcing a mapped segment to disk costs the same whatever
+ * part of its 1GB was written, so rather than force it once per template, changes are committed in groups: the first
+ * writer to wait forces every segment written so far and then appends their log entries, and the writers that arrived
+ * meanwhile find their changes already on disk, or wait for the next group. A record is on disk before its log entry
+ * is written, so a crash leaves at most a torn entry at the end of the log, which is dropped when the store is next
+ * opened.
+ *
+ * Enabled for the local service with <code>tater.local.templateDir</code>. The files use the machine's byte order and
+ * cannot be moved to a machine with the other one.
+ */
+public class MappedTemplateStore implements TemplateStore {
+    private static final int SEGMENT_BYTES = 1 << 30;
+    private static final int FILE_MAGIC = 0x54505444;  // "TPTD"
+    private static final int HEADER_BYTES = 64;
+    private static final int RECORD_MAGIC = 0x54504c31;  // "TPL1"
+    private static final int RECORD_HEADER_BYTES = 16;
+    // hash, offset, record length, op, check
+    private static final int ENTRY_BYTES = 32;
+    private static final int PUT = 1;
+    private static final int REMOVE = 2;
+    // markers in the offsets of the index's slots
+    private static final long EMPTY = -1;
+    private static final long DELETED = -2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long COMPACT_DEAD_BYTES = Long.getLong("tater.local.compactDeadBytes", 64L << 20);
+
+    // one store per directory, so that rebuilding the local service does not open a second writer onto the files
+    private static final Map<File,MappedTemplateStore> open = new HashMap<File, MappedTemplateStore>();
+
+    private final File directory;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+    private RandomAccessFile dataFile;
+    private RandomAccessFile logFile;
+    private FileLock ownership;
+    private int generation;
+    private long end;
+    private long deadBytes;
+    // set on the next generation while compaction fills it, whose writes are forced to disk once at the end
+    private boolean batching;
+    // the persons stored or removed since compaction took its snapshot, or null when not compacting; guarded by lock
+    private Set<String> changedDuringCompaction;
+    // held throughout a compaction, so that only one runs at a time
+    private final Object compactLock = new Object();
+
+    // log entries whose records are not known to be on disk yet, and the segments holding those records
+    private ByteBuffer pending = newEntries(64);
+    private final Set<Integer> dirty = new TreeSet<Integer>();
+    // entries appended to pending since the store was opened
+    private long appended;
+    // held by the writer committing a group, and by compaction throughout
+    private final Object commitLock = new Object();
+    // entries written to the log and forced; guarded by commitLock
+    private long committed;
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // dead bytes at which to compact next, raised after a compaction fails so it is not retried on every write
+    private long compactAt = COMPACT_DEAD_BYTES;
+
+    // the index: slot -> hash of the FRPersonID, offset of the record, length of the record
+    private long[] hashes;
+    private long[] offsets;
+    private int[] lengths;
+    private int size;
+    private int used;
+
+    /**
+     * Opens the store in a directory, creating it if need be. Opening the same directory again returns the same store.
+     * @throws IOException If the files cannot be opened, or another process has them open.
+     */
+    public static MappedTemplateStore open(File directory) throws IOException {
+        File canonical = directory.getCanonicalFile();
+        synchronized (open) {
+            MappedTemplateStore store = open.get(canonical);
+            if (store == null) {
+                store = new MappedTemplateStore(canonical);
+                open.put(canonical, store);
+            }
+            return store;
+        }
+    }
+
+    private MappedTemplateStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create template directory " + directory + ".");
+        }
+        File current = new File(directory, "CURRENT");
+        if (current.exists()) {
+            generation = Integer.parseInt(new String(Files.readAllBytes(current.toPath()), UTF8).trim());
+        }
+        load();
+    }
+
+    /**
+     * Opens one generation of the files, for compaction to fill; it is not the directory's store until switched to.
+     */
+    private MappedTemplateStore(File directory, int generation) throws IOException {
+        this.directory = directory;
+        this.generation = generation;
+        load();
+    }
+
+    private void load() throws IOException {
+        File data = new File(directory, "templates-" + generation + ".dat");
+        File log = new File(directory, "templates-" + generation + ".log");
+        dataFile = new RandomAccessFile(data, "rw");
+        logFile = new RandomAccessFile(log, "rw");
+        ownership = logFile.getChannel().tryLock();
+        if (ownership == null) {
+            closeFiles();
+            throw new IOException("The templates in " + directory + " are in use by another process.");
+        }
+        segments.clear();
+        ByteBuffer header = segment(0);
+        if (header.getInt(0) == 0) {
+            header.putInt(0, FILE_MAGIC);
+            header.putInt(4, header.order() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+        } else if (header.getInt(0) != FILE_MAGIC) {
+            closeFiles();
+            throw new IOException(data + " is not a template file, or was written with the other byte order.");
+        }
+        replay();
+    }
+
+    /**
+     * Rebuilds the index from the log.
+     */
+    private void replay() throws IOException {
+        hashes = new long[1024];
+        offsets = new long[1024];
+        lengths = new int[1024];
+        Arrays.fill(offsets, EMPTY);
+        size = 0;
+        used = 0;
+        deadBytes = 0;
+        end = HEADER_BYTES;
+
+        FileChannel channel = logFile.getChannel();
+        long length = channel.size();
+        long dataLength = dataFile.length();
+        ByteBuffer entries = ByteBuffer.allocateDirect(ENTRY_BYTES * 4096).order(ByteOrder.nativeOrder());
+        long position = 0;
+        while (position + ENTRY_BYTES <= length) {
+            entries.clear();
+            channel.read(entries, position);
+            entries.flip();
+            boolean torn = false;
+            while (entries.remaining() >= ENTRY_BYTES) {
+                long hash = entries.getLong();
+                long offset = entries.getLong();
+                int recordLength = entries.getInt();
+                int op = entries.getInt();
+                long check = entries.getLong();
+                if (check != check(hash, offset, recordLength, op) || offset + recordLength > dataLength) {
+                    torn = true;
+                    break;
+                }
+                position += ENTRY_BYTES;
+                end = Math.max(end, offset + recordLength);
+                if (op == PUT) {
+                    index(hash, offset, recordLength);
+                } else {
+                    int slot = slotOf(hash, offset);
+                    if (slot >= 0) unindex(slot);
+                }
+            }
+            if (torn) break;
+        }
+        if (position != length) {
+            System.out.println("Dropping " + (length - position) + " torn bytes from the end of the template log in "
+                    + directory + ".");
+            channel.truncate(position);
+        }
+        channel.position(position);
+    }
+
+    @Override
+    public void put(String personID, FaceTemplate template) {
+        byte[] person = personID.getBytes(UTF8);
+        byte[] internal = template.getInternalID().getBytes(UTF8);
+        float[] vectors = template.getVectors();
+        int names = align(RECORD_HEADER_BYTES + person.length + internal.length);
+        long recordLength = names + 4L * vectors.length;
+        if (recordLength > SEGMENT_BYTES || person.length > Short.MAX_VALUE || internal.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("The template for " + personID + " is too large to store.");
+        }
+        long hash = ConsistentHash.hash(personID);
+
+        long entry;
+        boolean commit;
+        lock.writeLock().lock();
+        try {
+            long offset = end;
+            if (offset / SEGMENT_BYTES != (offset + recordLength - 1) / SEGMENT_BYTES) {
+                // records do not straddle segments
+                offset = (offset / SEGMENT_BYTES + 1) * SEGMENT_BYTES;
+            }
+            ByteBuffer segment = segment((int) (offset / SEGMENT_BYTES));
+            int at = (int) (offset % SEGMENT_BYTES);
+            segment.putInt(at + 4, template.getDimensions());
+            segment.putInt(at + 8, template.getCount());
+            segment.putShort(at + 12, (short) person.length);
+            segment.putShort(at + 14, (short) internal.length);
+            duplicate(segment, at + RECORD_HEADER_BYTES, person.length + internal.length).put(person).put(internal);
+            duplicate(segment, at + names, 4 * vectors.length).asFloatBuffer().put(vectors);
+            segment.putInt(at, RECORD_MAGIC);
+            dirty.add((int) (offset / SEGMENT_BYTES));
+
+            entry = append(hash, offset, (int) recordLength, PUT);
+            end = offset + recordLength;
+            index(hash, offset, (int) recordLength);
+            if (changedDuringCompaction != null) changedDuringCompaction.add(personID);
+            commit = !batching;
+        } catch (IOException e) {
+            System.out.println("Error storing the template for " + personID + " in " + directory + ": "
+                    + e.getMessage());
+            e.printStackTrace();
+            throw new IllegalStateException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (commit) commitThrough(entry, "storing the template for " + personID);
+    }
+
+    @Override
+    public FaceTemplate get(String personID) {
+        long hash = ConsistentHash.hash(personID);
+        lock.readLock().lock();
+        try {
+            int slot = find(hash, personID.getBytes(UTF8));
+            return slot < 0 ? null : read(offsets[slot]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String personID) {
+        long hash = ConsistentHash.hash(personID);
+        long entry;
+        boolean commit;
+        lock.writeLock().lock();
+        try {
+            int slot = find(hash, personID.getBytes(UTF8));
+            if (slot < 0) return;
+            entry = append(hash, offsets[slot], lengths[slot], REMOVE);
+            unindex(slot);
+            if (changedDuringCompaction != null) changedDuringCompaction.add(personID);
+            commit = !batching;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (commit) commitThrough(entry, "removing the template for " + personID);
+    }
+
+    /**
+     * Visits the templates in the order of the table, not the file. Stores and removals wait until the visit is done.
+     */
+    @Override
+    public void forEach(Visitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < offsets.length; ++slot) {
+                if (offsets[slot] < 0) continue;
+                visitor.visit(personIDAt(offsets[slot]), read(offsets[slot]));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() { return size; }
+
+    /**
+     * @return The bytes of the data file taken up by records that have since been replaced or removed.
+     */
+    public long getDeadBytes() {
+        lock.readLock().lock();
+        try {
+            return deadBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits until a change is on disk, committing it along with every other change made so far if no one else has.
+     * @param entry The number append() returned for the change's log entry.
+     */
+    private void commitThrough(long entry, String what) {
+        try {
+            synchronized (commitLock) {
+                if (committed < entry) commit();
+            }
+        } catch (IOException e) {
+            System.out.println("Error " + what + " in " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+            throw new IllegalStateException(e);
+        }
+        compactIfDue();
+    }
+
+    /**
+     * Forces the segments written to since the last commit to disk, then writes and forces their log entries. The
+     * caller holds commitLock.
+     */
+    private void commit() throws IOException {
+        List<ByteBuffer> written = new ArrayList<ByteBuffer>();
+        ByteBuffer entries;
+        long through;
+        FileChannel log;
+        lock.writeLock().lock();
+        try {
+            for (int segment : dirty) {
+                written.add(segments.get(segment));
+            }
+            dirty.clear();
+            entries = pending;
+            pending = newEntries(64);
+            through = appended;
+            log = logFile.getChannel();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (ByteBuffer segment : written) {
+            ((MappedByteBuffer) segment).force();
+        }
+        entries.flip();
+        while (entries.hasRemaining()) {
+            log.write(entries);
+        }
+        log.force(false);
+        committed = through;
+    }
+
+    /**
+     * Starts compacting on a background thread if the garbage has passed the threshold and outweighs the live records.
+     */
+    private void compactIfDue() {
+        lock.readLock().lock();
+        try {
+            long live = end - HEADER_BYTES - deadBytes;
+            if (deadBytes < compactAt || deadBytes <= live) return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (!compacting.compareAndSet(false, true)) return;
+        Thread compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    System.out.println("Error compacting the templates in " + directory + ": " + e.getMessage());
+                    e.printStackTrace();
+                    lock.writeLock().lock();
+                    try {
+                        compactAt = Math.max(compactAt, deadBytes * 2);
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                } finally {
+                    compacting.set(false);
+                }
+            }
+        }, "tater-template-compaction");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Copies the live records into a new pair of files and switches to them, reclaiming the space of replaced and
+     * removed ones. The copying takes a snapshot of the records and goes on alongside stores and lookups; they wait
+     * only at the end, while the persons stored or removed meanwhile are brought up to date in the new files and the
+     * store switches to them. Templates handed out before keep reading the old mapping, which stays valid for as long
+     * as they are reachable.
+     * @throws IOException If the new files cannot be written; the store is left as it was.
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            int next;
+            long reclaimed;
+            long[] live;
+            List<ByteBuffer> oldSegments;
+            lock.writeLock().lock();
+            try {
+                next = generation + 1;
+                reclaimed = deadBytes;
+                live = new long[size];
+                int count = 0;
+                for (int slot = 0; slot < offsets.length; ++slot) {
+                    if (offsets[slot] >= 0) live[count++] = offsets[slot];
+                }
+                oldSegments = new ArrayList<ByteBuffer>(segments);
+                changedDuringCompaction = new HashSet<String>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            File data = new File(directory, "templates-" + next + ".dat");
+            File log = new File(directory, "templates-" + next + ".log");
+            // left over from a compaction that did not finish
+            data.delete();
+            log.delete();
+            MappedTemplateStore target = null;
+            boolean switched = false;
+            try {
+                target = new MappedTemplateStore(directory, next);
+                target.batching = true;
+                for (long offset : live) {
+                    ByteBuffer segment = oldSegments.get((int) (offset / SEGMENT_BYTES));
+                    int at = (int) (offset % SEGMENT_BYTES);
+                    target.put(string(segment, at + RECORD_HEADER_BYTES, segment.getShort(at + 12)),
+                               read(segment, at));
+                }
+                switchTo(target);
+                switched = true;
+            } finally {
+                lock.writeLock().lock();
+                try {
+                    changedDuringCompaction = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                if (!switched) {
+                    if (target != null) target.closeFiles();
+                    data.delete();
+                    log.delete();
+                }
+            }
+            System.out.println("Compacted the templates in " + directory + ", reclaiming " + reclaimed + " bytes.");
+        }
+    }
+
+    /**
+     * Brings the persons changed since compaction took its snapshot up to date in the next generation, and switches
+     * the store to it.
+     */
+    private void switchTo(MappedTemplateStore target) throws IOException {
+        synchronized (commitLock) {
+            lock.writeLock().lock();
+            try {
+                // waiting writers' changes must be on disk before the files they went to are given up
+                commit();
+                for (String personID : changedDuringCompaction) {
+                    int slot = find(ConsistentHash.hash(personID), personID.getBytes(UTF8));
+                    if (slot >= 0) target.put(personID, read(offsets[slot]));
+                    else target.remove(personID);
+                }
+                target.commit();
+
+                File current = new File(directory, "CURRENT.tmp");
+                Files.write(current.toPath(), Integer.toString(target.generation).getBytes(UTF8));
+                Files.move(current.toPath(), new File(directory, "CURRENT").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                int previous = generation;
+                try {
+                    closeFiles();
+                } catch (IOException e) {
+                    // the new files are current already, so there is no going back
+                    System.out.println("Error closing the old templates in " + directory + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+                generation = target.generation;
+                dataFile = target.dataFile;
+                logFile = target.logFile;
+                ownership = target.ownership;
+                segments.clear();
+                segments.addAll(target.segments);
+                end = target.end;
+                deadBytes = target.deadBytes;
+                hashes = target.hashes;
+                offsets = target.offsets;
+                lengths = target.lengths;
+                size = target.size;
+                used = target.used;
+                compactAt = COMPACT_DEAD_BYTES;
+                new File(directory, "templates-" + previous + ".dat").delete();
+                new File(directory, "templates-" + previous + ".log").delete();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Closes the store's files. It must not be used afterwards; opening its directory again opens the files anew.
+     */
+    public void close() throws IOException {
+        synchronized (open) {
+            if (open.get(directory) == this) open.remove(directory);
+        }
+        synchronized (compactLock) {
+            lock.writeLock().lock();
+            try {
+                closeFiles();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        if (ownership != null && ownership.isValid()) ownership.release();
+        logFile.close();
+        dataFile.close();
+    }
+
+    /**
+     * Queues a log entry, to be written by the next commit. The caller holds the write lock.
+     * @return The entry's number, to wait for with commitThrough().
+     */
+    private long append(long hash, long offset, int recordLength, int op) {
+        if (pending.remaining() < ENTRY_BYTES) {
+            ByteBuffer grown = newEntries(pending.capacity() / ENTRY_BYTES * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        pending.putLong(hash).putLong(offset).putInt(recordLength).putInt(op)
+               .putLong(check(hash, offset, recordLength, op));
+        return ++appended;
+    }
+
+    private static ByteBuffer newEntries(int count) {
+        return ByteBuffer.allocate(ENTRY_BYTES * count).order(ByteOrder.nativeOrder());
+    }
+
+    private static long check(long hash, long offset, int recordLength, int op) {
+        return ConsistentHash.hash(hash + ":" + offset + ":" + recordLength + ":" + op);
+    }
+
+    private FaceTemplate read(long offset) {
+        return read(segments.get((int) (offset / SEGMENT_BYTES)), (int) (offset % SEGMENT_BYTES));
+    }
+
+    private static FaceTemplate read(ByteBuffer segment, int at) {
+        int dimensions = segment.getInt(at + 4);
+        int count = segment.getInt(at + 8);
+        int person = segment.getShort(at + 12);
+        int internal = segment.getShort(at + 14);
+        int names = align(RECORD_HEADER_BYTES + person + internal);
+        FloatBuffer vectors = duplicate(segment, at + names, 4 * dimensions * count).asFloatBuffer();
+        return new FaceTemplate(string(segment, at + RECORD_HEADER_BYTES + person, internal), dimensions, vectors);
+    }
+
+    private String personIDAt(long offset) {
+        ByteBuffer segment = segments.get((int) (offset / SEGMENT_BYTES));
+        int at = (int) (offset % SEGMENT_BYTES);
+        return string(segment, at + RECORD_HEADER_BYTES, segment.getShort(at + 12));
+    }
+
+    private boolean samePerson(long offset, long other) {
+        ByteBuffer segment = segments.get((int) (other / SEGMENT_BYTES));
+        int at = (int) (other % SEGMENT_BYTES);
+        byte[] personID = new byte[segment.getShort(at + 12)];
+        duplicate(segment, at + RECORD_HEADER_BYTES, personID.length).get(personID);
+        return personIDEquals(offset, personID);
+    }
+
+    private boolean personIDEquals(long offset, byte[] personID) {
+        ByteBuffer segment = segments.get((int) (offset / SEGMENT_BYTES));
+        int at = (int) (offset % SEGMENT_BYTES);
+        if (segment.getShort(at + 12) != personID.length) return false;
+        for (int i = 0; i < personID.length; ++i) {
+            if (segment.get(at + RECORD_HEADER_BYTES + i) != personID[i]) return false;
+        }
+        return true;
+    }
+
+    private static String string(ByteBuffer segment, int at, int length) {
+        byte[] bytes = new byte[length];
+        duplicate(segment, at, length).get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static ByteBuffer duplicate(ByteBuffer segment, int at, int length) {
+        ByteBuffer view = segment.duplicate();
+        view.limit(at + length).position(at);
+        return view.slice().order(segment.order());
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    /**
+     * @return The segment, mapping it (and so growing the file to hold it) if it is not yet.
+     */
+    private ByteBuffer segment(int number) throws IOException {
+        while (segments.size() <= number) {
+            long start = (long) segments.size() * SEGMENT_BYTES;
+            MappedByteBuffer mapped = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, start, SEGMENT_BYTES);
+            mapped.order(ByteOrder.nativeOrder());
+            segments.add(mapped);
+        }
+        return segments.get(number);
+    }
+
+    // the index: linear probing over slots keyed by the hash, with the FRPersonID in the record settling collisions
+
+    private int find(long hash, byte[] personID) {
+        int mask = offsets.length - 1;
+        for (int slot = (int) hash & mask; offsets[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (offsets[slot] >= 0 && hashes[slot] == hash && personIDEquals(offsets[slot], personID)) return slot;
+        }
+        return -1;
+    }
+
+    private int slotOf(long hash, long offset) {
+        int mask = offsets.length - 1;
+        for (int slot = (int) hash & mask; offsets[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (offsets[slot] == offset) return slot;
+        }
+        return -1;
+    }
+
+    private void index(long hash, long offset, int recordLength) throws IOException {
+        segment((int) (offset / SEGMENT_BYTES));
+        int mask = offsets.length - 1;
+        int free = -1;
+        int slot = (int) hash & mask;
+        for (; offsets[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (offsets[slot] == DELETED) {
+                if (free < 0) free = slot;
+            } else if (hashes[slot] == hash && samePerson(offsets[slot], offset)) {
+                deadBytes += lengths[slot];
+                offsets[slot] = offset;
+                lengths[slot] = recordLength;
+                return;
+            }
+        }
+        if (free < 0) {
+            free = slot;
+            ++used;
+        }
+        hashes[free] = hash;
+        offsets[free] = offset;
+        lengths[free] = recordLength;
+        ++size;
+        if (used * 2 > offsets.length) resize();
+    }
+
+    private void unindex(int slot) {
+        offsets[slot] = DELETED;
+        deadBytes += lengths[slot];
+        --size;
+    }
+
+    private void resize() {
+        long[] oldHashes = hashes, oldOffsets = offsets;
+        int[] oldLengths = lengths;
+        int capacity = offsets.length;
+        while (size * 4 > capacity) capacity *= 2;
+        hashes = new long[capacity];
+        offsets = new long[capacity];
+        lengths = new int[capacity];
+        Arrays.fill(offsets, EMPTY);
+        used = size;
+        int mask = capacity - 1;
+        for (int old = 0; old < oldOffsets.length; ++old) {
+            if (oldOffsets[old] < 0) continue;
+            int slot = (int) oldHashes[old] & mask;
+            while (offsets[slot] != EMPTY) slot = (slot + 1) & mask;
+            hashes[slot] = oldHashes[old];
+            offsets[slot] = oldOffsets[old];
+            lengths[slot] = oldLengths[old];
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package dsd.cherry.tater.frservices;
+
+/**
+ * Where LocalEmbeddingHandler keeps each person's FaceTemplate, by the person's FRPersonID. Implementations must be
+ * safe to use from many threads at once.
+ */
+public interface TemplateStore {
+    /**
+     * Stores a person's template, replacing any they had.
+     */
+    void put(String personID, FaceTemplate template);
+
+    /**
+     * @return The person's template, or null if there is none.
+     */
+    FaceTemplate get(String personID);
+
+    void remove(String personID);
+
+    /**
+     * Calls the visitor with every stored template, for searches across all persons. Templates stored or removed
+     * meanwhile may or may not be visited.
+     */
+    void forEach(Visitor visitor);
+
+    interface Visitor {
+        void visit(String personID, FaceTemplate template);
+    }
+}
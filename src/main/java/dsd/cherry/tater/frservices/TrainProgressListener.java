@@ -0,0 +1,23 @@
+package dsd.cherry.tater.frservices;
+
+import dsd.cherry.tater.types.ImageData;
+
+/**
+ * Receives training progress as it becomes known, before the ServiceManager has heard back from every service.
+ * Callbacks may arrive from several threads at once.
+ */
+public interface TrainProgressListener {
+    /**
+     * Called once a service has accepted or rejected an image. The image's acceptance and status codes have already
+     * been updated when this is called.
+     * @param serviceName The name of the service that processed the image.
+     * @param image The processed image.
+     */
+    void imageProcessed(String serviceName, ImageData image);
+
+    /**
+     * Called once a service has finished training a person.
+     * @param response The service's training response.
+     */
+    void serviceTrained(FRServiceHandlerTrainResponse response);
+}
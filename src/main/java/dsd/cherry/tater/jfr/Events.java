@@ -0,0 +1,19 @@
+package dsd.cherry.tater.jfr;
+
+import dsd.cherry.tater.util.KeyedHash;
+
+final class Events {
+    private static final KeyedHash userHash = KeyedHash.withRandomKey();
+
+    private Events() {}
+
+    /**
+     * Identifies a user in a recording without putting their ID in it. The hash is keyed with a random key that is
+     * never written anywhere, so the same ID hashes the same way in every recording made by this process, and events
+     * for one user can still be picked out, but the ID cannot be found by hashing candidates, nor matched across
+     * restarts.
+     */
+    static long hashUserID(String userID) {
+        return userID == null ? 0 : userHash.hash(userID);
+    }
+}
@@ -0,0 +1,73 @@
+package dsd.cherry.tater.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One request served by the FacilitatorService.
+ */
+@Name("dsd.cherry.tater.FacilitatorRequest")
+@Label("Facilitator Request")
+@Category({"Facilitator"})
+@Description("A request served by the FacilitatorService")
+@StackTrace(false)
+public class FacilitatorRequestEvent extends jdk.jfr.Event {
+    private static final FacilitatorRequestEvent probe = new FacilitatorRequestEvent();
+
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("User ID Hash")
+    long userIDHash;
+
+    @Label("Images")
+    int imageCount;
+
+    @Label("Payload")
+    @DataAmount
+    long payloadBytes;
+
+    @Label("HTTP Status")
+    int status;
+
+    /**
+     * Starts timing a request.
+     * @param endpoint The path requested, e.g. "/verify".
+     * @param payloadBytes The size of the request body, or -1 if unknown.
+     * @return The event, or null if no recording wants it.
+     */
+    public static FacilitatorRequestEvent begin(String endpoint, long payloadBytes) {
+        if (!probe.isEnabled()) return null;
+        FacilitatorRequestEvent event = new FacilitatorRequestEvent();
+        event.endpoint = endpoint;
+        event.payloadBytes = payloadBytes;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Records who the request was for once it has been parsed.
+     * @param userID The Authentication Server's ID for the person.
+     * @param imageCount The number of images the request carried.
+     */
+    public void setRequest(String userID, int imageCount) {
+        this.userIDHash = Events.hashUserID(userID);
+        this.imageCount = imageCount;
+    }
+
+    /**
+     * Ends the request and commits the event.
+     * @param status The HTTP status of the reply.
+     */
+    public void finish(int status) {
+        end();
+        if (shouldCommit()) {
+            this.status = status;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package dsd.cherry.tater.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One ServiceManager train or verify, spanning the calls to every service involved.
+ */
+@Name("dsd.cherry.tater.FanOut")
+@Label("Service Fan-Out")
+@Category({"Facilitator"})
+@Description("A ServiceManager train or verify across the facial recognition services")
+@StackTrace(false)
+public class FanOutEvent extends jdk.jfr.Event {
+    private static final FanOutEvent probe = new FanOutEvent();
+
+    @Label("Operation")
+    String operation;
+
+    @Label("User ID Hash")
+    long userIDHash;
+
+    @Label("Images")
+    int imageCount;
+
+    @Label("Payload")
+    @DataAmount
+    long payloadBytes;
+
+    @Label("Services Called")
+    int servicesCalled;
+
+    @Label("Services Responded")
+    int servicesResponded;
+
+    @Label("Outcome")
+    String outcome;
+
+    /**
+     * Starts timing a fan-out.
+     * @param operation "train" or "verify".
+     * @param userID The Authentication Server's ID for the person.
+     * @param imageCount The number of images sent to each service.
+     * @param payloadBytes The total size of those images.
+     * @return The event, or null if no recording wants it.
+     */
+    public static FanOutEvent begin(String operation, String userID, int imageCount, long payloadBytes) {
+        if (!probe.isEnabled()) return null;
+        FanOutEvent event = new FanOutEvent();
+        event.operation = operation;
+        event.userIDHash = Events.hashUserID(userID);
+        event.imageCount = imageCount;
+        event.payloadBytes = payloadBytes;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the fan-out and commits the event.
+     * @param called The number of services called.
+     * @param responded The number of those that responded.
+     * @param outcome What came of it, e.g. "trained" or "no match".
+     */
+    public void finish(int called, int responded, String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.servicesCalled = called;
+            this.servicesResponded = responded;
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
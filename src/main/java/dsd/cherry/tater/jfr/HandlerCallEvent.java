@@ -0,0 +1,76 @@
+package dsd.cherry.tater.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One call into an FRServiceHandler.
+ */
+@Name("dsd.cherry.tater.HandlerCall")
+@Label("Service Handler Call")
+@Category({"Facilitator", "Services"})
+@Description("A train or verify call into a facial recognition service handler")
+@StackTrace(false)
+public class HandlerCallEvent extends jdk.jfr.Event {
+    private static final HandlerCallEvent probe = new HandlerCallEvent();
+
+    @Label("Service")
+    String service;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("User ID Hash")
+    long userIDHash;
+
+    @Label("Images")
+    int imageCount;
+
+    @Label("Payload")
+    @DataAmount
+    long payloadBytes;
+
+    @Label("Outcome")
+    String outcome;
+
+    /**
+     * Starts timing a handler call.
+     * @param service The name of the service.
+     * @param operation "train" or "verify".
+     * @param userID The ID the service is asked about.
+     * @param imageCount The number of images sent.
+     * @param payloadBytes The total size of those images.
+     * @return The event, or null if no recording wants it.
+     */
+    public static HandlerCallEvent begin(String service,
+                                         String operation,
+                                         String userID,
+                                         int imageCount,
+                                         long payloadBytes) {
+        if (!probe.isEnabled()) return null;
+        HandlerCallEvent event = new HandlerCallEvent();
+        event.service = service;
+        event.operation = operation;
+        event.userIDHash = Events.hashUserID(userID);
+        event.imageCount = imageCount;
+        event.payloadBytes = payloadBytes;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the call and commits the event.
+     * @param outcome What came of it, e.g. "responded" or "no response".
+     */
+    public void finish(String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package dsd.cherry.tater.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One call a service SDK made to its remote API.
+ */
+@Name("dsd.cherry.tater.RemoteCall")
+@Label("Remote API Call")
+@Category({"Facilitator", "Services"})
+@Description("A call to a facial recognition service's remote API")
+@StackTrace(false)
+public class RemoteCallEvent extends jdk.jfr.Event {
+    private static final RemoteCallEvent probe = new RemoteCallEvent();
+
+    @Label("Service")
+    String service;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Outcome")
+    String outcome;
+
+    /**
+     * Starts timing a remote call.
+     * @param service The name of the service.
+     * @param operation The API called, e.g. "detection/detect".
+     * @return The event, or null if no recording wants it.
+     */
+    public static RemoteCallEvent begin(String service, String operation) {
+        if (!probe.isEnabled()) return null;
+        RemoteCallEvent event = new RemoteCallEvent();
+        event.service = service;
+        event.operation = operation;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the call and commits the event.
+     * @param outcome What came of it: "ok", "error" or "timeout".
+     */
+    public void finish(String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * Java Flight Recorder events for the facilitator's requests, its fan-out to the facial recognition services, each
+ * service handler call and each remote API call, so that GC pauses, lock contention and the like in a recording can
+ * be tied back to the requests they slowed down.
+ *
+ * Every event is started through a static begin() that returns null unless a recording has enabled the event type,
+ * so while nothing is recording the instrumentation allocates nothing and computes nothing. User IDs, and the person
+ * IDs of handler calls, are recorded as 64-bit HMACs under a key that is random for each run of the facilitator and
+ * is never written anywhere, so a recording can tell users apart but cannot be turned back into their IDs by hashing
+ * candidates. Hashes from recordings made by different runs do not match. The events need a JVM with JFR: OpenJDK
+ * 8u262 or later, or any JDK 11+.
+ */
+package dsd.cherry.tater.jfr;
@@ -0,0 +1,584 @@
+package dsd.cherry.tater.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import dsd.cherry.tater.util.RateLimiter;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for the FacePP v2 API, for load testing without quotas, costs or network access. It implements the
+ * endpoints FacePPCommunicator uses, keeps persons, faces and groups in memory, and answers with the same JSON shapes
+ * as FacePP. Each endpoint's latency follows a configurable distribution, and errors and per-API-key rate limits can
+ * be injected.
+ *
+ * A face's identity is a hash of the image it was detected in, so verifying a person with one of the images they
+ * were trained with is a match and anything else is not.
+ *
+ * Point the facilitator at it with <code>-Dtater.facepp.url=http://localhost:&lt;port&gt;/</code>.
+ */
+public class FacePPStandIn {
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final Map<String,LatencyModel> latencies = new ConcurrentHashMap<String, LatencyModel>();
+    private volatile LatencyModel defaultLatency = LatencyModel.logNormal(300, 3000);
+    private volatile double errorRate = 0;
+    private volatile double noFaceRate = 0;
+    private volatile double keyRateLimit = 0;
+    private volatile long trainMillis = 200;
+    private final ConcurrentMap<String,RateLimiter> keyLimits = new ConcurrentHashMap<String, RateLimiter>();
+
+    private final AtomicLong nextID = new AtomicLong();
+    private final ConcurrentMap<String,Integer> faces = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String,Person> persons = new ConcurrentHashMap<String, Person>();
+    private final ConcurrentMap<String,String> personNames = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String,Set<String>> groups = new ConcurrentHashMap<String, Set<String>>();
+    private final ConcurrentMap<String,Long> sessions = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * <b>Constructor.</b>
+     * @param port The localhost port to listen on, or 0 to pick a free one.
+     * @throws IOException If the port cannot be bound.
+     */
+    public FacePPStandIn(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 256);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "facepp-standin");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/", new Handler());
+    }
+
+    public void start() { server.start(); }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() { return server.getAddress().getPort(); }
+
+    public String getURL() { return "http://localhost:" + getPort() + "/"; }
+
+    /**
+     * @param latency The latency of every endpoint without its own model.
+     */
+    public void setDefaultLatency(LatencyModel latency) { this.defaultLatency = latency; }
+
+    /**
+     * @param endpoint An endpoint such as <code>recognition/verify</code>.
+     * @param latency The latency of that endpoint.
+     */
+    public void setLatency(String endpoint, LatencyModel latency) { latencies.put(endpoint, latency); }
+
+    /**
+     * @param errorRate The fraction of calls, between 0 and 1, answered with a SERVER_TOO_BUSY error.
+     */
+    public void setErrorRate(double errorRate) { this.errorRate = errorRate; }
+
+    /**
+     * @param noFaceRate The fraction of images, between 0 and 1, in which detection finds no face.
+     */
+    public void setNoFaceRate(double noFaceRate) { this.noFaceRate = noFaceRate; }
+
+    /**
+     * @param callsPerSecond The calls per second allowed for each API key; 0 for no limit. Calls over the limit are
+     *                       refused with a quota error, as FacePP does.
+     */
+    public void setKeyRateLimit(double callsPerSecond) {
+        this.keyRateLimit = callsPerSecond;
+        keyLimits.clear();
+    }
+
+    /**
+     * @param millis How long a training session stays queued before it reports success.
+     */
+    public void setTrainMillis(long millis) { this.trainMillis = millis; }
+
+    private class Handler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String endpoint = exchange.getRequestURI().getPath();
+            endpoint = endpoint.replaceAll("^/+", "").replaceAll("^v2/", "");
+            try {
+                Map<String,byte[]> params = readParams(exchange);
+                String apiKey = text(params, "api_key");
+
+                double limit = keyRateLimit;
+                if (limit > 0 && apiKey != null) {
+                    RateLimiter keyLimit = keyLimits.get(apiKey);
+                    if (keyLimit == null) {
+                        keyLimits.putIfAbsent(apiKey, new RateLimiter(limit, limit));
+                        keyLimit = keyLimits.get(apiKey);
+                    }
+                    if (!keyLimit.tryAcquire()) {
+                        reply(exchange, 403, error(1003, "INSUFFICIENT_PRIVILEGE_OR_QUOTA_LIMIT_EXCEEDED"));
+                        return;
+                    }
+                }
+
+                LatencyModel latency = latencies.get(endpoint);
+                Thread.sleep((latency == null ? defaultLatency : latency).sample());
+
+                if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    reply(exchange, 502, error(1202, "SERVER_TOO_BUSY"));
+                    return;
+                }
+
+                JSONObject result = dispatch(endpoint, params);
+                if (result == null) {
+                    reply(exchange, 404, error(1009, "API_NOT_FOUND"));
+                } else if (result.has("error_code")) {
+                    reply(exchange, 400, result);
+                } else {
+                    reply(exchange, 200, result);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reply(exchange, 500, error(1001, "INTERNAL_ERROR"));
+            } catch (JSONException e) {
+                e.printStackTrace();
+                reply(exchange, 500, error(1001, "INTERNAL_ERROR"));
+            }
+        }
+    }
+
+    private JSONObject dispatch(String endpoint, Map<String,byte[]> params) throws JSONException {
+        if (endpoint.equals("detection/detect")) return detect(params);
+        if (endpoint.equals("person/create")) return createPerson(params);
+        if (endpoint.equals("person/delete")) return deletePerson(params);
+        if (endpoint.equals("person/get_info")) return getPersonInfo(params);
+        if (endpoint.equals("person/set_info")) return setPersonInfo(params);
+        if (endpoint.equals("person/add_face")) return addFace(params);
+        if (endpoint.equals("person/remove_face")) return removeFace(params);
+        if (endpoint.equals("group/create")) return createGroup(params);
+        if (endpoint.equals("group/delete")) return deleteGroup(params);
+        if (endpoint.equals("group/add_person")) return addPersonToGroup(params);
+        if (endpoint.equals("group/remove_person")) return removePersonFromGroup(params);
+        if (endpoint.equals("group/get_info")) return getGroupInfo(params);
+        if (endpoint.equals("train/verify") || endpoint.equals("train/identify")) return train();
+        if (endpoint.equals("info/get_session")) return getSession(params);
+        if (endpoint.equals("recognition/verify")) return recognitionVerify(params);
+        if (endpoint.equals("recognition/identify")) return recognitionIdentify(params);
+        return null;
+    }
+
+    private JSONObject detect(Map<String,byte[]> params) throws JSONException {
+        JSONObject result = new JSONObject();
+        JSONArray found = new JSONArray();
+        Integer identity = identityOf(params);
+        if (identity != null && ThreadLocalRandom.current().nextDouble() >= noFaceRate) {
+            String faceID = newID("face");
+            faces.put(faceID, identity);
+            JSONObject face = new JSONObject();
+            face.put("face_id", faceID);
+            face.put("attribute", new JSONObject());
+            face.put("position", new JSONObject());
+            found.put(face);
+        }
+        result.put("face", found);
+        result.put("img_id", newID("img"));
+        result.put("session_id", newID("session"));
+        return result;
+    }
+
+    private JSONObject createPerson(Map<String,byte[]> params) throws JSONException {
+        String name = text(params, "person_name");
+        String personID = newID("person");
+        if (name == null) name = personID;
+        if (personNames.putIfAbsent(name, personID) != null) return error(1503, "NAME_EXIST");
+        persons.put(personID, new Person(name));
+
+        JSONObject result = new JSONObject();
+        result.put("person_id", personID);
+        result.put("person_name", name);
+        result.put("added_face", 0);
+        result.put("added_group", 0);
+        result.put("tag", "");
+        return result;
+    }
+
+    private JSONObject deletePerson(Map<String,byte[]> params) throws JSONException {
+        String personID = personID(params);
+        Person person = personID == null ? null : persons.remove(personID);
+        if (person == null) return error(1505, "INVALID_PERSON");
+        personNames.remove(person.name);
+        for (Set<String> members : groups.values()) {
+            members.remove(personID);
+        }
+        return success("deleted");
+    }
+
+    private JSONObject getPersonInfo(Map<String,byte[]> params) throws JSONException {
+        String personID = personID(params);
+        Person person = personID == null ? null : persons.get(personID);
+        if (person == null) return error(1505, "INVALID_PERSON");
+
+        JSONObject result = new JSONObject();
+        result.put("person_id", personID);
+        result.put("person_name", person.name);
+        result.put("face", new JSONArray());
+        result.put("group", new JSONArray());
+        result.put("tag", "");
+        return result;
+    }
+
+    private JSONObject setPersonInfo(Map<String,byte[]> params) throws JSONException {
+        String personID = text(params, "person_id");
+        Person person = personID == null ? null : persons.get(personID);
+        if (person == null) return error(1505, "INVALID_PERSON");
+        String name = text(params, "person_name");
+        if (name != null && !name.equals(person.name)) {
+            if (personNames.putIfAbsent(name, personID) != null) return error(1503, "NAME_EXIST");
+            personNames.remove(person.name, personID);
+            person.name = name;
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("person_id", personID);
+        result.put("person_name", person.name);
+        result.put("tag", "");
+        return result;
+    }
+
+    private JSONObject addFace(Map<String,byte[]> params) throws JSONException {
+        Person person = person(params);
+        Integer identity = faces.get(String.valueOf(text(params, "face_id")));
+        if (person == null) return error(1505, "INVALID_PERSON");
+        if (identity == null) return error(1006, "INVALID_FACE_ID");
+        person.identities.add(identity);
+        return success("added");
+    }
+
+    private JSONObject removeFace(Map<String,byte[]> params) throws JSONException {
+        Person person = person(params);
+        Integer identity = faces.get(String.valueOf(text(params, "face_id")));
+        if (person == null) return error(1505, "INVALID_PERSON");
+        if (identity != null) person.identities.remove(identity);
+        return success("removed");
+    }
+
+    private JSONObject createGroup(Map<String,byte[]> params) throws JSONException {
+        String name = text(params, "group_name");
+        if (name == null) return error(1004, "MISSING_ARGUMENTS: group_name");
+        Set<String> members = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        if (groups.putIfAbsent(name, members) != null) return error(1503, "NAME_EXIST");
+
+        JSONObject result = new JSONObject();
+        result.put("group_id", newID("group"));
+        result.put("group_name", name);
+        result.put("added_person", 0);
+        return result;
+    }
+
+    private JSONObject deleteGroup(Map<String,byte[]> params) throws JSONException {
+        String name = text(params, "group_name");
+        if (name == null || groups.remove(name) == null) return error(1506, "INVALID_GROUP");
+        return success("deleted");
+    }
+
+    private JSONObject addPersonToGroup(Map<String,byte[]> params) throws JSONException {
+        Set<String> members = groups.get(String.valueOf(text(params, "group_name")));
+        String personID = personID(params);
+        if (members == null) return error(1506, "INVALID_GROUP");
+        if (personID == null || !persons.containsKey(personID)) return error(1505, "INVALID_PERSON");
+        members.add(personID);
+        return success("added");
+    }
+
+    private JSONObject removePersonFromGroup(Map<String,byte[]> params) throws JSONException {
+        Set<String> members = groups.get(String.valueOf(text(params, "group_name")));
+        if (members == null) return error(1506, "INVALID_GROUP");
+        members.remove(personID(params));
+        return success("removed");
+    }
+
+    private JSONObject getGroupInfo(Map<String,byte[]> params) throws JSONException {
+        String name = String.valueOf(text(params, "group_name"));
+        Set<String> members = groups.get(name);
+        if (members == null) return error(1506, "INVALID_GROUP");
+
+        JSONArray found = new JSONArray();
+        for (String personID : members) {
+            Person person = persons.get(personID);
+            if (person == null) continue;
+            JSONObject entry = new JSONObject();
+            entry.put("person_id", personID);
+            entry.put("person_name", person.name);
+            found.put(entry);
+        }
+        JSONObject result = new JSONObject();
+        result.put("group_name", name);
+        result.put("person", found);
+        return result;
+    }
+
+    private JSONObject train() throws JSONException {
+        String sessionID = newID("session");
+        sessions.put(sessionID, System.currentTimeMillis() + trainMillis);
+        JSONObject result = new JSONObject();
+        result.put("session_id", sessionID);
+        return result;
+    }
+
+    private JSONObject getSession(Map<String,byte[]> params) throws JSONException {
+        String sessionID = text(params, "session_id");
+        Long readyAt = sessionID == null ? null : sessions.get(sessionID);
+        if (readyAt == null) return error(1004, "INVALID_SESSION");
+
+        JSONObject result = new JSONObject();
+        result.put("session_id", sessionID);
+        if (System.currentTimeMillis() >= readyAt) {
+            sessions.remove(sessionID);
+            result.put("status", "SUCC");
+            JSONObject success = new JSONObject();
+            success.put("success", true);
+            result.put("result", success);
+        } else {
+            result.put("status", "INQUEUE");
+        }
+        return result;
+    }
+
+    private JSONObject recognitionVerify(Map<String,byte[]> params) throws JSONException {
+        Person person = person(params);
+        Integer identity = faces.get(String.valueOf(text(params, "face_id")));
+        if (person == null) return error(1505, "INVALID_PERSON");
+        if (identity == null) return error(1006, "INVALID_FACE_ID");
+
+        float confidence = confidence(person, identity);
+        JSONObject result = new JSONObject();
+        result.put("is_same_person", confidence >= 80);
+        result.put("confidence", confidence);
+        result.put("session_id", newID("session"));
+        return result;
+    }
+
+    private JSONObject recognitionIdentify(Map<String,byte[]> params) throws JSONException {
+        Set<String> members = groups.get(String.valueOf(text(params, "group_name")));
+        if (members == null) return error(1506, "INVALID_GROUP");
+        Integer identity = identityOf(params);
+        if (identity == null) return error(1004, "MISSING_ARGUMENTS: img or url");
+
+        List<JSONObject> candidates = new ArrayList<JSONObject>();
+        for (String personID : members) {
+            Person person = persons.get(personID);
+            if (person == null) continue;
+            JSONObject candidate = new JSONObject();
+            candidate.put("person_id", personID);
+            candidate.put("person_name", person.name);
+            candidate.put("confidence", confidence(person, identity));
+            candidates.add(candidate);
+        }
+        Collections.sort(candidates, new java.util.Comparator<JSONObject>() {
+            @Override
+            public int compare(JSONObject a, JSONObject b) {
+                return Double.compare(b.optDouble("confidence"), a.optDouble("confidence"));
+            }
+        });
+
+        JSONObject face = new JSONObject();
+        face.put("face_id", newID("face"));
+        face.put("candidate", new JSONArray(candidates.subList(0, Math.min(3, candidates.size()))));
+        JSONObject result = new JSONObject();
+        result.put("face", new JSONArray(Arrays.asList(face)));
+        result.put("session_id", newID("session"));
+        return result;
+    }
+
+    private static float confidence(Person person, Integer identity) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (person.identities.contains(identity)) return 85 + 10 * random.nextFloat();
+        return 10 + 30 * random.nextFloat();
+    }
+
+    private Integer identityOf(Map<String,byte[]> params) {
+        byte[] img = params.get("img");
+        if (img != null) return Arrays.hashCode(img);
+        String keyFaceID = text(params, "key_face_id");
+        if (keyFaceID != null) return faces.get(keyFaceID);
+        String url = text(params, "url");
+        return url == null ? null : url.hashCode();
+    }
+
+    private Person person(Map<String,byte[]> params) {
+        String personID = personID(params);
+        return personID == null ? null : persons.get(personID);
+    }
+
+    private String personID(Map<String,byte[]> params) {
+        String personID = text(params, "person_id");
+        if (personID != null) return personID;
+        String name = text(params, "person_name");
+        return name == null ? null : personNames.get(name);
+    }
+
+    private String newID(String kind) {
+        return kind + "-" + Long.toHexString(nextID.incrementAndGet());
+    }
+
+    private static JSONObject success(String countField) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put(countField, 1);
+        result.put("success", true);
+        return result;
+    }
+
+    private static JSONObject error(int code, String message) {
+        JSONObject result = new JSONObject();
+        try {
+            result.put("error_code", code);
+            result.put("error", message);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    private static void reply(HttpExchange exchange, int status, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static String text(Map<String,byte[]> params, String name) {
+        byte[] value = params.get(name);
+        if (value == null) return null;
+        try {
+            return new String(value, "UTF-8");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the form fields of a request. The SDK posts multipart/form-data; url-encoded forms and query strings are
+     * accepted as well for manual testing.
+     */
+    private static Map<String,byte[]> readParams(HttpExchange exchange) throws IOException {
+        Map<String,byte[]> params = new HashMap<String, byte[]>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) readURLEncoded(query, params);
+
+        byte[] body = readAll(exchange.getRequestBody());
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (type != null && type.contains("boundary=")) {
+            String boundary = "--" + type.substring(type.indexOf("boundary=") + 9).replace("\"", "").trim();
+            readMultipart(new String(body, "ISO-8859-1"), boundary, params);
+        } else if (body.length > 0) {
+            readURLEncoded(new String(body, "UTF-8"), params);
+        }
+        return params;
+    }
+
+    private static void readMultipart(String body, String boundary, Map<String,byte[]> params) throws IOException {
+        int pos = body.indexOf(boundary);
+        while (pos >= 0) {
+            int start = pos + boundary.length();
+            if (body.startsWith("--", start)) break;
+            int headersEnd = body.indexOf("\r\n\r\n", start);
+            if (headersEnd < 0) break;
+            int next = body.indexOf(boundary, headersEnd + 4);
+            if (next < 0) break;
+
+            String headers = body.substring(start, headersEnd);
+            int nameAt = headers.indexOf("name=\"");
+            if (nameAt >= 0) {
+                String name = headers.substring(nameAt + 6, headers.indexOf('"', nameAt + 6));
+                // drop the CRLF that precedes the next boundary
+                params.put(name, body.substring(headersEnd + 4, next - 2).getBytes("ISO-8859-1"));
+            }
+            pos = next;
+        }
+    }
+
+    private static void readURLEncoded(String form, Map<String,byte[]> params) throws IOException {
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                       URLDecoder.decode(pair.substring(eq + 1), "UTF-8").getBytes("UTF-8"));
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[16 * 1024];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            buffer.write(chunk, 0, n);
+        }
+        in.close();
+        return buffer.toByteArray();
+    }
+
+    private static class Person {
+        volatile String name;
+        final Set<Integer> identities = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+        Person(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Runs a stand-in until the process is killed. Configured with system properties:
+     * <ul>
+     *     <li><code>tater.standin.port</code>: port to listen on (default 8099).</li>
+     *     <li><code>tater.standin.latency</code>: default latency, <code>median[,p99]</code> ms (default 300,3000).</li>
+     *     <li><code>tater.standin.latency.&lt;control&gt;.&lt;action&gt;</code>: latency of a single endpoint.</li>
+     *     <li><code>tater.standin.errorRate</code>: fraction of calls that fail (default 0).</li>
+     *     <li><code>tater.standin.noFaceRate</code>: fraction of images without a face (default 0).</li>
+     *     <li><code>tater.standin.keyQps</code>: calls per second per API key, 0 for unlimited (default 0).</li>
+     *     <li><code>tater.standin.trainMs</code>: how long training sessions take (default 200).</li>
+     * </ul>
+     */
+    public static void main(String[] args) throws IOException {
+        FacePPStandIn standIn = new FacePPStandIn(Integer.getInteger("tater.standin.port", 8099));
+        standIn.setDefaultLatency(LatencyModel.parse(System.getProperty("tater.standin.latency", "300,3000")));
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("tater.standin.latency.")) {
+                String endpoint = name.substring("tater.standin.latency.".length()).replace('.', '/');
+                standIn.setLatency(endpoint, LatencyModel.parse(System.getProperty(name)));
+            }
+        }
+        standIn.setErrorRate(Double.parseDouble(System.getProperty("tater.standin.errorRate", "0")));
+        standIn.setNoFaceRate(Double.parseDouble(System.getProperty("tater.standin.noFaceRate", "0")));
+        standIn.setKeyRateLimit(Double.parseDouble(System.getProperty("tater.standin.keyQps", "0")));
+        standIn.setTrainMillis(Long.getLong("tater.standin.trainMs", 200));
+        standIn.start();
+        System.out.println("FacePP stand-in listening at " + standIn.getURL());
+    }
+}
@@ -0,0 +1,77 @@
+package dsd.cherry.tater.loadtest;
+
+import javax.xml.bind.DatatypeConverter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The bare HTTP client the load tools use to talk to a facilitator.
+ */
+class FacilitatorClient {
+    private final String baseURL;
+
+    FacilitatorClient(String baseURL) {
+        this.baseURL = baseURL.endsWith("/") ? baseURL.substring(0, baseURL.length() - 1) : baseURL;
+    }
+
+    /**
+     * Posts a JSON request and reads the whole reply.
+     * @param path The endpoint, e.g. "/verify".
+     * @param JSON The request body.
+     * @return The reply, whatever its status.
+     * @throws IOException If the request could not be sent or the reply read.
+     */
+    Reply post(String path, String JSON) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseURL + path).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            byte[] body = JSON.getBytes("UTF-8");
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            return new Reply(status, in == null ? new byte[0] : readAll(in));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return An image as it appears in /train and /verify requests.
+     */
+    static String imageJSON(String imageID, byte[] image) {
+        return "{\"internal_id\":\"" + imageID + "\",\"base64_image\":\""
+                + DatatypeConverter.printBase64Binary(image) + "\"}";
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            buffer.write(chunk, 0, n);
+        }
+        in.close();
+        return buffer.toByteArray();
+    }
+
+    static class Reply {
+        final int status;
+        final byte[] body;
+
+        Reply(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package dsd.cherry.tater.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A latency distribution for simulated backend calls. Real FacePP latency has a long right tail, so the default shape
+ * is log-normal, described by its median and 99th percentile.
+ */
+public class LatencyModel {
+    private static final double Z99 = 2.3263;
+
+    private final double mu;
+    private final double sigma;
+    private final long maxMillis;
+
+    private LatencyModel(double mu, double sigma, long maxMillis) {
+        this.mu = mu;
+        this.sigma = sigma;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @param medianMillis The median latency.
+     * @param p99Millis The 99th percentile latency; at least the median.
+     * @return A log-normal latency model, truncated at ten times the 99th percentile.
+     */
+    public static LatencyModel logNormal(double medianMillis, double p99Millis) {
+        double median = Math.max(0.001, medianMillis);
+        double sigma = Math.log(Math.max(median, p99Millis) / median) / Z99;
+        return new LatencyModel(Math.log(median), sigma, (long) Math.ceil(10 * Math.max(median, p99Millis)));
+    }
+
+    public static LatencyModel fixed(long millis) {
+        return new LatencyModel(Math.log(Math.max(0.001, millis)), 0, millis);
+    }
+
+    /**
+     * @param spec Either <code>median</code> or <code>median,p99</code>, in milliseconds.
+     * @return The described model.
+     */
+    public static LatencyModel parse(String spec) {
+        String[] parts = spec.split(",");
+        if (parts.length == 1) return fixed(Long.parseLong(parts[0].trim()));
+        return logNormal(Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()));
+    }
+
+    /**
+     * @return A latency drawn from the distribution, in milliseconds.
+     */
+    public long sample() {
+        if (sigma == 0) return maxMillis;
+        double millis = Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+        return Math.min(maxMillis, Math.round(millis));
+    }
+}
@@ -0,0 +1,67 @@
+package dsd.cherry.tater.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the latencies and outcomes of one kind of request during a load test and summarizes them as percentiles.
+ */
+class LatencyRecorder {
+    private final String name;
+    private long[] micros = new long[1024];
+    private int count;
+    private final Map<String,Integer> outcomes = new TreeMap<String, Integer>();
+
+    LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param latencyMicros Time from when the request was due to be sent to when its reply was read.
+     * @param outcome The HTTP status, or a short description of the failure.
+     */
+    synchronized void record(long latencyMicros, String outcome) {
+        if (count == micros.length) micros = Arrays.copyOf(micros, count * 2);
+        micros[count++] = latencyMicros;
+        Integer seen = outcomes.get(outcome);
+        outcomes.put(outcome, seen == null ? 1 : seen + 1);
+    }
+
+    synchronized String summarize(double seconds) {
+        if (count == 0) return name + ": no requests";
+        long[] sorted = Arrays.copyOf(micros, count);
+        Arrays.sort(sorted);
+        return String.format("%s: %d requests, %.1f/s, latency ms p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f, outcomes %s",
+                name, count, count / seconds,
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), sorted[count - 1] / 1000.0, outcomes);
+    }
+
+    static final String CSV_HEADER = "label,endpoint,requests,errors,seconds,per_second,p50_ms,p90_ms,p99_ms,p999_ms,max_ms";
+
+    /**
+     * @param label The build or configuration the results belong to.
+     * @param seconds The length of the run.
+     * @return The summary as a line of CSV matching CSV_HEADER, without a line break. Any outcome other than a 2xx
+     *         status counts as an error.
+     */
+    synchronized String toCSV(String label, double seconds) {
+        long[] sorted = Arrays.copyOf(micros, count);
+        Arrays.sort(sorted);
+        int errors = 0;
+        for (Map.Entry<String,Integer> outcome : outcomes.entrySet()) {
+            if (!outcome.getKey().startsWith("2")) errors += outcome.getValue();
+        }
+        if (count == 0) return String.format("%s,%s,0,0,%.3f,0,,,,,", label, name, seconds);
+        return String.format("%s,%s,%d,%d,%.3f,%.2f,%.3f,%.3f,%.3f,%.3f,%.3f",
+                label, name, count, errors, seconds, count / seconds,
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), sorted[count - 1] / 1000.0);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000.0;
+    }
+}
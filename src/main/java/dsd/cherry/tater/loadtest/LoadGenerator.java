@@ -0,0 +1,161 @@
+package dsd.cherry.tater.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives /train and /verify on a running facilitator at a fixed target rate and reports throughput and latency
+ * percentiles for each. Requests are sent on schedule whether or not earlier ones have finished, and latency is
+ * measured from when a request was due rather than when it was sent, so a stalled facilitator shows up in the
+ * percentiles instead of quietly lowering the offered load.
+ *
+ * Each simulated user is trained once with a few generated images and then verified with one of them. Run the
+ * facilitator against a FacePPStandIn to keep the whole test on localhost.
+ *
+ * Usage: <code>LoadGenerator &lt;facilitator base URL&gt;</code>, configured with system properties:
+ * <ul>
+ *     <li><code>tater.load.rate</code>: requests per second (default 20).</li>
+ *     <li><code>tater.load.durationSec</code>: length of the test (default 60).</li>
+ *     <li><code>tater.load.users</code>: number of distinct users (default 200).</li>
+ *     <li><code>tater.load.imagesPerUser</code>: images each user is trained with (default 3).</li>
+ *     <li><code>tater.load.imageKB</code>: size of each image (default 256).</li>
+ *     <li><code>tater.load.verifyFraction</code>: share of requests that verify once users exist (default 0.9).</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    private final FacilitatorClient client;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final int users;
+    private final int imagesPerUser;
+    private final int imageKB;
+    private final double verifyFraction;
+
+    private final AtomicInteger nextUntrained = new AtomicInteger();
+    private final ConcurrentMap<Integer,JsonNode> trained = new ConcurrentHashMap<Integer, JsonNode>();
+    private final LatencyRecorder trainLatency = new LatencyRecorder("/train");
+    private final LatencyRecorder verifyLatency = new LatencyRecorder("/verify");
+
+    public LoadGenerator(String baseURL, int users, int imagesPerUser, int imageKB, double verifyFraction) {
+        this.client = new FacilitatorClient(baseURL);
+        this.users = users;
+        this.imagesPerUser = imagesPerUser;
+        this.imageKB = imageKB;
+        this.verifyFraction = verifyFraction;
+    }
+
+    /**
+     * Sends requests at the target rate for the given time and waits for the stragglers.
+     * @param rate Requests per second.
+     * @param seconds How long to keep sending.
+     * @throws InterruptedException If the test is interrupted.
+     */
+    public void run(double rate, int seconds) throws InterruptedException {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        long interval = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        try {
+            for (long due = start; due < end; due += interval) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                final long scheduled = due;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendOne(scheduled);
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(5, TimeUnit.MINUTES);
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Offered %.1f requests/s for %d s", rate, seconds));
+        System.out.println(trainLatency.summarize(elapsed));
+        System.out.println(verifyLatency.summarize(elapsed));
+    }
+
+    private void sendOne(long scheduled) {
+        boolean verify = !trained.isEmpty()
+                && (nextUntrained.get() >= users || ThreadLocalRandom.current().nextDouble() < verifyFraction);
+        if (verify) {
+            List<Integer> ids = new ArrayList<Integer>(trained.keySet());
+            int user = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+            verify(user, scheduled);
+        } else {
+            int user = nextUntrained.getAndIncrement();
+            if (user < users) train(user, scheduled);
+        }
+    }
+
+    private void train(int user, long scheduled) {
+        StringBuilder JSON = new StringBuilder();
+        JSON.append("{\"UserId\":\"load-").append(user).append("\",\"FacilitatorIds\":[],\"Images\":[");
+        for (int i = 0; i < imagesPerUser; ++i) {
+            if (i > 0) JSON.append(',');
+            JSON.append(FacilitatorClient.imageJSON("img-" + i, image(user, i)));
+        }
+        JSON.append("]}");
+
+        FacilitatorClient.Reply reply = post("/train", JSON.toString(), scheduled, trainLatency);
+        if (reply != null && reply.status < 300) {
+            try {
+                trained.put(user, mapper.readTree(reply.body).path("FacilitatorId"));
+            } catch (IOException e) {
+                System.out.println("Unreadable /train reply: " + e.getMessage());
+            }
+        }
+    }
+
+    private void verify(int user, long scheduled) {
+        int which = ThreadLocalRandom.current().nextInt(imagesPerUser);
+        String JSON = "{\"UserId\":\"load-" + user + "\",\"FacilitatorIds\":" + trained.get(user)
+                + ",\"Image\":" + FacilitatorClient.imageJSON("img-" + which, image(user, which)) + "}";
+        post("/verify", JSON, scheduled, verifyLatency);
+    }
+
+    private byte[] image(int user, int index) {
+        byte[] data = new byte[imageKB * 1024];
+        new Random(((long) user << 16) + index).nextBytes(data);
+        return data;
+    }
+
+    private FacilitatorClient.Reply post(String path, String JSON, long scheduled, LatencyRecorder recorder) {
+        try {
+            FacilitatorClient.Reply reply = client.post(path, JSON);
+            recorder.record((System.nanoTime() - scheduled) / 1000, Integer.toString(reply.status));
+            return reply;
+        } catch (IOException e) {
+            recorder.record((System.nanoTime() - scheduled) / 1000, e.getClass().getSimpleName());
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length != 1) {
+            System.out.println("Usage: LoadGenerator <facilitator base URL>");
+            System.exit(1);
+        }
+        LoadGenerator generator = new LoadGenerator(args[0],
+                Integer.getInteger("tater.load.users", 200),
+                Integer.getInteger("tater.load.imagesPerUser", 3),
+                Integer.getInteger("tater.load.imageKB", 256),
+                Double.parseDouble(System.getProperty("tater.load.verifyFraction", "0.9")));
+        generator.run(Double.parseDouble(System.getProperty("tater.load.rate", "20")),
+                      Integer.getInteger("tater.load.durationSec", 60));
+    }
+}
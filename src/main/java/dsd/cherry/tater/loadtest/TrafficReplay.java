@@ -0,0 +1,297 @@
+package dsd.cherry.tater.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dsd.cherry.tater.capture.CaptureReader;
+import dsd.cherry.tater.capture.CapturedRequest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-drives traffic recorded by TrafficCapture against a facilitator, normally one pointed at a FacePPStandIn, and
+ * records latency and throughput so that builds can be compared on the same traffic.
+ *
+ * Captures keep only hashes and sizes of images, so each image is replaced by a deterministic stand-in of the same
+ * size generated from its hash. The same captured image always becomes the same stand-in, so a verify with an image
+ * the user was trained with still matches on the FacePPStandIn. Users whose first captured request is a verify are
+ * enrolled with that verify's images before the timed replay starts.
+ *
+ * Usage:
+ * <ul>
+ *     <li><code>TrafficReplay &lt;capture file&gt; &lt;facilitator base URL&gt;</code> replays a capture and appends
+ *     the results to a CSV file.</li>
+ *     <li><code>TrafficReplay compare &lt;results CSV&gt; &lt;baseline label&gt; &lt;candidate label&gt;</code> prints
+ *     how the candidate's latency and throughput changed from the baseline's.</li>
+ * </ul>
+ *
+ * Configured with system properties:
+ * <ul>
+ *     <li><code>tater.replay.speed</code>: how much faster than captured to replay, e.g. 1 or 10, or "max" to send
+ *     requests back to back (default 1).</li>
+ *     <li><code>tater.replay.concurrency</code>: requests in flight at once at "max" speed (default 32).</li>
+ *     <li><code>tater.replay.label</code>: the name the results are recorded under, e.g. a build number
+ *     (default "replay").</li>
+ *     <li><code>tater.replay.results</code>: the CSV file results are appended to (default replay-results.csv).</li>
+ * </ul>
+ */
+public class TrafficReplay {
+    private final FacilitatorClient client;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ConcurrentMap<Long,JsonNode> FACIDs = new ConcurrentHashMap<Long, JsonNode>();
+    private final Map<String,LatencyRecorder> recorders = new LinkedHashMap<String, LatencyRecorder>();
+
+    public TrafficReplay(String baseURL) {
+        this.client = new FacilitatorClient(baseURL);
+        recorders.put("/train", new LatencyRecorder("/train"));
+        recorders.put("/verify", new LatencyRecorder("/verify"));
+    }
+
+    /**
+     * Replays the requests on their captured schedule, sped up by the given factor.
+     * @param requests The captured requests, ordered by arrival.
+     * @param speed How much faster than captured to send them.
+     * @return The length of the replay in seconds.
+     * @throws InterruptedException If the replay is interrupted.
+     */
+    public double replayTimed(List<CapturedRequest> requests, double speed) throws InterruptedException {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        long start = System.nanoTime();
+        try {
+            for (final CapturedRequest r : requests) {
+                final long due = start + (long) (r.getArrivalNanos() / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(r, due);
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.MINUTES);
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * Replays the requests in captured order as fast as the facilitator answers them.
+     * @param requests The captured requests, ordered by arrival.
+     * @param concurrency The number of requests in flight at once.
+     * @return The length of the replay in seconds.
+     * @throws InterruptedException If the replay is interrupted.
+     */
+    public double replayMax(List<CapturedRequest> requests, int concurrency) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        try {
+            for (final CapturedRequest r : requests) {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(r, System.nanoTime());
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.MINUTES);
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * Trains every user whose first captured request is a verify, so that their verifies have someone to match.
+     * @param requests The captured requests, ordered by arrival.
+     */
+    public void enrollVerifyOnlyUsers(List<CapturedRequest> requests) {
+        Set<Long> seen = new HashSet<Long>();
+        int enrolled = 0;
+        for (CapturedRequest r : requests) {
+            if (!seen.add(r.getUserHash()) || r.getEndpoint() != CapturedRequest.VERIFY) continue;
+            try {
+                FacilitatorClient.Reply reply = client.post("/train", trainJSON(r));
+                remember(r, reply);
+                ++enrolled;
+            } catch (IOException e) {
+                System.out.println("Could not enroll user " + userID(r) + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Enrolled " + enrolled + " users seen only verifying");
+    }
+
+    private void send(CapturedRequest r, long due) {
+        LatencyRecorder recorder = recorders.get(r.getEndpointPath());
+        String JSON = r.getEndpoint() == CapturedRequest.TRAIN ? trainJSON(r) : verifyJSON(r);
+        try {
+            FacilitatorClient.Reply reply = client.post(r.getEndpointPath(), JSON);
+            recorder.record((System.nanoTime() - due) / 1000, Integer.toString(reply.status));
+            if (r.getEndpoint() == CapturedRequest.TRAIN) remember(r, reply);
+        } catch (IOException e) {
+            recorder.record((System.nanoTime() - due) / 1000, e.getClass().getSimpleName());
+        }
+    }
+
+    private void remember(CapturedRequest r, FacilitatorClient.Reply reply) {
+        if (reply.status >= 300) return;
+        try {
+            FACIDs.put(r.getUserHash(), mapper.readTree(reply.body).path("FacilitatorId"));
+        } catch (IOException e) {
+            System.out.println("Unreadable /train reply: " + e.getMessage());
+        }
+    }
+
+    private String trainJSON(CapturedRequest r) {
+        StringBuilder JSON = new StringBuilder();
+        JSON.append("{\"UserId\":\"").append(userID(r)).append("\",\"FacilitatorIds\":").append(knownFACIDs(r))
+            .append(",\"Images\":[");
+        for (int i = 0; i < r.getImageCount(); ++i) {
+            if (i > 0) JSON.append(',');
+            JSON.append(FacilitatorClient.imageJSON("img-" + i, standInImage(r.getImageHash(i), r.getImageSize(i))));
+        }
+        return JSON.append("]}").toString();
+    }
+
+    private String verifyJSON(CapturedRequest r) {
+        String image = r.getImageCount() == 0 ? "null"
+                : FacilitatorClient.imageJSON("img-0", standInImage(r.getImageHash(0), r.getImageSize(0)));
+        return "{\"UserId\":\"" + userID(r) + "\",\"FacilitatorIds\":" + knownFACIDs(r) + ",\"Image\":" + image + "}";
+    }
+
+    private String knownFACIDs(CapturedRequest r) {
+        JsonNode known = FACIDs.get(r.getUserHash());
+        return known == null || known.isMissingNode() ? "[]" : known.toString();
+    }
+
+    private static String userID(CapturedRequest r) {
+        return "replay-" + Long.toHexString(r.getUserHash());
+    }
+
+    private static byte[] standInImage(long hash, int size) {
+        byte[] image = new byte[size];
+        new Random(hash).nextBytes(image);
+        return image;
+    }
+
+    /**
+     * Prints the replay's results next to the latency the facilitator had when the traffic was captured, and appends
+     * them to the results file.
+     */
+    private void report(List<CapturedRequest> requests, String label, double seconds, File results)
+            throws IOException {
+        LatencyRecorder capturedTrain = new LatencyRecorder("captured /train");
+        LatencyRecorder capturedVerify = new LatencyRecorder("captured /verify");
+        long capturedNanos = 0;
+        for (CapturedRequest r : requests) {
+            LatencyRecorder recorder = r.getEndpoint() == CapturedRequest.TRAIN ? capturedTrain : capturedVerify;
+            recorder.record(r.getDurationNanos() / 1000, Integer.toString(r.getStatus()));
+            capturedNanos = Math.max(capturedNanos, r.getArrivalNanos() + r.getDurationNanos());
+        }
+        System.out.println(capturedTrain.summarize(capturedNanos / 1e9));
+        System.out.println(capturedVerify.summarize(capturedNanos / 1e9));
+        for (LatencyRecorder recorder : recorders.values()) {
+            System.out.println(recorder.summarize(seconds));
+        }
+
+        boolean header = !results.exists() || results.length() == 0;
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(results, true), "UTF-8"));
+        try {
+            if (header) out.println(LatencyRecorder.CSV_HEADER);
+            for (LatencyRecorder recorder : recorders.values()) {
+                out.println(recorder.toCSV(label, seconds));
+            }
+        } finally {
+            out.close();
+        }
+        System.out.println("Results for " + label + " appended to " + results);
+    }
+
+    /**
+     * Prints how each endpoint's throughput and latency changed between two labelled runs in a results file.
+     */
+    static void compare(File results, String baseline, String candidate) throws IOException {
+        Map<String,String[]> before = new LinkedHashMap<String, String[]>();
+        Map<String,String[]> after = new LinkedHashMap<String, String[]>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(results), "UTF-8"));
+        try {
+            String line = in.readLine();
+            String[] columns = line == null ? new String[0] : line.split(",");
+            while ((line = in.readLine()) != null) {
+                String[] row = line.split(",", -1);
+                // later runs under the same label replace earlier ones
+                if (row[0].equals(baseline)) before.put(row[1], row);
+                if (row[0].equals(candidate)) after.put(row[1], row);
+            }
+            System.out.println(String.format("%-10s %-12s %12s %12s %9s", "endpoint", "metric", baseline, candidate,
+                    "change"));
+            for (Map.Entry<String,String[]> b : before.entrySet()) {
+                String[] a = after.get(b.getKey());
+                if (a == null) continue;
+                for (int c = 2; c < columns.length; ++c) {
+                    if (columns[c].equals("seconds")) continue;
+                    System.out.println(String.format("%-10s %-12s %12s %12s %9s", b.getKey(), columns[c],
+                            b.getValue()[c], a[c], change(b.getValue()[c], a[c])));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String change(String before, String after) {
+        if (before.isEmpty() || after.isEmpty()) return "";
+        double b = Double.parseDouble(before), a = Double.parseDouble(after);
+        return b == 0 ? "" : String.format("%+.1f%%", (a - b) / b * 100);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals("compare")) {
+            compare(new File(args[1]), args[2], args[3]);
+            return;
+        }
+        if (args.length != 2) {
+            System.out.println("Usage: TrafficReplay <capture file> <facilitator base URL>");
+            System.out.println("       TrafficReplay compare <results CSV> <baseline label> <candidate label>");
+            System.exit(1);
+        }
+
+        CaptureReader reader = new CaptureReader(new File(args[0]));
+        List<CapturedRequest> requests;
+        try {
+            requests = reader.readAll();
+        } finally {
+            reader.close();
+        }
+        System.out.println("Replaying " + requests.size() + " requests");
+
+        TrafficReplay replay = new TrafficReplay(args[1]);
+        replay.enrollVerifyOnlyUsers(requests);
+
+        String speed = System.getProperty("tater.replay.speed", "1");
+        double seconds = speed.equals("max")
+                ? replay.replayMax(requests, Integer.getInteger("tater.replay.concurrency", 32))
+                : replay.replayTimed(requests, Double.parseDouble(speed));
+
+        replay.report(requests, System.getProperty("tater.replay.label", "replay"), seconds,
+                new File(System.getProperty("tater.replay.results", "replay-results.csv")));
+    }
+}
@@ -0,0 +1,93 @@
+package dsd.cherry.tater.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear latency histogram in the style of HdrHistogram. Values are recorded in microseconds with
+ * about 3% relative precision from 1 microsecond up to roughly 19 hours. Recording is lock-free and allocation-free,
+ * so it is safe to call on every request from any number of threads.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int MAX_MSB = 35;
+    private static final int BUCKETS = LINEAR + (MAX_MSB - SUB_BITS) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << (MAX_MSB + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param micros A latency in microseconds. Negative values are recorded as zero, and values beyond the range of
+     *               the histogram as its maximum.
+     */
+    public void record(long micros) {
+        long value = Math.max(0, Math.min(MAX_VALUE, micros));
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long seen;
+        while (value > (seen = max.get())) {
+            if (max.compareAndSet(seen, value)) break;
+        }
+    }
+
+    public void recordNanos(long nanos) { record(nanos / 1000); }
+
+    public long getCount() { return count.get(); }
+
+    /**
+     * @return The sum of every recorded value, in microseconds.
+     */
+    public long getSum() { return sum.get(); }
+
+    public long getMax() { return max.get(); }
+
+    /**
+     * @param quantile A quantile between 0 and 1.
+     * @return The upper bound of the bucket holding that quantile, in microseconds, or 0 if nothing was recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * @param micros A bound in microseconds.
+     * @return The number of recorded values known to be no greater than the bound.
+     */
+    public long getCountAtOrBelow(long micros) {
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) <= micros; ++i) {
+            seen += counts.get(i);
+        }
+        return seen;
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        int mantissa = (int) (value >>> shift);
+        return LINEAR + (msb - SUB_BITS - 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    static long upperBound(int index) {
+        if (index < LINEAR) return index;
+        int group = (index - LINEAR) / SUB_BUCKETS;
+        long mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = group + 1;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,151 @@
+package dsd.cherry.tater.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the OperationMetrics of every service and renders them in the Prometheus text exposition format.
+ *
+ * Looking an operation up never allocates once it exists, but callers on hot paths should still keep the reference
+ * rather than look it up on every call.
+ */
+public class MetricsRegistry {
+    public static final String HANDLER = "handler";
+    public static final String REMOTE = "remote";
+
+    private static final MetricsRegistry global = new MetricsRegistry();
+
+    private static final double[] BUCKET_SECONDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentMap<String,ConcurrentMap<String,OperationMetrics>> services =
+            new ConcurrentHashMap<String, ConcurrentMap<String, OperationMetrics>>();
+
+    public static MetricsRegistry getGlobal() { return global; }
+
+    /**
+     * Finds the metrics for an operation, creating them the first time they are asked for.
+     * @param service The name of the service, e.g. "FacePP".
+     * @param operation The operation, e.g. "verify", or the remote API called, e.g. "detection/detect".
+     * @param kind HANDLER or REMOTE.
+     * @return The metrics for the operation.
+     */
+    public OperationMetrics operation(String service, String operation, String kind) {
+        ConcurrentMap<String,OperationMetrics> operations = services.get(service);
+        if (operations == null) {
+            services.putIfAbsent(service, new ConcurrentHashMap<String, OperationMetrics>());
+            operations = services.get(service);
+        }
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            operations.putIfAbsent(operation, new OperationMetrics(service, operation, kind));
+            metrics = operations.get(operation);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return Every operation recorded so far, ordered by service and then operation.
+     */
+    public List<OperationMetrics> getOperations() {
+        List<OperationMetrics> all = new ArrayList<OperationMetrics>();
+        for (ConcurrentMap<String,OperationMetrics> operations : services.values()) {
+            all.addAll(operations.values());
+        }
+        Collections.sort(all, new Comparator<OperationMetrics>() {
+            @Override
+            public int compare(OperationMetrics a, OperationMetrics b) {
+                int c = a.getService().compareTo(b.getService());
+                return c != 0 ? c : a.getOperation().compareTo(b.getOperation());
+            }
+        });
+        return all;
+    }
+
+    /**
+     * Writes every operation's metrics in the Prometheus text format, version 0.0.4.
+     * @param out Where to write the metrics.
+     * @throws IOException If the writer fails.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        List<OperationMetrics> all = getOperations();
+
+        out.write("# HELP tater_call_duration_seconds Latency of calls to facial recognition services.\n");
+        out.write("# TYPE tater_call_duration_seconds histogram\n");
+        for (OperationMetrics m : all) {
+            String labels = labels(m);
+            LatencyHistogram h = m.getLatency();
+            for (double le : BUCKET_SECONDS) {
+                out.write("tater_call_duration_seconds_bucket{" + labels + ",le=\"" + le + "\"} "
+                        + h.getCountAtOrBelow((long) (le * 1e6)) + "\n");
+            }
+            out.write("tater_call_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} " + h.getCount() + "\n");
+            out.write("tater_call_duration_seconds_sum{" + labels + "} " + h.getSum() / 1e6 + "\n");
+            out.write("tater_call_duration_seconds_count{" + labels + "} " + h.getCount() + "\n");
+        }
+
+        out.write("# HELP tater_call_duration_quantile_seconds Latency quantiles of calls since startup.\n");
+        out.write("# TYPE tater_call_duration_quantile_seconds gauge\n");
+        for (OperationMetrics m : all) {
+            String labels = labels(m);
+            for (double q : QUANTILES) {
+                out.write("tater_call_duration_quantile_seconds{" + labels + ",quantile=\"" + q + "\"} "
+                        + m.getLatency().getValueAtQuantile(q) / 1e6 + "\n");
+            }
+            out.write("tater_call_duration_quantile_seconds{" + labels + ",quantile=\"1.0\"} "
+                    + m.getLatency().getMax() / 1e6 + "\n");
+        }
+
+        writeSeries(out, all, "tater_call_errors_total", "counter", "Calls that failed.", ERRORS);
+        writeSeries(out, all, "tater_call_timeouts_total", "counter", "Calls that timed out.", TIMEOUTS);
+        // only verifies can be answered from a cache, and only if the near-duplicate cache remembers rejections, so
+        // the series is left out for operations that have never had a hit rather than published as a constant 0
+        List<OperationMetrics> cached = new ArrayList<OperationMetrics>();
+        for (OperationMetrics m : all) {
+            if (m.getCacheHits() > 0) cached.add(m);
+        }
+        if (!cached.isEmpty()) {
+            writeSeries(out, cached, "tater_cache_hits_total", "counter",
+                    "Calls answered without reaching the service.", CACHE_HITS);
+        }
+        writeSeries(out, all, "tater_hedges_total", "counter", "Hedged second attempts sent for slow calls.", HEDGES);
+        writeSeries(out, all, "tater_calls_in_flight", "gauge", "Calls currently in progress.", IN_FLIGHT);
+    }
+
+    private static final int ERRORS = 0, TIMEOUTS = 1, CACHE_HITS = 2, HEDGES = 3, IN_FLIGHT = 4;
+
+    private static void writeSeries(Writer out, List<OperationMetrics> all, String name, String type, String help,
+                                     int which) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+        for (OperationMetrics m : all) {
+            long value;
+            switch (which) {
+                case ERRORS: value = m.getErrors(); break;
+                case TIMEOUTS: value = m.getTimeouts(); break;
+                case CACHE_HITS: value = m.getCacheHits(); break;
+                case HEDGES: value = m.getHedges(); break;
+                default: value = m.getInFlight();
+            }
+            out.write(name + "{" + labels(m) + "} " + value + "\n");
+        }
+    }
+
+    private static String labels(OperationMetrics m) {
+        return "service=\"" + escape(m.getService()) + "\",operation=\"" + escape(m.getOperation())
+                + "\",kind=\"" + m.getKind() + "\"";
+    }
+
+    /**
+     * Escapes a label value for the Prometheus text format.
+     */
+    public static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,95 @@
+package dsd.cherry.tater.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latency histogram and counters for one operation of one service. Callers time a call by taking the value
+ * returned by start() and handing it back to exactly one of success(), error() or timeout() once the call is over:
+ *
+ * <pre>
+ *     long start = metrics.start();
+ *     try {
+ *         ...
+ *         metrics.success(start);
+ *     } catch (...) {
+ *         metrics.error(start);
+ *     }
+ * </pre>
+ *
+ * None of these methods allocate, so they can be left in place on every request.
+ */
+public class OperationMetrics {
+    private final String service;
+    private final String operation;
+    private final String kind;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+
+    OperationMetrics(String service, String operation, String kind) {
+        this.service = service;
+        this.operation = operation;
+        this.kind = kind;
+    }
+
+    /**
+     * Marks a call as started.
+     * @return The start time to pass to success(), error() or timeout().
+     */
+    public long start() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public void success(long start) {
+        finish(start);
+    }
+
+    public void error(long start) {
+        errors.incrementAndGet();
+        finish(start);
+    }
+
+    public void timeout(long start) {
+        timeouts.incrementAndGet();
+        finish(start);
+    }
+
+    /**
+     * Counts a call that was answered without reaching the service. Cache hits are not timed.
+     */
+    public void cacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Counts a second, hedged attempt sent because the first was slow to answer.
+     */
+    public void hedged() {
+        hedges.incrementAndGet();
+    }
+
+    private void finish(long start) {
+        latency.recordNanos(System.nanoTime() - start);
+        inFlight.decrementAndGet();
+    }
+
+    public String getService() { return service; }
+    public String getOperation() { return operation; }
+
+    /**
+     * @return "handler" for calls into an FRServiceHandler, or "remote" for calls made by a service SDK.
+     */
+    public String getKind() { return kind; }
+
+    public LatencyHistogram getLatency() { return latency; }
+    public long getErrors() { return errors.get(); }
+    public long getTimeouts() { return timeouts.get(); }
+    public long getCacheHits() { return cacheHits.get(); }
+    public long getHedges() { return hedges.get(); }
+    public long getInFlight() { return inFlight.get(); }
+}
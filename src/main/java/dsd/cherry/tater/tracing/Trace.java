@@ -0,0 +1,108 @@
+package dsd.cherry.tater.tracing;
+
+import dsd.cherry.tater.util.KeyedHash;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timing breakdown of one sampled request: the request as a whole and the spans opened while it ran, such as
+ * parsing, each handler call and each remote call. Spans may be opened by the thread serving the request and by the
+ * fan-out threads working on its behalf (see Tracer.propagate()), so a trace is synchronized. Once it is finished and
+ * published to the TraceBuffer it no longer changes; spans still open on other threads are left unfinished.
+ *
+ * Spans are kept in preallocated arrays; a request opening more than MAX_SPANS spans just counts the extra ones.
+ *
+ * Traces are served without authentication, so describe() identifies the user by a keyed hash of their ID. The key
+ * lasts as long as the process, so one user's traces can still be picked out from each other.
+ */
+public class Trace {
+    static final int MAX_SPANS = 64;
+    static final int DROPPED = -2;
+    private static final KeyedHash userHash = KeyedHash.withRandomKey();
+
+    private final String request;
+    private final long startedAt;
+    private final long startNanos;
+    private long durationNanos = -1;
+    private String userID;
+
+    private final String[] services = new String[MAX_SPANS];
+    private final String[] operations = new String[MAX_SPANS];
+    private final long[] spanStarts = new long[MAX_SPANS];
+    private final long[] spanDurations = new long[MAX_SPANS];
+    private final int[] spanDepths = new int[MAX_SPANS];
+    private int spanCount;
+    private int dropped;
+
+    Trace(String request) {
+        this.request = request;
+        this.startedAt = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @param depth How many spans enclose this one.
+     */
+    synchronized int startSpan(String service, String operation, int depth) {
+        if (durationNanos >= 0) return DROPPED;
+        if (spanCount == MAX_SPANS) {
+            ++dropped;
+            return DROPPED;
+        }
+        int span = spanCount++;
+        services[span] = service;
+        operations[span] = operation;
+        spanStarts[span] = System.nanoTime() - startNanos;
+        spanDurations[span] = -1;
+        spanDepths[span] = depth;
+        return span;
+    }
+
+    synchronized void endSpan(int span) {
+        if (span >= 0 && durationNanos < 0) spanDurations[span] = System.nanoTime() - startNanos - spanStarts[span];
+    }
+
+    synchronized void finish() {
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    public String getRequest() { return request; }
+
+    public String getUserID() { return userID; }
+    public void setUserID(String userID) { this.userID = userID; }
+
+    /**
+     * @return When the request started, in milliseconds since the epoch.
+     */
+    public long getStartedAt() { return startedAt; }
+
+    /**
+     * @return How long the request took, in nanoseconds, or -1 if it has not finished.
+     */
+    public synchronized long getDurationNanos() { return durationNanos; }
+
+    /**
+     * Renders the trace as an indented breakdown of its spans, one per line, with durations in milliseconds.
+     * @param out Where to write the breakdown.
+     */
+    public synchronized void describe(StringBuilder out) {
+        String user = userID != null ? String.format(" user=%016x", userHash.hash(userID)) : "";
+        out.append(String.format("%-40s %10.1f ms", request + user, durationNanos / 1e6));
+        out.append(String.format("  (started %tFT%<tT.%<tL)%n", startedAt));
+        for (int i = 0; i < spanCount; ++i) {
+            StringBuilder name = new StringBuilder();
+            for (int d = 0; d <= spanDepths[i]; ++d) name.append("  ");
+            if (services[i] != null) name.append(services[i]).append(' ');
+            name.append(operations[i]);
+            out.append(String.format("%-40s %10s  at +%.1f ms%n", name,
+                    spanDurations[i] < 0 ? "unfinished" : String.format("%.1f ms", spanDurations[i] / 1e6),
+                    spanStarts[i] / 1e6));
+        }
+        if (dropped > 0) out.append("  ... ").append(dropped).append(" more spans not recorded\n");
+    }
+
+    @Override
+    public synchronized String toString() {
+        return request + " " + TimeUnit.NANOSECONDS.toMillis(durationNanos) + "ms";
+    }
+}
@@ -0,0 +1,57 @@
+package dsd.cherry.tater.tracing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring of the most recently finished traces. Once the ring is full each new trace overwrites the
+ * oldest one, so it always holds the last <i>capacity</i> sampled requests.
+ */
+public class TraceBuffer {
+    private final AtomicReferenceArray<Trace> traces;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity The number of traces kept, rounded up to a power of two.
+     */
+    public TraceBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        traces = new AtomicReferenceArray<Trace>(size);
+        mask = size - 1;
+    }
+
+    void add(Trace trace) {
+        traces.set((int) (next.getAndIncrement() & mask), trace);
+    }
+
+    /**
+     * @param limit The maximum number of traces to return.
+     * @return The slowest traces currently in the ring, slowest first.
+     */
+    public List<Trace> getSlowest(int limit) {
+        List<Trace> all = new ArrayList<Trace>();
+        for (int i = 0; i < traces.length(); ++i) {
+            Trace t = traces.get(i);
+            if (t != null) all.add(t);
+        }
+        Collections.sort(all, new Comparator<Trace>() {
+            @Override
+            public int compare(Trace a, Trace b) {
+                return Long.compare(b.getDurationNanos(), a.getDurationNanos());
+            }
+        });
+        return all.subList(0, Math.min(limit, all.size()));
+    }
+
+    /**
+     * @return The number of traces recorded since startup, including those since overwritten.
+     */
+    public long getRecorded() { return next.get(); }
+
+    public int getCapacity() { return traces.length(); }
+}
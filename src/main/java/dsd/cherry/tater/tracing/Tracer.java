@@ -0,0 +1,156 @@
+package dsd.cherry.tater.tracing;
+
+import dsd.cherry.tater.metrics.OperationMetrics;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples requests for tracing and records spans against the trace of the request the current thread is serving.
+ * Only a sampled fraction of requests get a trace; for the rest, opening and closing a span is a thread-local lookup
+ * and nothing more. Spans must be closed in the reverse order they were opened, so always close them in a finally:
+ *
+ * <pre>
+ *     int span = Tracer.start("parse");
+ *     try {
+ *         ...
+ *     } finally {
+ *         Tracer.end(span);
+ *     }
+ * </pre>
+ *
+ * Work handed to another thread, such as a service call on the fan-out pool, is recorded in the same trace if the
+ * task is wrapped with propagate() before it is submitted.
+ *
+ * Configured with system properties:
+ * <ul>
+ *     <li><code>tater.trace.sampleRate</code>: fraction of requests traced, from 0 to 1 (default 0.01).</li>
+ *     <li><code>tater.trace.buffer</code>: number of recent traces kept for /debug/traces (default 1024).</li>
+ * </ul>
+ */
+public class Tracer {
+    public static final int NO_SPAN = -1;
+
+    private static final ThreadLocal<Scope> current = new ThreadLocal<Scope>();
+    private static volatile double sampleRate =
+            Double.parseDouble(System.getProperty("tater.trace.sampleRate", "0.01"));
+    private static final TraceBuffer buffer = new TraceBuffer(Integer.getInteger("tater.trace.buffer", 1024));
+
+    private Tracer() {}
+
+    /**
+     * The trace a thread is recording into, and how many of its spans that thread has open.
+     */
+    private static class Scope {
+        final Trace trace;
+        int depth;
+
+        Scope(Trace trace, int depth) {
+            this.trace = trace;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Decides whether to trace a request and, if so, starts its trace on the current thread.
+     * @param request The name of the request, e.g. "/verify".
+     * @return The trace, or null if the request was not sampled.
+     */
+    public static Trace begin(String request) {
+        double rate = sampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) return null;
+        Trace trace = new Trace(request);
+        current.set(new Scope(trace, 0));
+        return trace;
+    }
+
+    /**
+     * Finishes a trace started by begin() and publishes it to the trace buffer.
+     * @param trace The trace returned by begin(); may be null.
+     */
+    public static void finish(Trace trace) {
+        if (trace == null) return;
+        trace.finish();
+        Scope scope = current.get();
+        if (scope != null && scope.trace == trace) current.remove();
+        buffer.add(trace);
+    }
+
+    /**
+     * Stops the current thread recording into a trace that is to be finished elsewhere, e.g. by a streamed reply
+     * written after the request's thread has moved on, so that the thread's next request does not record into it.
+     * @param trace The trace returned by begin(); may be null.
+     */
+    public static void detach(Trace trace) {
+        Scope scope = current.get();
+        if (trace != null && scope != null && scope.trace == trace) current.remove();
+    }
+
+    /**
+     * @return The trace of the request the current thread is serving, or null if it is not being traced.
+     */
+    public static Trace current() {
+        Scope scope = current.get();
+        return scope == null ? null : scope.trace;
+    }
+
+    /**
+     * Wraps a task that is about to be handed to another thread so that the spans it opens are recorded in the
+     * current thread's trace, nested under the span open now.
+     * @param task The task.
+     * @return The wrapped task, or the task itself if the current request is not being traced.
+     */
+    public static <T> Callable<T> propagate(final Callable<T> task) {
+        Scope parent = current.get();
+        if (parent == null) return task;
+        final Trace trace = parent.trace;
+        final int depth = parent.depth;
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                Scope previous = current.get();
+                current.set(new Scope(trace, depth));
+                try {
+                    return task.call();
+                } finally {
+                    if (previous == null) current.remove();
+                    else current.set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens a span for a step of the current request.
+     * @param name The step, e.g. "parse".
+     * @return The span to pass to end().
+     */
+    public static int start(String name) {
+        Scope scope = current.get();
+        return scope == null ? NO_SPAN : scope.trace.startSpan(null, name, scope.depth++);
+    }
+
+    /**
+     * Opens a span for a call to a service, named after the operation the call is recorded against.
+     * @param operation The metrics of the operation being called.
+     * @return The span to pass to end().
+     */
+    public static int start(OperationMetrics operation) {
+        Scope scope = current.get();
+        return scope == null ? NO_SPAN
+                             : scope.trace.startSpan(operation.getService(), operation.getOperation(), scope.depth++);
+    }
+
+    public static void end(int span) {
+        if (span == NO_SPAN) return;
+        Scope scope = current.get();
+        if (scope == null) return;
+        --scope.depth;
+        scope.trace.endSpan(span);
+    }
+
+    public static TraceBuffer getBuffer() { return buffer; }
+
+    public static double getSampleRate() { return sampleRate; }
+    public static void setSampleRate(double rate) { sampleRate = rate; }
+}
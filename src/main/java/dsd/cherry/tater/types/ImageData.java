@@ -19,6 +19,18 @@ public class ImageData {
         accepted = false;
     }
 
+    /**
+     * <b>Constructor.</b> Builds an image that did not arrive in an Authentication Server request, such as one read
+     * from disk.
+     * @param imageID The ID the image is reported under.
+     * @param image The raw image bytes.
+     */
+    public ImageData(String imageID, byte[] image) {
+        this();
+        this.imageID = imageID;
+        this.image = image;
+    }
+
     public void setImageBinary(byte[] image) {
         this.image = image;
     }
@@ -26,6 +38,11 @@ public class ImageData {
         return this.image;
     }
 
+    /**
+     * @return The number of decoded image bytes held by this object.
+     */
+    public int getImageSize() { return image == null ? 0 : image.length; }
+
     public void setImageID(String imageID) { this.imageID = imageID; }
     public String getImageID() { return imageID; }
 
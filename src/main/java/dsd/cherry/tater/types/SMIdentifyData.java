@@ -0,0 +1,67 @@
+package dsd.cherry.tater.types;
+
+import dsd.cherry.tater.frservices.FRServiceHandlerIdentifyResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The persons the services found resembling a face, merged across services.
+ */
+public class SMIdentifyData {
+    private List<Match> matches;
+    private List<FRServiceHandlerIdentifyResponse> responses;
+    private int totalServices, totalResponded;
+
+    /**
+     * A person found by one or more services.
+     */
+    public static class Match {
+        private String internalID;
+        private float confidence;
+        private List<FacilitatorID> FACIDs = new ArrayList<FacilitatorID>();
+
+        public Match(String internalID) {
+            this.internalID = internalID;
+        }
+
+        /**
+         * Records a service that found the person, keeping the highest confidence of any of them.
+         */
+        public void add(String serviceName, FRServiceHandlerIdentifyResponse.Candidate candidate) {
+            FacilitatorID FACID = new FacilitatorID();
+            FACID.setFRService(serviceName);
+            FACID.setFRPersonID(candidate.getFRPersonID());
+            if (FACIDs.isEmpty() || candidate.getConfidence() > confidence) confidence = candidate.getConfidence();
+            FACIDs.add(FACID);
+        }
+
+        public String getInternalID() { return internalID; }
+        public float getConfidence() { return confidence; }
+        public List<FacilitatorID> getFACIDs() { return FACIDs; }
+    }
+
+    /**
+     * @param matches The persons found, best first.
+     * @param responses The answers of the services that responded.
+     * @param totalServices The number of services asked.
+     */
+    public SMIdentifyData(List<Match> matches, List<FRServiceHandlerIdentifyResponse> responses, int totalServices) {
+        this.matches = matches;
+        this.responses = responses;
+        this.totalServices = totalServices;
+        for (FRServiceHandlerIdentifyResponse response : responses) {
+            if (response.getServiceResponded()) ++totalResponded;
+        }
+    }
+
+    public List<Match> getMatches() { return matches; }
+    public List<FRServiceHandlerIdentifyResponse> getResponses() { return responses; }
+    public int getTotalServices() { return totalServices; }
+    public int getTotalResponded() { return totalResponded; }
+
+    /**
+     * @return True if some services did not answer in time, so the matches may be missing persons only they know.
+     */
+    public boolean isPartial() { return totalResponded < totalServices; }
+}
@@ -1,5 +1,7 @@
 package dsd.cherry.tater.types;
 
+import dsd.cherry.tater.frservices.FRServiceHandlerTrainResponse;
+
 import java.util.List;
 
 /**
@@ -1,5 +1,8 @@
 package dsd.cherry.tater.types;
 
+import dsd.cherry.tater.frservices.FRServiceHandlerVerifyResponse;
+
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -12,6 +15,7 @@ public class SMVerifyData {
     private int     totalServices,  totalResponded;
     private float   confidence,     cutoff;
     private boolean match,          consensus;
+    private List<String> contributors;
 
     public SMVerifyData(String                                  internalID,
                         boolean                                 match,
@@ -22,14 +26,37 @@ public class SMVerifyData {
                         float                                   confidence,
                         float                                   cutoff,
                         boolean                                 consensus) {
+        this(internalID, match, inConsensus, notInConsensus, totalServices, totalResponded, confidence, cutoff,
+             consensus, null);
+        List<String> contributors = new ArrayList<String>();
+        for (FRServiceHandlerVerifyResponse r : inConsensus) contributors.add(r.getServiceName());
+        for (FRServiceHandlerVerifyResponse r : notInConsensus) contributors.add(r.getServiceName());
+        this.contributors = contributors;
+    }
+
+    /**
+     * @param contributors The names of the services whose answers the result was decided on.
+     */
+    public SMVerifyData(String                                  internalID,
+                        boolean                                 match,
+                        List<FRServiceHandlerVerifyResponse>    inConsensus,
+                        List<FRServiceHandlerVerifyResponse>    notInConsensus,
+                        int                                     totalServices,
+                        int                                     totalResponded,
+                        float                                   confidence,
+                        float                                   cutoff,
+                        boolean                                 consensus,
+                        List<String>                            contributors) {
         this.internalID = internalID;
         this.inConsensus = inConsensus;
+        this.notInConsensus = notInConsensus;
         this.totalServices = totalServices;
         this.totalResponded = totalResponded;
         this.confidence = confidence;
         this.cutoff = cutoff;
         this.match = match;
         this.consensus = consensus;
+        this.contributors = contributors;
     }
 
     public String getInternalID() { return internalID; }
@@ -49,4 +76,10 @@ public class SMVerifyData {
     public float getCutoff() { return cutoff; }
 
     public boolean isConsensus() { return consensus; }
+
+    /**
+     * @return The names of the services whose answers the result was decided on. Services that were not asked, did
+     *         not respond, or were cancelled once the result was known are not among them.
+     */
+    public List<String> getContributors() { return contributors; }
 }
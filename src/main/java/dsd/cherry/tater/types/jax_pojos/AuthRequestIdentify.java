@@ -0,0 +1,18 @@
+package dsd.cherry.tater.types.jax_pojos;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import dsd.cherry.tater.types.ImageData;
+
+/**
+ * A request to find the persons who most resemble a face.
+ */
+public class AuthRequestIdentify {
+    private ImageData image;
+
+    public AuthRequestIdentify() {}
+
+    @JsonProperty("Image")
+    public void setImage(ImageData image) { this.image = image; }
+    @JsonProperty("Image")
+    public ImageData getImage() { return image; }
+}
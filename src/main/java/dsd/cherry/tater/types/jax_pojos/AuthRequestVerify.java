@@ -1,13 +1,17 @@
 package dsd.cherry.tater.types.jax_pojos;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import dsd.cherry.tater.types.FacilitatorID;
 import dsd.cherry.tater.types.ImageData;
 
+import java.util.List;
+
 /**
  * Created by James Beach on 4/29/2016.
  */
 public class AuthRequestVerify {
     private String internalID;
+    private List<FacilitatorID> FACIDs;
     private ImageData image;
 
     public AuthRequestVerify() {};
@@ -19,6 +23,15 @@ public class AuthRequestVerify {
     @JsonProperty("UserId")
     public String getInternalID() { return internalID; }
 
+    /**
+     * The person's IDs at each service, as returned by /train. Not part of the Facilitator Interface Specification;
+     * requests that leave it out get null.
+     */
+    @JsonProperty("FacilitatorIds")
+    public void setFACIDs(List<FacilitatorID> FACIDs) { this.FACIDs = FACIDs; }
+    @JsonProperty("FacilitatorIds")
+    public List<FacilitatorID> getFACIDs() { return FACIDs; }
+
     @JsonProperty("Image")
     public void setImage(ImageData image) { this.image = image; }
     @JsonProperty("Image")
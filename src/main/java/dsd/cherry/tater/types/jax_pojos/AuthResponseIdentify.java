@@ -0,0 +1,63 @@
+package dsd.cherry.tater.types.jax_pojos;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import dsd.cherry.tater.types.FacilitatorID;
+import dsd.cherry.tater.types.StatusCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The persons who most resemble a face, best first.
+ */
+@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE, isGetterVisibility = JsonAutoDetect.Visibility.NONE)
+public class AuthResponseIdentify {
+    private List<Candidate> candidates;
+    private boolean partial;
+    private List<StatusCode> codes;
+    private int HTTPStatusCode;
+
+    @JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE,
+                    isGetterVisibility = JsonAutoDetect.Visibility.NONE)
+    public static class Candidate {
+        private String internalID;
+        private float confidence;
+        private List<FacilitatorID> FACIDs;
+
+        public Candidate(String internalID, float confidence, List<FacilitatorID> FACIDs) {
+            this.internalID = internalID;
+            this.confidence = confidence;
+            this.FACIDs = FACIDs;
+        }
+
+        @JsonProperty("UserId")
+        public String getInternalID() { return internalID; }
+
+        @JsonProperty("Confidence")
+        public float getConfidence() { return confidence; }
+
+        @JsonProperty("FacilitatorIds")
+        public List<FacilitatorID> getFACIDs() { return FACIDs; }
+    }
+
+    public AuthResponseIdentify() {
+        candidates = new ArrayList<Candidate>();
+        codes = new ArrayList<StatusCode>();
+    }
+
+    public void addCandidate(Candidate candidate) { candidates.add(candidate); }
+    @JsonProperty("Candidates")
+    public List<Candidate> getCandidates() { return candidates; }
+
+    public void setPartial(boolean partial) { this.partial = partial; }
+    @JsonProperty("IsPartial")
+    public boolean getPartial() { return partial; }
+
+    public void addStatusCode(StatusCode code) { codes.add(code); }
+    @JsonProperty("CodeError")
+    public List<StatusCode> getStatusCodes() { return codes; }
+
+    public void setHTTPStatusCode(int code) { this.HTTPStatusCode = code; }
+    public int getHTTPStatusCode() { return HTTPStatusCode; }
+}
@@ -0,0 +1,56 @@
+package dsd.cherry.tater.util;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring. Each node is placed at many points on the ring and a key belongs to the node at the first
+ * point after the key's hash. Adding a node therefore only moves the keys that land on the new node's points, about
+ * one in every (nodes + 1), and leaves the rest where they were.
+ * @param <T> The type of the nodes.
+ */
+public class ConsistentHash<T> {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final TreeMap<Long,T> ring = new TreeMap<Long, T>();
+
+    /**
+     * @param nodes The nodes, keyed by a name that must stay the same for as long as the node does.
+     * @param pointsPerNode How many points each node gets; more spread the keys more evenly.
+     */
+    public ConsistentHash(Map<String,T> nodes, int pointsPerNode) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("A hash ring needs at least one node.");
+        for (Map.Entry<String,T> node : nodes.entrySet()) {
+            for (int point = 0; point < pointsPerNode; ++point) {
+                ring.put(hash(node.getKey() + "#" + point), node.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return The node the key belongs to.
+     */
+    public T get(String key) {
+        Map.Entry<Long,T> point = ring.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer, which spreads near-identical keys, such as the names of a
+     * node's points, evenly around the ring.
+     */
+    public static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(UTF8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
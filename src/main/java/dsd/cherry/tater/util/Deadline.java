@@ -0,0 +1,85 @@
+package dsd.cherry.tater.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time by which a request must be answered. A deadline is fixed once when a request arrives and then
+ * handed down to everything working on the request, so that each step only spends what is left of the request's
+ * budget instead of starting its own timeout afresh.
+ *
+ * Code that cannot take the deadline as a parameter, such as FR service handlers and the SDKs beneath them, finds it
+ * attached to the thread doing the work:
+ *
+ * <pre>
+ *     Deadline previous = Deadline.attach(deadline);
+ *     try {
+ *         ...
+ *     } finally {
+ *         Deadline.attach(previous);
+ *     }
+ * </pre>
+ */
+public final class Deadline {
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+    // in System.nanoTime(), so that clock changes do not move it
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param millis How long from now the deadline falls.
+     * @return A deadline that many milliseconds from now.
+     */
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis)));
+    }
+
+    public boolean isExpired() {
+        return expiresAt - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return The time left before the deadline, or 0 once it has passed.
+     */
+    public long remainingNanos() {
+        return Math.max(0, expiresAt - System.nanoTime());
+    }
+
+    public long remainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(remainingNanos());
+    }
+
+    /**
+     * @return Whichever of this deadline and the other falls first.
+     */
+    public Deadline min(Deadline other) {
+        return other == null || expiresAt - other.expiresAt <= 0 ? this : other;
+    }
+
+    /**
+     * @return The deadline attached to the current thread, or null if there is none.
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * Attaches a deadline to the current thread.
+     * @param deadline The deadline to attach; null detaches the current one.
+     * @return The deadline it replaced, to be attached again once the work is done.
+     */
+    public static Deadline attach(Deadline deadline) {
+        Deadline previous = current.get();
+        if (deadline == null) current.remove();
+        else current.set(deadline);
+        return previous;
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline in " + remainingMillis() + " ms";
+    }
+}
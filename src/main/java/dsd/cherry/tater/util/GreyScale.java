@@ -0,0 +1,116 @@
+package dsd.cherry.tater.util;
+
+import javax.imageio.ImageIO;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Decodes images and scales them down to small grids of grey levels, the input of the image descriptors and hashes
+ * computed on the facilitator itself.
+ */
+public final class GreyScale {
+    private GreyScale() {}
+
+    /**
+     * @param image An encoded image, e.g. a JPEG or PNG.
+     * @return The decoded image, or null if it could not be read.
+     */
+    public static BufferedImage decode(byte[] image) {
+        try {
+            return ImageIO.read(new ByteArrayInputStream(image));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Scales the image to width x height grey levels, row by row, averaging the source pixels that fall in each target
+     * pixel.
+     */
+    public static float[] scale(BufferedImage image, int width, int height) {
+        int sourceWidth = image.getWidth(), sourceHeight = image.getHeight();
+        float[] sums = new float[width * height];
+        int[] counts = new int[width * height];
+        float[] row = new float[sourceWidth];
+        int[] column = new int[sourceWidth];
+        for (int x = 0; x < sourceWidth; ++x) {
+            column[x] = x * width / sourceWidth;
+        }
+        for (int y = 0; y < sourceHeight; ++y) {
+            lumaRow(image, y, row);
+            int target = (y * height / sourceHeight) * width;
+            for (int x = 0; x < sourceWidth; ++x) {
+                sums[target + column[x]] += row[x];
+                ++counts[target + column[x]];
+            }
+        }
+        // images smaller than the target leave gaps, filled from the nearest source pixel
+        for (int y = 0; y < height; ++y) {
+            int sourceY = y * sourceHeight / height;
+            boolean rowRead = false;
+            for (int x = 0; x < width; ++x) {
+                int target = y * width + x;
+                if (counts[target] > 0) {
+                    sums[target] /= counts[target];
+                    continue;
+                }
+                if (!rowRead) {
+                    lumaRow(image, sourceY, row);
+                    rowRead = true;
+                }
+                sums[target] = row[x * sourceWidth / width];
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Reads one row of the image as grey levels. The image types ImageIO decodes JPEGs and PNGs to are read straight
+     * from their pixel arrays, which is many times faster than converting each pixel through getRGB().
+     */
+    private static void lumaRow(BufferedImage image, int y, float[] row) {
+        int width = image.getWidth();
+        WritableRaster raster = image.getRaster();
+        boolean whole = raster.getParent() == null && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0;
+        switch (whole ? image.getType() : BufferedImage.TYPE_CUSTOM) {
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                for (int x = 0, i = y * width * 3; x < width; ++x, i += 3) {
+                    row[x] = 0.114f * (data[i] & 0xff) + 0.587f * (data[i + 1] & 0xff) + 0.299f * (data[i + 2] & 0xff);
+                }
+                return;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                for (int x = 0, i = y * width; x < width; ++x, ++i) {
+                    row[x] = data[i] & 0xff;
+                }
+                return;
+            }
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                for (int x = 0, i = y * width; x < width; ++x, ++i) {
+                    row[x] = luma(data[i]);
+                }
+                return;
+            }
+            default: {
+                int[] rgb = image.getRGB(0, y, width, 1, null, 0, width);
+                for (int x = 0; x < width; ++x) {
+                    row[x] = luma(rgb[x]);
+                }
+            }
+        }
+    }
+
+    private static float luma(int rgb) {
+        return 0.299f * ((rgb >> 16) & 0xff) + 0.587f * ((rgb >> 8) & 0xff) + 0.114f * (rgb & 0xff);
+    }
+}
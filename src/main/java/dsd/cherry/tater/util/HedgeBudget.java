@@ -0,0 +1,50 @@
+package dsd.cherry.tater.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps hedged requests at a fixed share of all requests. Every request earns the budget a fraction of a token and
+ * every hedge spends a whole one, so hedges can never exceed that share over time however slow the service gets. A
+ * service in trouble therefore sees at most that much extra load from hedging rather than double.
+ */
+public class HedgeBudget {
+    private static final long SCALE = 1000;
+
+    private final long earnedPerRequest;
+    private final long maxTokens;
+    private final AtomicLong tokens = new AtomicLong();
+
+    /**
+     * <b>Constructor.</b>
+     * @param ratio The largest share of requests that may be hedged, e.g. 0.05 for one in twenty.
+     * @param burst The number of hedges that may be saved up while the service is healthy.
+     */
+    public HedgeBudget(double ratio, double burst) {
+        this.earnedPerRequest = Math.round(ratio * SCALE);
+        this.maxTokens = Math.round(Math.max(1, burst) * SCALE);
+    }
+
+    /**
+     * Credits the budget for a request sent.
+     */
+    public void onRequest() {
+        long seen;
+        do {
+            seen = tokens.get();
+            if (seen >= maxTokens) return;
+        } while (!tokens.compareAndSet(seen, Math.min(maxTokens, seen + earnedPerRequest)));
+    }
+
+    /**
+     * Spends a hedge if the budget allows one.
+     * @return True if the caller may hedge; false otherwise.
+     */
+    public boolean tryHedge() {
+        long seen;
+        do {
+            seen = tokens.get();
+            if (seen < SCALE) return false;
+        } while (!tokens.compareAndSet(seen, seen - SCALE));
+        return true;
+    }
+}
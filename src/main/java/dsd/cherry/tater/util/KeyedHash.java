@@ -0,0 +1,65 @@
+package dsd.cherry.tater.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * A 64-bit HMAC-SHA256 of identifiers such as UserIds, for diagnostics that need to tell users apart without naming
+ * them. Unlike a plain checksum it cannot be reversed by hashing every plausible ID, as long as the key stays secret;
+ * the key is random and is never written anywhere, so the same ID hashes the same way only under one KeyedHash.
+ */
+public final class KeyedHash {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecureRandom random = new SecureRandom();
+
+    private final SecretKeySpec key;
+    // Mac instances are not thread-safe, and getting one per call means a provider lookup
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                // every Java platform is required to provide HmacSHA256
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private KeyedHash(byte[] key) {
+        this.key = new SecretKeySpec(key, ALGORITHM);
+    }
+
+    /**
+     * @return A hash under a fresh random 256-bit key.
+     */
+    public static KeyedHash withRandomKey() {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        return new KeyedHash(key);
+    }
+
+    /**
+     * @return The first 64 bits of the HMAC of the data.
+     */
+    public long hash(byte[] data) {
+        byte[] mac = macs.get().doFinal(data);
+        long hash = 0;
+        for (int i = 0; i < 8; ++i) {
+            hash = (hash << 8) | (mac[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * @return The hash of the string's UTF-8 bytes.
+     */
+    public long hash(String s) {
+        return hash(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
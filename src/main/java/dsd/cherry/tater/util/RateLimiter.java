@@ -0,0 +1,61 @@
+package dsd.cherry.tater.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that hands out permits at a steady rate while allowing short bursts. Callers that cannot be served
+ * right away either reserve the next free slot and sleep until it arrives ({@link #acquire()}) or are turned away
+ * ({@link #tryAcquire()}).
+ */
+public class RateLimiter {
+    private final double permitsPerSecond;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * <b>Constructor.</b>
+     * @param permitsPerSecond The sustained rate at which permits become available.
+     * @param burst The number of permits that may accumulate while the limiter is idle. At least one.
+     */
+    public RateLimiter(double permitsPerSecond, double burst) {
+        if (permitsPerSecond <= 0) throw new IllegalArgumentException("permitsPerSecond must be positive");
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public double getRate() { return permitsPerSecond; }
+
+    /**
+     * Takes a permit, sleeping until one is available.
+     * @throws InterruptedException If the thread is interrupted while waiting. The reserved permit is not returned.
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / permitsPerSecond * 1e9);
+        }
+        if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    /**
+     * Takes a permit only if one is available right now.
+     * @return True if a permit was taken; false otherwise.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) return false;
+        tokens -= 1;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * permitsPerSecond);
+        lastRefill = now;
+    }
+}
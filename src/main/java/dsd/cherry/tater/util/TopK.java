@@ -0,0 +1,66 @@
+package dsd.cherry.tater.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the k highest-scoring of the items offered to it, in a heap of at most k items, so that picking the best few
+ * of many candidates takes O(n log k) time and O(k) space rather than sorting them all.
+ * @param <T> The type of the items.
+ */
+public class TopK<T> {
+    private static class Scored<T> {
+        final T item;
+        final double score;
+
+        Scored(T item, double score) {
+            this.item = item;
+            this.score = score;
+        }
+    }
+
+    private static final Comparator<Scored<?>> LOWEST_FIRST = new Comparator<Scored<?>>() {
+        @Override
+        public int compare(Scored<?> a, Scored<?> b) {
+            return Double.compare(a.score, b.score);
+        }
+    };
+
+    private final int k;
+    // the lowest-scoring item kept is at the head, ready to be pushed out by a better one
+    private final PriorityQueue<Scored<T>> heap;
+
+    public TopK(int k) {
+        this.k = k;
+        this.heap = new PriorityQueue<Scored<T>>(Math.max(1, k), LOWEST_FIRST);
+    }
+
+    /**
+     * Offers an item, keeping it if it is among the k best so far.
+     */
+    public void add(T item, double score) {
+        if (k <= 0) return;
+        if (heap.size() < k) {
+            heap.add(new Scored<T>(item, score));
+        } else if (score > heap.peek().score) {
+            heap.poll();
+            heap.add(new Scored<T>(item, score));
+        }
+    }
+
+    /**
+     * @return The items kept, best first.
+     */
+    public List<T> toList() {
+        List<Scored<T>> sorted = new ArrayList<Scored<T>>(heap);
+        Collections.sort(sorted, Collections.reverseOrder(LOWEST_FIRST));
+        List<T> items = new ArrayList<T>(sorted.size());
+        for (Scored<T> scored : sorted) {
+            items.add(scored.item);
+        }
+        return items;
+    }
+}
@@ -0,0 +1,76 @@
+package dsd.cherry.tater.util;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Float vector arithmetic for comparing face embeddings. The loops are unrolled eight wide into independent
+ * accumulators: a single running sum makes every addition wait for the one before it, and the JIT will not reorder
+ * float additions by itself, so this is what lets it keep the CPU's SIMD and pipelined floating point units busy.
+ */
+public final class VectorMath {
+    private VectorMath() {}
+
+    /**
+     * @return The dot product of a[aOffset .. aOffset+length) and b[bOffset .. bOffset+length).
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+        int i = 0;
+        for (int end = length - 7; i < end; i += 8) {
+            int x = aOffset + i, y = bOffset + i;
+            s0 += a[x] * b[y];
+            s1 += a[x + 1] * b[y + 1];
+            s2 += a[x + 2] * b[y + 2];
+            s3 += a[x + 3] * b[y + 3];
+            s4 += a[x + 4] * b[y + 4];
+            s5 += a[x + 5] * b[y + 5];
+            s6 += a[x + 6] * b[y + 6];
+            s7 += a[x + 7] * b[y + 7];
+        }
+        for (; i < length; ++i) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+    }
+
+    /**
+     * @return The dot product of a[aOffset .. aOffset+length) and b[bOffset .. bOffset+length), reading a, which may
+     *         be a view of a memory-mapped file, with absolute gets.
+     */
+    public static float dot(FloatBuffer a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+        int i = 0;
+        for (int end = length - 7; i < end; i += 8) {
+            int x = aOffset + i, y = bOffset + i;
+            s0 += a.get(x) * b[y];
+            s1 += a.get(x + 1) * b[y + 1];
+            s2 += a.get(x + 2) * b[y + 2];
+            s3 += a.get(x + 3) * b[y + 3];
+            s4 += a.get(x + 4) * b[y + 4];
+            s5 += a.get(x + 5) * b[y + 5];
+            s6 += a.get(x + 6) * b[y + 6];
+            s7 += a.get(x + 7) * b[y + 7];
+        }
+        for (; i < length; ++i) {
+            s0 += a.get(aOffset + i) * b[bOffset + i];
+        }
+        return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+    }
+
+    public static float dot(float[] a, float[] b) {
+        return dot(a, 0, b, 0, a.length);
+    }
+
+    /**
+     * Scales a vector in place to unit length, so that the dot product of two such vectors is their cosine
+     * similarity. A zero vector is left as it is.
+     */
+    public static void normalize(float[] v) {
+        float norm = (float) Math.sqrt(dot(v, v));
+        if (norm == 0) return;
+        float scale = 1 / norm;
+        for (int i = 0; i < v.length; ++i) {
+            v[i] *= scale;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package dsd.cherry.tater.frservices;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HNSWIndexTest {
+    private static final int DIMENSIONS = 64;
+
+    private File file;
+
+    @After
+    public void deleteFile() {
+        if (file != null) {
+            file.delete();
+            new File(file.getPath() + ".tmp").delete();
+        }
+    }
+
+    @Test
+    public void findsWhatBruteForceFinds() {
+        Random random = new Random(1);
+        HNSWIndex index = new HNSWIndex(DIMENSIONS, 16, 200, 64);
+        List<String> labels = new ArrayList<String>();
+        List<float[]> vectors = new ArrayList<float[]>();
+        for (int person = 0; person < 3000; ++person) {
+            // every third person has two embeddings, so that results have to be told apart by person
+            for (int i = 0; i < (person % 3 == 0 ? 2 : 1); ++i) {
+                float[] vector = randomUnit(random);
+                index.add("p" + person, vector, 0);
+                labels.add("p" + person);
+                vectors.add(vector);
+            }
+        }
+
+        int k = 10, found = 0, queries = 200;
+        for (int q = 0; q < queries; ++q) {
+            float[] query = randomUnit(random);
+            Set<String> expected = new HashSet<String>(bruteForce(labels, vectors, query, k));
+            List<HNSWIndex.Match> matches = index.search(query, k);
+            assertEquals(k, matches.size());
+            for (HNSWIndex.Match match : matches) {
+                if (expected.contains(match.getLabel())) ++found;
+            }
+        }
+        float recall = (float) found / (queries * k);
+        assertTrue("recall " + recall, recall >= 0.95f);
+    }
+
+    @Test
+    public void searchesWhileInserting() throws Exception {
+        final HNSWIndex index = new HNSWIndex(DIMENSIONS, 12, 100, 32);
+        final int writers = 4, perWriter = 1500;
+        final float[][][] added = new float[writers][perWriter][];
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < writers; ++w) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(writer);
+                    try {
+                        start.await();
+                        for (int i = 0; i < perWriter; ++i) {
+                            added[writer][i] = randomUnit(random);
+                            index.add("w" + writer + "-" + i, added[writer][i], 0);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (int r = 0; r < 4; ++r) {
+            final int reader = r;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(100 + reader);
+                    try {
+                        start.await();
+                        while (writing.get()) {
+                            for (HNSWIndex.Match match : index.search(randomUnit(random), 5)) {
+                                if (!match.getLabel().startsWith("w")) throw new AssertionError(match.getLabel());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (int w = 0; w < writers; ++w) {
+            threads.get(w).join();
+        }
+        writing.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+
+        assertEquals(writers * perWriter, index.size());
+        int self = 0;
+        for (int w = 0; w < writers; ++w) {
+            for (int i = 0; i < perWriter; ++i) {
+                List<HNSWIndex.Match> matches = index.search(added[w][i], 1);
+                if (!matches.isEmpty() && matches.get(0).getLabel().equals("w" + w + "-" + i)) ++self;
+            }
+        }
+        assertTrue(self + " of " + writers * perWriter + " found themselves", self >= writers * perWriter * 0.99);
+    }
+
+    @Test
+    public void savesAndLoads() throws IOException {
+        Random random = new Random(2);
+        HNSWIndex index = new HNSWIndex(DIMENSIONS, 8, 64, 40);
+        List<float[]> vectors = new ArrayList<float[]>();
+        for (int person = 0; person < 2500; ++person) {
+            float[] vector = randomUnit(random);
+            index.add("p" + person, vector, 0);
+            vectors.add(vector);
+        }
+        index.remove("p7");
+        file = File.createTempFile("hnsw", ".idx");
+        index.save(file);
+
+        HNSWIndex loaded = HNSWIndex.load(file);
+        assertEquals(index.getDimensions(), loaded.getDimensions());
+        assertEquals(index.getM(), loaded.getM());
+        assertEquals(index.getEfConstruction(), loaded.getEfConstruction());
+        assertEquals(index.getEfSearch(), loaded.getEfSearch());
+        assertEquals(index.size(), loaded.size());
+        assertFalse(loaded.contains("p7"));
+        assertTrue(loaded.isLastAdded("p8", vectors.get(8), 0));
+        assertFalse(loaded.isLastAdded("p8", vectors.get(9), 0));
+        for (int q = 0; q < 50; ++q) {
+            float[] query = randomUnit(random);
+            List<HNSWIndex.Match> before = index.search(query, 10), after = loaded.search(query, 10);
+            assertEquals(before.size(), after.size());
+            for (int i = 0; i < before.size(); ++i) {
+                assertEquals(before.get(i).getLabel(), after.get(i).getLabel());
+                assertEquals(before.get(i).getSimilarity(), after.get(i).getSimilarity(), 0);
+            }
+        }
+
+        // the loaded index goes on growing like the original
+        float[] vector = randomUnit(random);
+        loaded.add("new", vector, 0);
+        assertEquals("new", loaded.search(vector, 1).get(0).getLabel());
+        assertTrue(loaded.isLastAdded("new", vector, 0));
+    }
+
+    @Test
+    public void tellsWhetherItHasTheLatestEmbedding() {
+        Random random = new Random(3);
+        HNSWIndex index = new HNSWIndex(DIMENSIONS, 8, 32, 16);
+        float[] older = randomUnit(random), newer = randomUnit(random);
+        assertFalse(index.isLastAdded("p", older, 0));
+        index.add("p", older, 0);
+        assertTrue(index.isLastAdded("p", older, 0));
+        index.add("p", newer, 0);
+        assertFalse(index.isLastAdded("p", older, 0));
+        assertTrue(index.isLastAdded("p", newer, 0));
+        index.remove("p");
+        assertFalse(index.isLastAdded("p", newer, 0));
+    }
+
+    /**
+     * @return The k labels whose closest vector is most similar to the query, found by comparing against every one.
+     */
+    private static List<String> bruteForce(List<String> labels, List<float[]> vectors, float[] query, int k) {
+        final Map<String,Float> best = new HashMap<String, Float>();
+        for (int i = 0; i < vectors.size(); ++i) {
+            float similarity = dot(vectors.get(i), query);
+            Float previous = best.get(labels.get(i));
+            if (previous == null || similarity > previous) best.put(labels.get(i), similarity);
+        }
+        List<String> sorted = new ArrayList<String>(best.keySet());
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Float.compare(best.get(b), best.get(a));
+            }
+        });
+        return sorted.subList(0, k);
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; ++i) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static float[] randomUnit(Random random) {
+        float[] vector = new float[DIMENSIONS];
+        double norm = 0;
+        for (int i = 0; i < DIMENSIONS; ++i) {
+            vector[i] = (float) random.nextGaussian();
+            norm += vector[i] * vector[i];
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < DIMENSIONS; ++i) {
+            vector[i] *= scale;
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,219 @@
+package dsd.cherry.tater.frservices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedTemplateStoreTest {
+    private static final int DIMENSIONS = 8;
+
+    private File directory;
+    private MappedTemplateStore store;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("templates").toFile();
+        store = MappedTemplateStore.open(directory);
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        store.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void dropsATornLogEntry() throws IOException {
+        store.put("a", template("user-a", 1));
+        store.put("b", template("user-b", 2));
+        store.close();
+
+        // a crash while appending the next entry leaves part of it at the end of the log
+        File log = new File(directory, "templates-0.log");
+        long length = log.length();
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        try {
+            file.seek(length);
+            file.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        } finally {
+            file.close();
+        }
+
+        store = MappedTemplateStore.open(directory);
+        assertEquals(length, log.length());
+        assertEquals(2, store.size());
+        assertTemplate(template("user-a", 1), store.get("a"));
+        assertTemplate(template("user-b", 2), store.get("b"));
+        store.put("c", template("user-c", 3));
+        assertTemplate(template("user-c", 3), store.get("c"));
+    }
+
+    @Test
+    public void dropsAnEntryWithAWrongCheck() throws IOException {
+        store.put("a", template("user-a", 1));
+        store.put("b", template("user-b", 2));
+        store.close();
+
+        // the last entry's check no longer matches it, as if only some of its bytes had reached the disk
+        File log = new File(directory, "templates-0.log");
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        try {
+            file.seek(log.length() - 1);
+            int last = file.read();
+            file.seek(log.length() - 1);
+            file.write(last ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        store = MappedTemplateStore.open(directory);
+        assertEquals(1, store.size());
+        assertTemplate(template("user-a", 1), store.get("a"));
+        assertNull(store.get("b"));
+    }
+
+    @Test
+    public void replacesAndRemoves() throws IOException {
+        store.put("a", template("user-a", 1));
+        store.put("b", template("user-b", 2));
+        store.put("a", template("user-a", 3));
+        store.remove("b");
+        store.remove("nobody");
+        assertEquals(1, store.size());
+        assertTemplate(template("user-a", 3), store.get("a"));
+        assertNull(store.get("b"));
+        assertTrue(store.getDeadBytes() > 0);
+
+        store.close();
+        store = MappedTemplateStore.open(directory);
+        assertEquals(1, store.size());
+        assertTemplate(template("user-a", 3), store.get("a"));
+        assertNull(store.get("b"));
+
+        final Map<String,FaceTemplate> visited = new HashMap<String, FaceTemplate>();
+        store.forEach(new TemplateStore.Visitor() {
+            @Override
+            public void visit(String personID, FaceTemplate template) {
+                visited.put(personID, template);
+            }
+        });
+        assertEquals(1, visited.size());
+        assertTemplate(template("user-a", 3), visited.get("a"));
+    }
+
+    @Test
+    public void compactsAwayReplacedAndRemovedRecords() throws IOException {
+        for (int i = 0; i < 100; ++i) {
+            store.put("p" + i, template("user-" + i, i));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            store.put("p" + i, template("user-" + i, 1000 + i));
+        }
+        for (int i = 1; i < 100; i += 4) {
+            store.remove("p" + i);
+        }
+        FaceTemplate handedOut = store.get("p2");
+        store.compact();
+
+        assertEquals(0, store.getDeadBytes());
+        assertFalse(new File(directory, "templates-0.dat").exists());
+        assertTrue(new File(directory, "templates-1.dat").exists());
+        assertTemplate(template("user-2", 1002), handedOut);
+        store.close();
+        store = MappedTemplateStore.open(directory);
+        assertEquals(75, store.size());
+        for (int i = 0; i < 100; ++i) {
+            FaceTemplate template = store.get("p" + i);
+            if (i % 4 == 1) assertNull(template);
+            else assertTemplate(template("user-" + i, i % 2 == 0 ? 1000 + i : i), template);
+        }
+    }
+
+    @Test
+    public void keepsChangesMadeWhileCompacting() throws Exception {
+        final Map<String,FaceTemplate> expected = new HashMap<String, FaceTemplate>();
+        for (int i = 0; i < 5000; ++i) {
+            store.put("p" + i, template("user-" + i, i));
+            expected.put("p" + i, template("user-" + i, i));
+        }
+        final AtomicBoolean compacting = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                try {
+                    for (int n = 0; compacting.get() || n < 100; ++n) {
+                        String personID = "p" + random.nextInt(6000);
+                        if (random.nextInt(4) == 0) {
+                            store.remove(personID);
+                            expected.remove(personID);
+                        } else {
+                            FaceTemplate template = template("user-" + personID, 10000 + n);
+                            store.put(personID, template);
+                            expected.put(personID, template);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        writer.start();
+        try {
+            store.compact();
+        } finally {
+            compacting.set(false);
+            writer.join();
+        }
+        assertNull(error.get());
+
+        assertExactly(expected);
+        store.close();
+        store = MappedTemplateStore.open(directory);
+        assertExactly(expected);
+    }
+
+    private void assertExactly(Map<String,FaceTemplate> expected) {
+        assertEquals(expected.size(), store.size());
+        for (Map.Entry<String,FaceTemplate> entry : expected.entrySet()) {
+            assertTemplate(entry.getValue(), store.get(entry.getKey()));
+        }
+    }
+
+    private static FaceTemplate template(String internalID, int seed) {
+        Random random = new Random(seed);
+        float[] vectors = new float[DIMENSIONS * (1 + seed % 3)];
+        for (int i = 0; i < vectors.length; ++i) {
+            vectors[i] = random.nextFloat();
+        }
+        return new FaceTemplate(internalID, DIMENSIONS, vectors);
+    }
+
+    private static void assertTemplate(FaceTemplate expected, FaceTemplate actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getInternalID(), actual.getInternalID());
+        assertEquals(expected.getDimensions(), actual.getDimensions());
+        assertArrayEquals(expected.getVectors(), actual.getVectors(), 0);
+    }
+}